@@ -0,0 +1,173 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Base64;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumented benchmark of the size of the database file and the time to read it after
+ * opening it, with the results stored as text and compressed by {@link CompressedData}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompressedDataBenchmark {
+
+    private static final int RESULTS = 50;
+    private static final int POINTS = 4000;
+    private static final int IMAGE_BYTES = 30000;
+
+    private File plainFile;
+    private File compressedFile;
+
+    @Before
+    public void deleteFiles() {
+        File cache = InstrumentationRegistry.getTargetContext().getCacheDir();
+        plainFile = new File(cache, "plain_benchmark.db");
+        compressedFile = new File(cache, "compressed_benchmark.db");
+        SQLiteDatabase.deleteDatabase(plainFile);
+        SQLiteDatabase.deleteDatabase(compressedFile);
+    }
+
+    @After
+    public void deleteDatabases() {
+        SQLiteDatabase.deleteDatabase(plainFile);
+        SQLiteDatabase.deleteDatabase(compressedFile);
+    }
+
+    @Test
+    public void compressedResultsTakeLessSpace() throws Exception {
+        String[] results = buildResults();
+        store(plainFile, results, false);
+        store(compressedFile, results, true);
+
+        long plainSize = plainFile.length();
+        long compressedSize = compressedFile.length();
+        long plainRead = readAll(plainFile, false, results);
+        long compressedRead = readAll(compressedFile, true, results);
+
+        System.out.printf("%d results: %d KB and %d ms to read as text, %d KB and %d ms compressed%n",
+                RESULTS, plainSize / 1024, plainRead, compressedSize / 1024, compressedRead);
+
+        assertTrue(compressedSize * 2 < plainSize);
+    }
+
+    @Test
+    public void streamsTheDataOfARow() throws Exception {
+        String[] results = buildResults();
+        store(compressedFile, results, true);
+
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(compressedFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try (Cursor cursor = database.query(Provider.DB_TBL_RESULTS, new String[]{Provider.Cognimobile_Data.DATA},
+                null, null, null, null, Provider.Cognimobile_Data._ID, "1")) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(Cursor.FIELD_TYPE_BLOB, cursor.getType(0));
+
+            long length = 0;
+            byte[] buffer = new byte[8192];
+            try (InputStream in = CompressedData.openStream(cursor, 0)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    length += read;
+                }
+            }
+            assertEquals(results[0].length(), length);
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Stores the results in a new database.
+     *
+     * @param file       of the database.
+     * @param results    data of the results.
+     * @param compressed true to store them compressed, as the provider does.
+     */
+    private static void store(File file, String[] results, boolean compressed) {
+        SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        database.execSQL("CREATE TABLE " + Provider.DB_TBL_RESULTS + " (" + Provider.TABLES_FIELDS[1] + ")");
+        database.beginTransaction();
+        try {
+            for (String result : results) {
+                ContentValues values = new ContentValues();
+                values.put(Provider.Cognimobile_Data.NAME, "moca");
+                values.put(Provider.Cognimobile_Data.DATA, result);
+                database.insertOrThrow(Provider.DB_TBL_RESULTS, null, compressed ? CompressedData.compress(values) : values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        database.close();
+    }
+
+    /**
+     * Opens a database and reads the data of every result, as the upload does.
+     *
+     * @param file       of the database.
+     * @param compressed true if the data is stored compressed.
+     * @param results    expected data.
+     * @return milliseconds taken.
+     */
+    private static long readAll(File file, boolean compressed, String[] results) {
+        long start = System.nanoTime();
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        Cursor cursor = database.query(Provider.DB_TBL_RESULTS, new String[]{Provider.Cognimobile_Data.DATA},
+                null, null, null, null, Provider.Cognimobile_Data._ID);
+        if (compressed) {
+            cursor = new CompressedData.DecompressingCursor(cursor, 0);
+        }
+        int read = 0;
+        while (cursor.moveToNext()) {
+            assertEquals(results[read++].length(), cursor.getString(0).length());
+        }
+        cursor.close();
+        database.close();
+        assertEquals(RESULTS, read);
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Builds the data of results with the coordinates of a drawing and an image, like the
+     * ones of the drawing tasks.
+     *
+     * @return the json of every result.
+     */
+    private static String[] buildResults() throws Exception {
+        Random random = new Random(7);
+        String[] results = new String[RESULTS];
+        for (int i = 0; i < RESULTS; ++i) {
+            JSONArray points = new JSONArray();
+            for (int point = 0; point < POINTS; ++point) {
+                points.put(new JSONObject()
+                        .put("x", 200 + random.nextInt(400))
+                        .put("y", 300 + random.nextInt(600))
+                        .put("t", 1600000000000L + point * 16L));
+            }
+            byte[] image = new byte[IMAGE_BYTES];
+            random.nextBytes(image);
+            results[i] = new JSONArray().put(new JSONObject()
+                    .put("task", "cube")
+                    .put("drawing", points)
+                    .put("image", Base64.encodeToString(image, Base64.NO_WRAP))).toString();
+        }
+        return results;
+    }
+}
@@ -0,0 +1,128 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumented benchmark of the insertion of many results, row by row as the default
+ * {@link android.content.ContentProvider#bulkInsert} does, against a single transaction with
+ * the compiled statements of {@link CompiledInserts}, as {@link Provider} does now.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProviderBatchBenchmark {
+
+    private static final int ROWS = 2000;
+
+    private File file;
+    private SQLiteDatabase database;
+
+    @Before
+    public void createTables() {
+        //A file, as the journal is what makes a transaction per row expensive
+        file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "batch_benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        for (int i = 0; i < Provider.DATABASE_TABLES.length; ++i) {
+            database.execSQL("CREATE TABLE " + Provider.DATABASE_TABLES[i] + " (" + Provider.TABLES_FIELDS[i] + ")");
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        database.close();
+        SQLiteDatabase.deleteDatabase(file);
+    }
+
+    @Test
+    public void oneTransactionWithCompiledStatementsIsFaster() {
+        ContentValues[] rows = buildResults();
+
+        long start = System.nanoTime();
+        for (ContentValues row : rows) {
+            database.beginTransaction();
+            try {
+                database.insert(Provider.DB_TBL_RESULTS, Provider.Cognimobile_Data.DEVICE_ID, row);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+        long perRow = (System.nanoTime() - start) / 1000000;
+
+        database.delete(Provider.DB_TBL_RESULTS, null, null);
+
+        start = System.nanoTime();
+        database.beginTransaction();
+        try (CompiledInserts inserts = new CompiledInserts(database)) {
+            for (ContentValues row : rows) {
+                inserts.insert(Provider.DB_TBL_RESULTS, row);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        long batched = (System.nanoTime() - start) / 1000000;
+
+        System.out.printf("%d results: %d ms row by row, %d ms in a batch%n", ROWS, perRow, batched);
+
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_RESULTS));
+        assertTrue(batched < perRow);
+    }
+
+    @Test
+    public void compiledInsertsBehaveLikeInsert() {
+        database.beginTransaction();
+        try (CompiledInserts inserts = new CompiledInserts(database)) {
+            ContentValues test = new ContentValues();
+            test.put(Provider.Cognimobile_Data.NAME, "moca");
+            test.put(Provider.Cognimobile_Data.DATA, "{}");
+            assertTrue(inserts.insert(Provider.DB_TBL_TESTS, test) > 0);
+
+            //Other columns, in another order, compile another statement
+            ContentValues other = new ContentValues();
+            other.put(Provider.Cognimobile_Data.DONE, 1);
+            other.put(Provider.Cognimobile_Data.NAME, "fluency");
+            assertTrue(inserts.insert(Provider.DB_TBL_TESTS, other) > 0);
+
+            assertTrue(inserts.insert(Provider.DB_TBL_TESTS, new ContentValues()) > 0);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        assertEquals(3, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_TESTS));
+        assertEquals("1", DatabaseUtils.stringForQuery(database, "SELECT " + Provider.Cognimobile_Data.DONE
+                + " FROM " + Provider.DB_TBL_TESTS + " WHERE " + Provider.Cognimobile_Data.NAME + " = ?", new String[]{"fluency"}));
+    }
+
+    /**
+     * Builds the results to be inserted, like the ones of the tests done in a study.
+     *
+     * @return the rows.
+     */
+    private static ContentValues[] buildResults() {
+        ContentValues[] rows = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; ++i) {
+            rows[i] = new ContentValues();
+            rows[i].put(Provider.Cognimobile_Data.NAME, "test " + i % 10);
+            rows[i].put(Provider.Cognimobile_Data.DATA, "{\"score\":" + i + "}");
+            rows[i].put(Provider.Cognimobile_Data.SYNCED, 0);
+            rows[i].put(Provider.Cognimobile_Data.TIMESTAMP, System.currentTimeMillis());
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,187 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Instrumented benchmark of the queries of the app on tables of 10k+ rows, before and after the
+ * indexes of {@link SchemaMigrations}, and checks of the migration itself.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SchemaMigrationsBenchmark {
+
+    private static final int TESTS = 10000;
+    private static final int RESULTS = 20000;
+    private static final int REPETITIONS = 100;
+
+    private SQLiteDatabase database;
+
+    @Before
+    public void createTables() {
+        database = SQLiteDatabase.create(null);
+        for (int i = 0; i < Provider.DATABASE_TABLES.length; ++i) {
+            database.execSQL("CREATE TABLE " + Provider.DATABASE_TABLES[i] + " (" + Provider.TABLES_FIELDS[i] + ")");
+        }
+    }
+
+    @After
+    public void closeDatabase() {
+        database.close();
+    }
+
+    @Test
+    public void indexesSpeedUpTheQueriesOfTheApp() {
+        fillTables();
+
+        long[] before = measureQueries();
+        SchemaMigrations.migrate(database);
+        long[] after = measureQueries();
+
+        String[] queries = {"tests by name", "pending tests", "pending results", "expired results"};
+        for (int i = 0; i < queries.length; ++i) {
+            System.out.printf("%s: %d us without indexes, %d us with them%n", queries[i], before[i], after[i]);
+        }
+
+        assertTrue(usesIndex("SELECT " + Provider.Cognimobile_Data._ID + " FROM " + Provider.DB_TBL_TESTS
+                + " WHERE " + Provider.Cognimobile_Data.NAME + " = 'test 1'"));
+        assertTrue(usesIndex("SELECT " + Provider.Cognimobile_Data._ID + " FROM " + Provider.DB_TBL_RESULTS
+                + " WHERE " + Provider.Cognimobile_Data.SYNCED + " = '0'"));
+        assertTrue(after[0] < before[0]);
+        assertTrue(after[2] < before[2]);
+    }
+
+    @Test
+    public void migrationKeepsTheLastOfTheDuplicatedTests() {
+        insertTest("test", "first");
+        insertTest("test", "second");
+        insertTest("other", "third");
+
+        SchemaMigrations.migrate(database);
+        //A second run has nothing pending
+        SchemaMigrations.migrate(database);
+
+        assertEquals(SchemaMigrations.SCHEMA_VERSION, SchemaMigrations.getVersion(database));
+        assertEquals(2, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_TESTS));
+        assertEquals("second", DatabaseUtils.stringForQuery(database, "SELECT " + Provider.Cognimobile_Data.DATA
+                + " FROM " + Provider.DB_TBL_TESTS + " WHERE " + Provider.Cognimobile_Data.NAME + " = ?", new String[]{"test"}));
+
+        try {
+            insertTest("test", "fourth");
+            fail("The name of the tests should be unique");
+        } catch (SQLiteConstraintException e) {
+            assertEquals(2, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_TESTS));
+        }
+    }
+
+    /**
+     * Fills the tables like years of use would: most tests are done and most results synced.
+     */
+    private void fillTables() {
+        long now = System.currentTimeMillis();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < TESTS; ++i) {
+                ContentValues test = new ContentValues();
+                test.put(Provider.Cognimobile_Data.NAME, "test " + i);
+                test.put(Provider.Cognimobile_Data.DATA, "{}");
+                test.put(Provider.Cognimobile_Data.DONE, i % 100 == 0 ? 0 : 1);
+                database.insertOrThrow(Provider.DB_TBL_TESTS, null, test);
+            }
+            for (int i = 0; i < RESULTS; ++i) {
+                ContentValues result = new ContentValues();
+                result.put(Provider.Cognimobile_Data.NAME, "test " + i % TESTS);
+                result.put(Provider.Cognimobile_Data.DATA, "{}");
+                result.put(Provider.Cognimobile_Data.SYNCED, i % 200 == 0 ? 0 : 1);
+                result.put(Provider.Cognimobile_Data.ERASE_TIMESTAMP, now + (i % 1000 == 0 ? -1 : 1) * 86400000L);
+                database.insertOrThrow(Provider.DB_TBL_RESULTS, null, result);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Measures the queries of the app, as the provider runs them.
+     *
+     * @return mean microseconds of every query.
+     */
+    private long[] measureQueries() {
+        String now = Long.toString(System.currentTimeMillis());
+        long[] micros = new long[4];
+        for (int i = 0; i < REPETITIONS; ++i) {
+            String name = "test " + (i * 97) % TESTS;
+            micros[0] += time(Provider.DB_TBL_TESTS, Provider.Cognimobile_Data.NAME + " = ?", name);
+            micros[1] += time(Provider.DB_TBL_TESTS, Provider.Cognimobile_Data.DONE + " = ?", "0");
+            micros[2] += time(Provider.DB_TBL_RESULTS, Provider.Cognimobile_Data.SYNCED + " = ?", "0");
+            micros[3] += time(Provider.DB_TBL_RESULTS, Provider.Cognimobile_Data.ERASE_TIMESTAMP + " > 0 AND "
+                    + Provider.Cognimobile_Data.ERASE_TIMESTAMP + " <= ?", now);
+        }
+        for (int i = 0; i < micros.length; ++i) {
+            micros[i] /= REPETITIONS;
+        }
+        return micros;
+    }
+
+    /**
+     * Runs a query and reads every row.
+     *
+     * @param table    to be queried.
+     * @param where    of the query.
+     * @param argument of the query.
+     * @return microseconds taken.
+     */
+    private long time(String table, String where, String argument) {
+        long start = System.nanoTime();
+        Cursor cursor = database.query(table, new String[]{Provider.Cognimobile_Data._ID}, where,
+                new String[]{argument}, null, null, Provider.Cognimobile_Data._ID);
+        while (cursor.moveToNext()) {
+            cursor.getLong(0);
+        }
+        cursor.close();
+        return (System.nanoTime() - start) / 1000;
+    }
+
+    /**
+     * Checks if SQLite would search a query through an index.
+     *
+     * @param query to be checked.
+     * @return true if the plan uses an index.
+     */
+    private boolean usesIndex(String query) {
+        boolean index = false;
+        Cursor plan = database.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+        while (plan.moveToNext()) {
+            index |= plan.getString(plan.getColumnIndexOrThrow("detail")).contains("INDEX");
+        }
+        plan.close();
+        return index;
+    }
+
+    /**
+     * Inserts a test.
+     *
+     * @param name of the test.
+     * @param data of the test.
+     */
+    private void insertTest(String name, String data) {
+        ContentValues test = new ContentValues();
+        test.put(Provider.Cognimobile_Data.NAME, name);
+        test.put(Provider.Cognimobile_Data.DATA, data);
+        database.insertOrThrow(Provider.DB_TBL_TESTS, null, test);
+    }
+}
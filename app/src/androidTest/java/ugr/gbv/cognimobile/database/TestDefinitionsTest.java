@@ -0,0 +1,116 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Base64;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Instrumented checks of the definitions of the tests split into a header, tasks and images.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestDefinitionsTest {
+
+    private static final byte[] IMAGE = {(byte) 0x89, 'P', 'N', 'G', 0, 1, 2, 3};
+
+    private SQLiteDatabase database;
+
+    @Before
+    public void createTables() {
+        database = SQLiteDatabase.create(null);
+        for (int i = 0; i < Provider.DATABASE_TABLES.length; ++i) {
+            database.execSQL("CREATE TABLE " + Provider.DATABASE_TABLES[i] + " (" + Provider.TABLES_FIELDS[i] + ")");
+        }
+    }
+
+    @After
+    public void closeDatabase() {
+        database.close();
+    }
+
+    @Test
+    public void splitsTheDefinitionWhenItIsStored() throws Exception {
+        SchemaMigrations.migrate(database);
+
+        ContentValues test = new ContentValues();
+        test.put(Provider.Cognimobile_Data.NAME, "moca");
+        test.put(Provider.Cognimobile_Data.DATA, buildDefinition().toString());
+        ContentValues header = TestDefinitions.storeTasks(database, test);
+
+        JSONObject headerJson = new JSONObject(header.getAsString(Provider.Cognimobile_Data.DATA));
+        assertEquals(2, headerJson.getInt(TestDefinitions.TASKS));
+        assertEquals("en", headerJson.getString("language"));
+        assertFalse(headerJson.has("task_0"));
+
+        JSONObject imageTask = new JSONObject(DatabaseUtils.stringForQuery(database, "SELECT " + Provider.Cognimobile_Data.DATA
+                + " FROM " + Provider.DB_TBL_TASKS + " WHERE " + Provider.Cognimobile_Data.TASK + " = 0", null));
+        assertEquals(3, imageTask.getInt("taskType"));
+        assertFalse(imageTask.has("images"));
+
+        Cursor assets = database.query(Provider.DB_TBL_ASSETS, new String[]{Provider.Cognimobile_Data.ASSET},
+                null, null, null, null, Provider.Cognimobile_Data.POSITION);
+        assertEquals(2, assets.getCount());
+        assets.moveToFirst();
+        assertArrayEquals(IMAGE, assets.getBlob(0));
+        assets.close();
+
+        //Stored again, the tasks are replaced, and deleted with the test
+        database.insertOrThrow(Provider.DB_TBL_TESTS, null, TestDefinitions.storeTasks(database, test));
+        assertEquals(2, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_TASKS));
+        database.delete(Provider.DB_TBL_TESTS, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_TASKS));
+        assertEquals(0, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_ASSETS));
+    }
+
+    @Test
+    public void migrationSplitsTheStoredTests() throws Exception {
+        ContentValues test = new ContentValues();
+        test.put(Provider.Cognimobile_Data.NAME, "moca");
+        test.put(Provider.Cognimobile_Data.DATA, buildDefinition().toString());
+        test.put(Provider.Cognimobile_Data.DONE, 0);
+        database.insertOrThrow(Provider.DB_TBL_TESTS, null, test);
+
+        SchemaMigrations.migrate(database);
+
+        JSONObject header = new JSONObject(DatabaseUtils.stringForQuery(database, "SELECT " + Provider.Cognimobile_Data.DATA
+                + " FROM " + Provider.DB_TBL_TESTS, null));
+        assertEquals(2, header.getInt(TestDefinitions.TASKS));
+        assertEquals(2, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_TASKS));
+        assertEquals(2, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_ASSETS));
+    }
+
+    /**
+     * Builds the definition of a test with an image task and a memory task.
+     */
+    private static JSONObject buildDefinition() throws Exception {
+        String image = Base64.encodeToString(IMAGE, Base64.DEFAULT);
+        JSONObject imageTask = new JSONObject()
+                .put("taskType", 3)
+                .put("images", new JSONArray().put(image).put(image))
+                .put("answer", new JSONArray().put("lion").put("camel"));
+        JSONObject memoryTask = new JSONObject()
+                .put("taskType", 4)
+                .put("words", new JSONArray().put("face").put("velvet"))
+                .put("times", 2);
+        return new JSONObject()
+                .put("name", "moca")
+                .put("language", "en")
+                .put("display_help", true)
+                .put("task_0", imageTask)
+                .put("task_1", memoryTask);
+    }
+}
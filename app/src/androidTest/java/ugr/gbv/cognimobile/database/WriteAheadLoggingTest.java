@@ -0,0 +1,122 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumented checks that, with write-ahead logging, the queries do not wait for a write
+ * transaction open in another thread, like the ones of the workers, and that
+ * {@link QueryMetrics} tells them apart.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WriteAheadLoggingTest {
+
+    private File file;
+    private SQLiteDatabase database;
+    private ExecutorService writer;
+
+    @Before
+    public void createTables() {
+        file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "wal_test.db");
+        SQLiteDatabase.deleteDatabase(file);
+        database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        assertTrue(database.enableWriteAheadLogging());
+        for (int i = 0; i < Provider.DATABASE_TABLES.length; ++i) {
+            database.execSQL("CREATE TABLE " + Provider.DATABASE_TABLES[i] + " (" + Provider.TABLES_FIELDS[i] + ")");
+        }
+        writer = Executors.newSingleThreadExecutor();
+        QueryMetrics.getInstance().reset();
+    }
+
+    @After
+    public void deleteDatabase() {
+        writer.shutdownNow();
+        database.close();
+        SQLiteDatabase.deleteDatabase(file);
+    }
+
+    @Test
+    public void queriesDoNotWaitForAnOpenWrite() throws Exception {
+        CountDownLatch written = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+
+        Future<?> write = writer.submit(() -> {
+            database.beginTransactionNonExclusive();
+            QueryMetrics.getInstance().onWriteStarted();
+            try {
+                ContentValues result = new ContentValues();
+                result.put(Provider.Cognimobile_Data.NAME, "moca");
+                result.put(Provider.Cognimobile_Data.DATA, "{}");
+                database.insertOrThrow(Provider.DB_TBL_RESULTS, null, result);
+                written.countDown();
+                //The transaction is kept open until the query has finished
+                read.await(10, TimeUnit.SECONDS);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                QueryMetrics.getInstance().onWriteEnded();
+            }
+            return null;
+        });
+
+        assertTrue(written.await(10, TimeUnit.SECONDS));
+        QueryMetrics metrics = QueryMetrics.getInstance();
+        boolean duringWrite = metrics.isWriting();
+        long start = System.nanoTime();
+        //It reads the last commit, without the row being written
+        long rows = DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_RESULTS);
+        long elapsed = System.nanoTime() - start;
+        metrics.forTable(Provider.DB_TBL_RESULTS).onQuery(elapsed, duringWrite);
+        read.countDown();
+        write.get(10, TimeUnit.SECONDS);
+
+        assertEquals(0, rows);
+        assertTrue(duringWrite);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(elapsed) < 1000);
+        assertEquals(1, DatabaseUtils.queryNumEntries(database, Provider.DB_TBL_RESULTS));
+
+        JSONObject json = metrics.toJson().getJSONObject("tables").getJSONObject(Provider.DB_TBL_RESULTS);
+        assertEquals(1, json.getJSONObject("during_writes").getLong("queries"));
+        assertEquals(0, json.getJSONObject("idle").getLong("queries"));
+    }
+
+    @Test
+    public void recordsAQueryWhenItsRowsAreRead() {
+        QueryMetrics.Table table = QueryMetrics.getInstance().forTable(Provider.DB_TBL_TESTS);
+
+        try (Cursor cursor = new QueryMetrics.TimedCursor(database.query(Provider.DB_TBL_TESTS,
+                null, null, null, null, null, null), table, System.nanoTime(), false)) {
+            //Not run until it is read
+            assertEquals(0, table.getQueries());
+            assertTrue(cursor.getColumnIndex(Provider.Cognimobile_Data.NAME) >= 0);
+            assertEquals(0, table.getQueries());
+
+            assertEquals(0, cursor.getCount());
+            while (cursor.moveToNext()) {
+                cursor.getString(0);
+            }
+            assertEquals(1, table.getQueries());
+        }
+    }
+}
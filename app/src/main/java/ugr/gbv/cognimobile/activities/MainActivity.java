@@ -6,12 +6,10 @@ import android.app.ActivityManager;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.service.notification.StatusBarNotification;
 import android.view.MenuItem;
 import android.widget.Toast;
@@ -24,6 +22,9 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.PermissionChecker;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentTransaction;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.work.WorkInfo;
 
 import com.aware.Aware;
 import com.aware.ui.PermissionsHandler;
@@ -34,6 +35,8 @@ import java.util.ArrayList;
 
 import ugr.gbv.cognimobile.R;
 import ugr.gbv.cognimobile.database.CognimobilePreferences;
+import ugr.gbv.cognimobile.database.SyncSchedule;
+import ugr.gbv.cognimobile.database.ValidatorCache;
 import ugr.gbv.cognimobile.fragments.SettingsFragments;
 import ugr.gbv.cognimobile.fragments.StudyFragment;
 import ugr.gbv.cognimobile.fragments.TestsFragment;
@@ -41,8 +44,10 @@ import ugr.gbv.cognimobile.interfaces.LoadDialog;
 import ugr.gbv.cognimobile.interfaces.QRCallback;
 import ugr.gbv.cognimobile.interfaces.TestClickHandler;
 import ugr.gbv.cognimobile.qr_reader.ReadQR;
+import ugr.gbv.cognimobile.sync.TestsWorker;
 import ugr.gbv.cognimobile.sync.WorkerManager;
 import ugr.gbv.cognimobile.utilities.ErrorHandler;
+import ugr.gbv.cognimobile.utilities.StudyEndpointCache;
 
 import static ugr.gbv.cognimobile.qr_reader.ReadQR.INTENT_LINK_LABEL;
 
@@ -61,7 +66,6 @@ public class MainActivity extends AppCompatActivity
     private static final int MY_PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE = 999;
     private final ArrayList<String> REQUIRED_PERMISSIONS = new ArrayList<>();
     private Fragment actualFragment;
-    private Handler handler;
 
     /**
      * OnCreate method to create the view and instantiate all the elements and put the info,
@@ -269,6 +273,11 @@ public class MainActivity extends AppCompatActivity
                 String link = data.getStringExtra(INTENT_LINK_LABEL);
                 if (link != null) {
                     Aware.joinStudy(this, link);
+                    ValidatorCache.clear(this);
+                    SyncSchedule.clear(this);
+                    StudyEndpointCache.getInstance().invalidate();
+                    CognimobilePreferences.setSessionEnvelopeUnsupported(this, false);
+                    CognimobilePreferences.setBinaryEventsUnsupported(this, false);
                     if (hasUserConnectivity()) {
                         CognimobilePreferences.setHasUserJoinedStudy(this, true);
                         reloadUiWhenJoined();
@@ -362,21 +371,22 @@ public class MainActivity extends AppCompatActivity
     }
 
     /**
-     * This method reload the UI when the user joins into a study.
+     * This method reload the UI when the user joins into a study. The tests are downloaded in
+     * the background as soon as AWARE has stored the study, and the UI is reloaded at that
+     * moment, without blocking the UI thread meanwhile.
      */
     private void reloadUiWhenJoined() {
-        Handler handler = new Handler();
-        handler.post(() -> {
-            int count = 0;
-            while (count == 0) {
-                Cursor studies = Aware.getStudy(getApplicationContext(), "");
-                count = studies.getCount();
-                studies.close();
+        LiveData<WorkInfo> download = WorkerManager.getInstance().downloadJoinedStudy(getApplicationContext());
+        download.observe(this, new Observer<WorkInfo>() {
+            @Override
+            public void onChanged(WorkInfo workInfo) {
+                if (workInfo != null && (workInfo.getState().isFinished()
+                        || workInfo.getProgress().getBoolean(TestsWorker.KEY_STUDY_READY, false))) {
+                    download.removeObserver(this);
+                    reloadFragment();
+                }
             }
-            initiateWorkerManager();
-            runOnUiThread(this::reloadFragment);
         });
-
     }
 
     /**
@@ -390,20 +400,6 @@ public class MainActivity extends AppCompatActivity
         ft.commit();
     }
 
-    /**
-     * Initiates the periodic tasks using {@link WorkerManager#initiateWorkers(Context)}.
-     * It gives time to AWARE sets the information, and then run all the workers.
-     */
-    private void initiateWorkerManager() {
-        handler = new Handler();
-        handler.postDelayed(
-                () ->
-                        runOnUiThread(() ->
-                                WorkerManager.getInstance().initiateWorkers(getApplicationContext()))
-                , getResources().getInteger(R.integer.default_time));
-
-    }
-
     /**
      * Displays the error from {@link ErrorHandler#displayError(String)}}.
      */
@@ -430,13 +426,5 @@ public class MainActivity extends AppCompatActivity
         super.onStart();
         ErrorHandler.setCallback(this);
     }
-
-    @Override
-    protected void onStop() {
-        super.onStop();
-        if (handler != null) {
-            handler.removeCallbacksAndMessages(null);
-        }
-    }
 }
 
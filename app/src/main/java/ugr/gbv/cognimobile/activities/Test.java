@@ -2,6 +2,7 @@ package ugr.gbv.cognimobile.activities;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
@@ -12,6 +13,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.Looper;
 import android.speech.tts.TextToSpeech;
 import android.view.MenuItem;
 import android.view.View;
@@ -44,9 +46,12 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import ugr.gbv.cognimobile.R;
 import ugr.gbv.cognimobile.database.Provider;
+import ugr.gbv.cognimobile.database.TestDefinitions;
 import ugr.gbv.cognimobile.fragments.Task;
 import ugr.gbv.cognimobile.interfaces.LoadContent;
 import ugr.gbv.cognimobile.interfaces.LoadDialog;
@@ -61,7 +66,16 @@ import ugr.gbv.cognimobile.utilities.JsonParserTests;
 public class Test extends AppCompatActivity implements LoadContent, LoadDialog, SpellCheckerSession.SpellCheckerSessionListener {
 
     private static final int MY_DATA_CHECK_CODE = 1050;
-    private ArrayList<Task> fragments;
+    private Task currentTask;
+    private int taskCount;
+    private ExecutorService taskLoader;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    //Last task loaded in the background and its position, -1 while it is being loaded
+    private TestDefinitions.StoredTask loadedTask;
+    private int loadedPosition = -1;
+    private boolean waitingForTask;
+    private String languageCode;
+    private boolean displayHelp;
     private int index;
     private int totalScore;
     private View mContentView;
@@ -76,10 +90,11 @@ public class Test extends AppCompatActivity implements LoadContent, LoadDialog,
 
     /**
      * OnCreate method to create the view and instantiate all the elements and put the info,
-     * Also retrieves the test information from with the
+     * Also retrieves the header of the test from with the
      * {@link android.content.ContentResolver#query(Uri, String[], Bundle, CancellationSignal)}
      * method. It needs to be done this way because the test could be bigger than 2MB limit
-     * establish by {@link Intent}
+     * establish by {@link Intent}. Every task is loaded in the background while the previous
+     * one is being done, see {@link TestDefinitions}.
      *
      * @param savedInstanceState contains the most recent data from the activity.
      */
@@ -106,12 +121,6 @@ public class Test extends AppCompatActivity implements LoadContent, LoadDialog,
 
         cursor.close();
 
-        try {
-            fragments = JsonParserTests.getInstance().parseTestToTasks(rawJson,this);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
 
         index = 0;
         totalScore = 0;
@@ -125,14 +134,19 @@ public class Test extends AppCompatActivity implements LoadContent, LoadDialog,
         try {
             JSONObject reader = new JSONObject(rawJson);
             name = reader.getString("name");
-            String language = reader.getString("language");
-            this.language = new Locale(language);
-            jsonAnswerWrapper = new JsonAnswerWrapper(name, language);
-            jsonContextEvents = new JsonAnswerWrapper(name, language);
+            languageCode = reader.getString("language");
+            displayHelp = reader.getBoolean("display_help");
+            taskCount = reader.getInt(TestDefinitions.TASKS);
+            this.language = new Locale(languageCode);
+            jsonAnswerWrapper = new JsonAnswerWrapper(name, languageCode);
+            jsonContextEvents = new JsonAnswerWrapper(name, languageCode);
         } catch (JSONException e) {
             e.printStackTrace();
         }
 
+        taskLoader = Executors.newSingleThreadExecutor();
+        loadTaskInBackground(index);
+
 
         Intent checkIntent = new Intent();
         checkIntent.setAction(TextToSpeech.Engine.ACTION_CHECK_TTS_DATA);
@@ -163,6 +177,82 @@ public class Test extends AppCompatActivity implements LoadContent, LoadDialog,
                 .commit();
     }
 
+    /**
+     * Starts loading a task in the background, so it is ready when it has to be displayed.
+     * Once it is loaded it is handed to the UI thread, see {@link #onTaskLoaded}.
+     *
+     * @param position of the task in the test.
+     */
+    private void loadTaskInBackground(int position) {
+        loadedTask = null;
+        loadedPosition = -1;
+        if (position >= taskCount) {
+            return;
+        }
+        ContentResolver resolver = getContentResolver();
+        String testName = name;
+        taskLoader.execute(() -> {
+            TestDefinitions.StoredTask stored = null;
+            try {
+                stored = TestDefinitions.loadTask(resolver, testName, position);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            TestDefinitions.StoredTask loaded = stored;
+            uiHandler.post(() -> onTaskLoaded(position, loaded));
+        });
+    }
+
+    /**
+     * Keeps a task loaded in the background, and displays it if it was already being waited
+     * for. It runs in the UI thread.
+     *
+     * @param position of the task in the test.
+     * @param stored   task, null if it could not be loaded.
+     */
+    private void onTaskLoaded(int position, TestDefinitions.StoredTask stored) {
+        if (isDestroyed()) {
+            return;
+        }
+        loadedTask = stored;
+        loadedPosition = position;
+        if (waitingForTask) {
+            waitingForTask = false;
+            displayNextTask();
+        }
+    }
+
+    /**
+     * Displays the task loaded in the background and starts loading the next one. If it is not
+     * loaded yet, it is displayed as soon as it is, without blocking the UI thread. The
+     * fragment is created here, as fragments have to be created in the UI thread. A task that
+     * could not be loaded is skipped.
+     */
+    private void displayNextTask() {
+        if (loadedPosition != index) {
+            waitingForTask = true;
+            return;
+        }
+
+        currentTask = null;
+        TestDefinitions.StoredTask stored = loadedTask;
+        try {
+            if (stored == null) {
+                throw new JSONException("Task " + index + " of " + name + " is not stored");
+            }
+            currentTask = JsonParserTests.getInstance().parseTask(stored.json, stored.images, languageCode, displayHelp, this);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        loadTaskInBackground(index + 1);
+        if (currentTask != null) {
+            loadFragment(currentTask);
+        } else {
+            loadContent();
+        }
+    }
+
     /**
      * This hook is called whenever an item in your options menu is selected.
      * The default implementation simply returns false to have the normal
@@ -195,20 +285,23 @@ public class Test extends AppCompatActivity implements LoadContent, LoadDialog,
      */
     @Override
     public void loadContent() {
-        if (index > 1)
-            totalScore += fragments.get(index).getScore();
+        if (waitingForTask) {
+            //The task that has just ended is still displayed until the next one is loaded
+            return;
+        }
+        if (index > 1 && currentTask != null)
+            totalScore += currentTask.getScore();
         ++index;
         hideKeyboard(this);
-        if (index < fragments.size()) {
-            loadFragment(fragments.get(index));
+        if (index < taskCount) {
+            displayNextTask();
         } else{
             try {
                 jsonAnswerWrapper.addTotalScore(totalScore);
                 Intent intent = new Intent();
                 intent.putExtra("name", name);
                 setResult(RESULT_OK, intent);
-                DataSender.getInstance().postToServer("insert", "contextEvents", jsonContextEvents.getJSONArray(), getApplicationContext());
-                DataSender.getInstance().postToServer("insert", "results", jsonAnswerWrapper.getJSONArray(), getApplicationContext());
+                DataSender.getInstance().enqueueSession(getApplicationContext(), name, jsonContextEvents.getJSONArray(), jsonAnswerWrapper.getJSONArray());
             } catch (JSONException e) {
                 e.printStackTrace();
             }
@@ -275,9 +368,9 @@ public class Test extends AppCompatActivity implements LoadContent, LoadDialog,
                 decorView.getWindowVisibleDisplayFrame(windowVisibleDisplayFrame);
                 final int visibleDecorViewHeight = windowVisibleDisplayFrame.height();
 
-                if (index < fragments.size()) {
+                if (index < taskCount && currentTask != null) {
                     if (lastVisibleDecorViewHeight != 0) {
-                        Task actualTask = fragments.get(index);
+                        Task actualTask = currentTask;
                         ConstraintLayout constraintLayout = actualTask.getMainLayout();
                         if (lastVisibleDecorViewHeight > visibleDecorViewHeight + MIN_KEYBOARD_HEIGHT_PX) {
                             if (actualTask.getTaskType() > Task.IMAGE) {
@@ -353,7 +446,7 @@ public class Test extends AppCompatActivity implements LoadContent, LoadDialog,
         if (requestCode == MY_DATA_CHECK_CODE) {
             if (resultCode == TextToSpeech.Engine.CHECK_VOICE_DATA_PASS) {
                 // success, create the TTS instance
-                loadFragment(fragments.get(index));
+                displayNextTask();
 
             } else {
                 // missing data, install it
@@ -475,6 +568,18 @@ public class Test extends AppCompatActivity implements LoadContent, LoadDialog,
         finish();
     }
 
+    /**
+     * Stops loading the tasks when the test is closed.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (taskLoader != null) {
+            taskLoader.shutdownNow();
+        }
+        uiHandler.removeCallbacksAndMessages(null);
+    }
+
 
     /**
      * This method allows to double tap to quit the test.
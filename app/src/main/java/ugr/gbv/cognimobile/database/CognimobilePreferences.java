@@ -5,6 +5,8 @@ import android.content.SharedPreferences;
 
 import androidx.preference.PreferenceManager;
 
+import java.util.concurrent.TimeUnit;
+
 import ugr.gbv.cognimobile.R;
 
 
@@ -168,4 +170,78 @@ public class CognimobilePreferences {
         editor.apply();
     }
 
+    /**
+     * Get if the study server does not accept the session envelope, so the sessions are
+     * uploaded table by table. It expires after a while, so the envelope is tried again in
+     * case that the server has been updated.
+     *
+     * @param context Context required for the {@link PreferenceManager}
+     * @return true if the server only accepted the AWARE tables recently, false if not.
+     */
+    public static boolean getSessionEnvelopeUnsupported(Context context) {
+        String key = context.getString(R.string.pref_session_envelope_unsupported_since);
+        long retryMillis = TimeUnit.HOURS.toMillis(context.getResources().getInteger(R.integer.session_envelope_retry_hours));
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+
+        long since = sp.getLong(key, 0);
+        long now = System.currentTimeMillis();
+        return since > 0 && now >= since && now - since < retryMillis;
+    }
+
+
+    /**
+     * Set if the study server does not accept the session envelope, from now on
+     *
+     * @param context Context required for the {@link PreferenceManager}
+     * @param value   to be introduced into the preferences.
+     */
+    public static void setSessionEnvelopeUnsupported(Context context, boolean value) {
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+
+        String key = context.getString(R.string.pref_session_envelope_unsupported_since);
+
+        if (value) {
+            editor.putLong(key, System.currentTimeMillis());
+        } else {
+            editor.remove(key);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Get if the study server does not accept the binary context events, so they are uploaded
+     * as json.
+     *
+     * @param context Context required for the {@link PreferenceManager}
+     * @return true if the server only accepts json, false if not.
+     */
+    public static boolean getBinaryEventsUnsupported(Context context) {
+        String key = context.getString(R.string.pref_binary_events_unsupported);
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+
+        return sp.getBoolean(key, false);
+    }
+
+
+    /**
+     * Set if the study server does not accept the binary context events
+     *
+     * @param context Context required for the {@link PreferenceManager}
+     * @param value   to be introduced into the preferences.
+     */
+    public static void setBinaryEventsUnsupported(Context context, boolean value) {
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+
+        String key = context.getString(R.string.pref_binary_events_unsupported);
+
+        editor.putBoolean(key, value);
+        editor.apply();
+    }
+
 }
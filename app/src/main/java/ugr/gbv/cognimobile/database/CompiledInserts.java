@@ -0,0 +1,117 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class to insert many rows reusing compiled statements. {@link SQLiteDatabase#insert} builds
+ * and compiles the SQL of every row, here it is compiled once for every table and set of
+ * columns, and the values of every row are bound to it.
+ * It should be used in a transaction and closed once the rows are inserted.
+ */
+class CompiledInserts implements Closeable {
+
+    private final SQLiteDatabase database;
+    private final Map<String, Insert> statements = new HashMap<>();
+
+    /**
+     * Compiled statement and the order in which its columns are bound.
+     */
+    private static class Insert {
+        private final SQLiteStatement statement;
+        private final List<String> columns;
+
+        /**
+         * Constructor
+         *
+         * @param statement compiled.
+         * @param columns   in the order of the statement.
+         */
+        Insert(SQLiteStatement statement, List<String> columns) {
+            this.statement = statement;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param database where the rows are inserted.
+     */
+    CompiledInserts(SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Inserts a row, like {@link SQLiteDatabase#insert} with the device id as null column hack.
+     *
+     * @param table  where the row is inserted.
+     * @param values of the row.
+     * @return the id of the new row, -1 if it breaks a constraint.
+     */
+    long insert(String table, ContentValues values) {
+        List<String> columns = new ArrayList<>(values.keySet());
+        Collections.sort(columns);
+
+        Insert insert = statements.get(table + ":" + columns);
+        if (insert == null) {
+            insert = new Insert(database.compileStatement(buildSql(table, columns)), columns);
+            statements.put(table + ":" + columns, insert);
+        }
+
+        insert.statement.clearBindings();
+        for (int i = 0; i < insert.columns.size(); ++i) {
+            DatabaseUtils.bindObjectToProgram(insert.statement, i + 1, values.get(insert.columns.get(i)));
+        }
+        try {
+            return insert.statement.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    @Override
+    public void close() {
+        for (Insert insert : statements.values()) {
+            insert.statement.close();
+        }
+        statements.clear();
+    }
+
+    /**
+     * Builds the insertion of some columns in a table.
+     *
+     * @param table   where the rows are inserted.
+     * @param columns of the rows, a row without any inserts a null device id.
+     * @return the SQL of the statement.
+     */
+    private static String buildSql(String table, List<String> columns) {
+        if (columns.isEmpty()) {
+            return "INSERT INTO " + table + " (" + Provider.Cognimobile_Data.DEVICE_ID + ") VALUES (NULL)";
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < columns.size(); ++i) {
+            if (i > 0) {
+                sql.append(',');
+                parameters.append(',');
+            }
+            sql.append(columns.get(i));
+            parameters.append('?');
+        }
+        return sql.append(") VALUES (").append(parameters).append(')').toString();
+    }
+}
@@ -0,0 +1,196 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CrossProcessCursorWrapper;
+import android.database.DatabaseUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Class to store the data of the tests and the results compressed. The json of a result
+ * could take megabytes, with images in base64 and the coordinates of the drawings, and it
+ * shrinks several times with deflate.
+ * The data long enough is stored as a blob whose first byte tells its format, so other
+ * formats could be added later, and the rest of the data is stored as text, as it was.
+ * {@link Provider} compresses the data when it is written and wraps its cursors, so the
+ * callers read the text as always. The data of a single row could also be read as a stream,
+ * see {@link Provider#openFile}, without holding the whole text in memory.
+ */
+public class CompressedData {
+
+    //Format of the blobs, their first byte
+    public static final byte FORMAT_DEFLATE = 1;
+
+    //The shorter data is not worth compressing
+    public static final int MIN_COMPRESSED_CHARS = 512;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Compresses the data of a row being written, if it is long enough and it gets smaller.
+     *
+     * @param values of the row, could be null.
+     * @return the values with the data compressed, the same values if it is not compressed.
+     */
+    static ContentValues compress(ContentValues values) {
+        Object data = values != null ? values.get(Provider.Cognimobile_Data.DATA) : null;
+        if (!(data instanceof String) || ((String) data).length() < MIN_COMPRESSED_CHARS) {
+            return values;
+        }
+
+        byte[] compressed = deflate((String) data);
+        if (compressed == null) {
+            return values;
+        }
+        ContentValues compressedValues = new ContentValues(values);
+        compressedValues.put(Provider.Cognimobile_Data.DATA, compressed);
+        return compressedValues;
+    }
+
+    /**
+     * Compresses a text with deflate, after the format tag.
+     *
+     * @param text to be compressed.
+     * @return the stored blob, null if it is not smaller than the text.
+     */
+    static byte[] deflate(String text) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 16);
+        out.write(FORMAT_DEFLATE);
+
+        Deflater deflater = new Deflater();
+        try (DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater, BUFFER_SIZE)) {
+            deflating.write(raw);
+        } catch (IOException e) {
+            //Written in memory, it does not happen
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+        return out.size() < raw.length ? out.toByteArray() : null;
+    }
+
+    /**
+     * Decompresses a stored blob.
+     *
+     * @param stored blob, with its format tag.
+     * @return the text.
+     * @throws IllegalArgumentException in case that the format is unknown or the blob is corrupt.
+     */
+    public static String inflate(byte[] stored) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 4);
+        try (InputStream in = openStream(stored)) {
+            copy(in, out);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt compressed data", e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens the data of a row as a stream of UTF-8 text, decompressed as it is read.
+     *
+     * @param cursor placed on the row, it could be closed once the stream is opened.
+     * @param column of the data, as stored.
+     * @return the stream, empty if the data is null.
+     * @throws IllegalArgumentException in case that the format is unknown.
+     */
+    static InputStream openStream(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_BLOB:
+                return openStream(cursor.getBlob(column));
+            case Cursor.FIELD_TYPE_NULL:
+                return new ByteArrayInputStream(new byte[0]);
+            default:
+                return new ByteArrayInputStream(cursor.getString(column).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Opens a stored blob as a stream of UTF-8 text.
+     *
+     * @param stored blob, with its format tag.
+     * @return the stream.
+     * @throws IllegalArgumentException in case that the format is unknown.
+     */
+    private static InputStream openStream(byte[] stored) {
+        if (stored.length == 0 || stored[0] != FORMAT_DEFLATE) {
+            throw new IllegalArgumentException("Unknown format of the compressed data");
+        }
+        return new InflaterInputStream(new ByteArrayInputStream(stored, 1, stored.length - 1));
+    }
+
+    /**
+     * Copies a stream into another.
+     *
+     * @param in  to be read until its end.
+     * @param out where it is written.
+     * @throws IOException in case that a stream fails.
+     */
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Cursor that decompresses the data column when it is read, so it is text for the callers,
+     * also when the cursor is sent to another process.
+     */
+    static class DecompressingCursor extends CrossProcessCursorWrapper {
+        private final int dataColumn;
+
+        /**
+         * Constructor
+         *
+         * @param cursor     of the table, as stored.
+         * @param dataColumn index of the data column in the cursor.
+         */
+        DecompressingCursor(Cursor cursor, int dataColumn) {
+            super(cursor);
+            this.dataColumn = dataColumn;
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            int type = super.getType(columnIndex);
+            return columnIndex == dataColumn && type == FIELD_TYPE_BLOB ? FIELD_TYPE_STRING : type;
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex == dataColumn && super.getType(columnIndex) == FIELD_TYPE_BLOB) {
+                return inflate(super.getBlob(columnIndex));
+            }
+            return super.getString(columnIndex);
+        }
+
+        /**
+         * Gets no window, so the rows are copied through {@link #fillWindow} decompressed,
+         * instead of the stored window being sent as it is.
+         *
+         * @return null.
+         */
+        @Override
+        public CursorWindow getWindow() {
+            return null;
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            DatabaseUtils.cursorFillWindow(this, position, window);
+        }
+    }
+}
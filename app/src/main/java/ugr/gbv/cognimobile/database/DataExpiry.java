@@ -0,0 +1,108 @@
+package ugr.gbv.cognimobile.database;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+/**
+ * Class to remove the rows whose erase timestamp has passed and to give the space back to the
+ * file system. Rows with an erase timestamp of 0 have none and are kept.
+ * The expired rows are found through the index on the erase timestamp, see
+ * {@link SchemaMigrations}, and deleted in small batches, each one in its own transaction, so
+ * the app is never locked out of the database for long. The database is switched to
+ * incremental auto vacuum once, and afterwards every run frees a bounded number of pages.
+ */
+public class DataExpiry {
+
+    public static final String KEY_DELETED_ROWS = "deleted_rows";
+    public static final String KEY_RECLAIMED_BYTES = "reclaimed_bytes";
+
+    private static final int BATCH_ROWS = 500;
+    private static final int VACUUM_PAGES = 2048;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Deletes the expired rows of some tables and frees the pages left empty.
+     *
+     * @param database where the tables are, not in a transaction.
+     * @param tables   with an erase timestamp column.
+     * @param now      current time in milliseconds.
+     * @return the number of rows deleted and the bytes given back to the file system, with the
+     * keys {@link #KEY_DELETED_ROWS} and {@link #KEY_RECLAIMED_BYTES}.
+     */
+    public static Bundle expire(SQLiteDatabase database, String[] tables, long now) {
+        long pageSize = DatabaseUtils.longForQuery(database, "PRAGMA page_size", null);
+        long pagesBefore = DatabaseUtils.longForQuery(database, "PRAGMA page_count", null);
+
+        int deleted = 0;
+        for (String table : tables) {
+            deleted += deleteExpired(database, table, now);
+        }
+
+        if (deleted > 0 || hasFreePages(database)) {
+            reclaim(database);
+        }
+
+        long pagesAfter = DatabaseUtils.longForQuery(database, "PRAGMA page_count", null);
+
+        Bundle result = new Bundle();
+        result.putInt(KEY_DELETED_ROWS, deleted);
+        result.putLong(KEY_RECLAIMED_BYTES, Math.max(0, pagesBefore - pagesAfter) * pageSize);
+        return result;
+    }
+
+    /**
+     * Deletes the expired rows of a table, a batch at a time.
+     *
+     * @param database where the table is.
+     * @param table    with an erase timestamp column.
+     * @param now      current time in milliseconds.
+     * @return the number of rows deleted.
+     */
+    private static int deleteExpired(SQLiteDatabase database, String table, long now) {
+        String where = Provider.Cognimobile_Data._ID + " IN (SELECT " + Provider.Cognimobile_Data._ID + " FROM " + table
+                + " WHERE " + Provider.Cognimobile_Data.ERASE_TIMESTAMP + " > 0 AND "
+                + Provider.Cognimobile_Data.ERASE_TIMESTAMP + " <= ? LIMIT " + BATCH_ROWS + ")";
+        String[] whereArgs = {Long.toString(now)};
+
+        int deleted = 0;
+        int batch;
+        do {
+            batch = database.delete(table, where, whereArgs);
+            deleted += batch;
+        } while (batch == BATCH_ROWS);
+        return deleted;
+    }
+
+    /**
+     * Checks if the database file has pages that are not used.
+     *
+     * @param database to be checked.
+     * @return true if there are free pages.
+     */
+    private static boolean hasFreePages(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null) > 0;
+    }
+
+    /**
+     * Gives the free pages back to the file system. The first time the database is rebuilt with
+     * incremental auto vacuum, which can only be enabled that way on an existing database.
+     *
+     * @param database to be vacuumed, not in a transaction.
+     */
+    private static void reclaim(SQLiteDatabase database) {
+        if (DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            database.execSQL("VACUUM");
+            return;
+        }
+
+        //The pages are freed while the statement is stepped, so the cursor is read to the end
+        Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+        while (cursor.moveToNext()) {
+            //Every step frees a page
+        }
+        cursor.close();
+    }
+}
@@ -1,16 +1,21 @@
 package ugr.gbv.cognimobile.database;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 
 import androidx.annotation.NonNull;
@@ -18,9 +23,17 @@ import androidx.annotation.Nullable;
 
 import com.aware.utils.DatabaseHelper;
 
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * Class to make CRUD operations on the local database
@@ -31,7 +44,7 @@ import java.util.Objects;
 public class Provider extends ContentProvider {
 
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 5;
     private static final String DATABASE_NAME = "cognimobile.db";
 
     public static String AUTHORITY = "ugr.gbv.cognimobile.provider";
@@ -44,6 +57,9 @@ public class Provider extends ContentProvider {
      */
     public static final Uri CONTENT_URI_TESTS = Uri.parse("content://" + AUTHORITY + "/tests");
     public static final Uri CONTENT_URI_RESULTS = Uri.parse("content://" + AUTHORITY + "/results");
+    public static final Uri CONTENT_URI_OUTBOX = Uri.parse("content://" + AUTHORITY + "/outbox");
+    public static final Uri CONTENT_URI_TASKS = Uri.parse("content://" + AUTHORITY + "/test_tasks");
+    public static final Uri CONTENT_URI_ASSETS = Uri.parse("content://" + AUTHORITY + "/test_assets");
 
     /**
      * How your data collection is identified internally in Android (vnd.android.cursor.dir). <br/>
@@ -62,6 +78,12 @@ public class Provider extends ContentProvider {
     private static final int TABLE_TESTS_ITEM = 2;
     private static final int TABLE_RESULTS_DIR = 3;
     private static final int TABLE_RESULTS_ITEM = 4;
+    private static final int TABLE_OUTBOX_DIR = 5;
+    private static final int TABLE_OUTBOX_ITEM = 6;
+    private static final int TABLE_TASKS_DIR = 7;
+    private static final int TABLE_TASKS_ITEM = 8;
+    private static final int TABLE_ASSETS_DIR = 9;
+    private static final int TABLE_ASSETS_ITEM = 10;
 
 
     public static final String _ID = "_id";
@@ -78,10 +100,16 @@ public class Provider extends ContentProvider {
 
     public static final String DB_TBL_TESTS = "tests";
     public static final String DB_TBL_RESULTS = "results";
+    public static final String DB_TBL_OUTBOX = "outbox";
+    public static final String DB_TBL_TASKS = "test_tasks";
+    public static final String DB_TBL_ASSETS = "test_assets";
 
     public static final String[] DATABASE_TABLES = {
             DB_TBL_TESTS,
-            DB_TBL_RESULTS
+            DB_TBL_RESULTS,
+            DB_TBL_OUTBOX,
+            DB_TBL_TASKS,
+            DB_TBL_ASSETS
     };
 
 
@@ -98,6 +126,9 @@ public class Provider extends ContentProvider {
     public static final class Cognimobile_Data implements AWAREColumns {
         public static final Uri CONTENT_URI_TESTS = Uri.parse("content://" + AUTHORITY + "/" + DB_TBL_TESTS);
         public static final Uri CONTENT_URI_RESULTS = Uri.parse("content://" + AUTHORITY + "/" + DB_TBL_RESULTS);
+        public static final Uri CONTENT_URI_OUTBOX = Uri.parse("content://" + AUTHORITY + "/" + DB_TBL_OUTBOX);
+        public static final Uri CONTENT_URI_TASKS = Uri.parse("content://" + AUTHORITY + "/" + DB_TBL_TASKS);
+        public static final Uri CONTENT_URI_ASSETS = Uri.parse("content://" + AUTHORITY + "/" + DB_TBL_ASSETS);
         public static final String NAME = "name";
         static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.cognimobile.provider.cognimobile";
         static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.cognimobile.provider.cognimobile";
@@ -105,6 +136,13 @@ public class Provider extends ContentProvider {
         public static final String SYNCED = "synced";
         public static final String DONE = "done";
         public static final String ERASE_TIMESTAMP = "erase_timestamp";
+        public static final String TARGET = "target";
+        public static final String IDEMPOTENCY_KEY = "idempotency_key";
+        public static final String STATUS = "status";
+        public static final String PRIORITY = "priority";
+        public static final String TASK = "task";
+        public static final String POSITION = "position";
+        public static final String ASSET = "asset";
 
     }
 
@@ -117,7 +155,65 @@ public class Provider extends ContentProvider {
                     Cognimobile_Data.SYNCED + " integer default 0," +
                     Cognimobile_Data.ERASE_TIMESTAMP + " real default 0";
 
+    //Sessions waiting to be uploaded, written before any network request. The status is 0 while
+    //pending, or the code of the server if it rejected the row for good. The priority is the
+    //class of the data, see UploadPriority
+    private static final String DB_TBL_OUTBOX_FIELDS =
+            Cognimobile_Data._ID + " integer primary key autoincrement," +
+                    Cognimobile_Data.TIMESTAMP + " real default 0," +
+                    Cognimobile_Data.DEVICE_ID + " text default ''," +
+                    Cognimobile_Data.NAME + " longtext default ''," +
+                    Cognimobile_Data.TARGET + " text default ''," +
+                    Cognimobile_Data.DATA + " longtext default ''," +
+                    Cognimobile_Data.IDEMPOTENCY_KEY + " text unique," +
+                    Cognimobile_Data.STATUS + " integer default 0," +
+                    Cognimobile_Data.PRIORITY + " integer default 0";
+
+    //Tasks of the tests, split from their definition when it is stored, see TestDefinitions. The
+    //name is the one of the test, and the task is its position in the test
+    private static final String DB_TBL_TASKS_FIELDS =
+            Cognimobile_Data._ID + " integer primary key autoincrement," +
+                    Cognimobile_Data.TIMESTAMP + " real default 0," +
+                    Cognimobile_Data.DEVICE_ID + " text default ''," +
+                    Cognimobile_Data.NAME + " longtext default ''," +
+                    Cognimobile_Data.TASK + " integer default 0," +
+                    Cognimobile_Data.DATA + " longtext default ''";
+
+    //Images of the tasks, decoded, in the position given by the definition of their task
+    private static final String DB_TBL_ASSETS_FIELDS =
+            Cognimobile_Data._ID + " integer primary key autoincrement," +
+                    Cognimobile_Data.TIMESTAMP + " real default 0," +
+                    Cognimobile_Data.DEVICE_ID + " text default ''," +
+                    Cognimobile_Data.NAME + " longtext default ''," +
+                    Cognimobile_Data.TASK + " integer default 0," +
+                    Cognimobile_Data.POSITION + " integer default 0," +
+                    Cognimobile_Data.ASSET + " blob";
+
+    //Tables whose rows are deleted once their erase timestamp has passed
+    private static final String[] EXPIRING_TABLES = {
+            DB_TBL_TESTS,
+            DB_TBL_RESULTS
+    };
+
+    public static final String METHOD_EXPIRE = "expire";
+    private static final String WRITE_PERMISSION = "com.aware.WRITE_CONTEXT_DATA";
+
     public static final String[] TABLES_FIELDS = {
+            DB_TBL_TESTS_FIELDS,
+            DB_TBL_RESULTS_FIELDS,
+            DB_TBL_OUTBOX_FIELDS,
+            DB_TBL_TASKS_FIELDS,
+            DB_TBL_ASSETS_FIELDS
+    };
+
+    //Tables synchronised by AWARE, in the same order as their URIs. The outbox, the tasks and
+    //the assets are internal to the app and are not sent
+    public static final String[] SYNCED_TABLES = {
+            DB_TBL_TESTS,
+            DB_TBL_RESULTS
+    };
+
+    public static final String[] SYNCED_TABLES_FIELDS = {
             DB_TBL_TESTS_FIELDS,
             DB_TBL_RESULTS_FIELDS
     };
@@ -127,12 +223,82 @@ public class Provider extends ContentProvider {
     private DatabaseHelper dbHelper;
     private static SQLiteDatabase database;
     private HashMap<String, String> tableMap;
+    //Batch being applied by the current thread, see applyBatch
+    private final ThreadLocal<Batch> batches = new ThreadLocal<>();
+
+    /**
+     * Changes and compiled inserts of a batch of operations.
+     */
+    private static class Batch {
+        private final Set<Uri> changes = new LinkedHashSet<>();
+        private final CompiledInserts inserts;
+
+        /**
+         * Constructor
+         *
+         * @param inserts to be reused by the insertions of the batch.
+         */
+        Batch(CompiledInserts inserts) {
+            this.inserts = inserts;
+        }
+    }
 
     private void initialiseDatabase() {
         if (dbHelper == null)
             dbHelper = new DatabaseHelper(getContext(), DATABASE_NAME, null, DATABASE_VERSION, DATABASE_TABLES, TABLES_FIELDS);
-        if (database == null)
-            database = dbHelper.getWritableDatabase();
+        if (database == null) {
+            SQLiteDatabase opened = dbHelper.getWritableDatabase();
+            //With write-ahead logging the queries read from their own connections, and do not
+            //wait for the writes of the workers. It has to be enabled out of any transaction
+            opened.enableWriteAheadLogging();
+            SchemaMigrations.migrate(opened);
+            database = opened;
+        }
+    }
+
+    /**
+     * Opens a write transaction. It does not lock the database for the readers, which read
+     * the last commit through their own connections, see {@link #initialiseDatabase()}.
+     */
+    private void beginWrite() {
+        database.beginTransactionNonExclusive();
+        QueryMetrics.getInstance().onWriteStarted();
+    }
+
+    /**
+     * Closes the write transaction opened by {@link #beginWrite()}, committing it if it was
+     * marked as successful.
+     */
+    private void endWrite() {
+        try {
+            database.endTransaction();
+        } finally {
+            QueryMetrics.getInstance().onWriteEnded();
+        }
+    }
+
+    /**
+     * Runs the methods that do not fit the table operations. {@link #METHOD_EXPIRE} deletes
+     * the rows whose erase timestamp has passed and reclaims their space, see
+     * {@link DataExpiry}. The caller needs the write permission of the provider.
+     *
+     * @param method to be run.
+     * @param arg    not used.
+     * @param extras not used.
+     * @return the result of the method.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (METHOD_EXPIRE.equals(method)) {
+            Objects.requireNonNull(getContext()).enforceCallingOrSelfPermission(WRITE_PERMISSION, "Expiring the data needs " + WRITE_PERMISSION);
+            initialiseDatabase();
+            Bundle result = DataExpiry.expire(database, EXPIRING_TABLES, System.currentTimeMillis());
+            getContext().getContentResolver().notifyChange(CONTENT_URI_TESTS, null, false);
+            getContext().getContentResolver().notifyChange(CONTENT_URI_RESULTS, null, false);
+            return result;
+        }
+        return super.call(method, arg, extras);
     }
 
 
@@ -154,6 +320,12 @@ public class Provider extends ContentProvider {
         sUriMatcher.addURI(AUTHORITY, DATABASE_TABLES[0]+"/#", TABLE_TESTS_ITEM); //URI for a single record
         sUriMatcher.addURI(AUTHORITY, DATABASE_TABLES[1], TABLE_RESULTS_DIR); //URI for all records
         sUriMatcher.addURI(AUTHORITY, DATABASE_TABLES[1]+"/#", TABLE_RESULTS_ITEM); //URI for a single record
+        sUriMatcher.addURI(AUTHORITY, DATABASE_TABLES[2], TABLE_OUTBOX_DIR); //URI for all records
+        sUriMatcher.addURI(AUTHORITY, DATABASE_TABLES[2]+"/#", TABLE_OUTBOX_ITEM); //URI for a single record
+        sUriMatcher.addURI(AUTHORITY, DATABASE_TABLES[3], TABLE_TASKS_DIR); //URI for all records
+        sUriMatcher.addURI(AUTHORITY, DATABASE_TABLES[3]+"/#", TABLE_TASKS_ITEM); //URI for a single record
+        sUriMatcher.addURI(AUTHORITY, DATABASE_TABLES[4], TABLE_ASSETS_DIR); //URI for all records
+        sUriMatcher.addURI(AUTHORITY, DATABASE_TABLES[4]+"/#", TABLE_ASSETS_ITEM); //URI for a single record
 
 
         tableMap = new HashMap<>();
@@ -164,6 +336,13 @@ public class Provider extends ContentProvider {
         tableMap.put(Cognimobile_Data.DATA, Cognimobile_Data.DATA);
         tableMap.put(Cognimobile_Data.SYNCED, Cognimobile_Data.SYNCED);
         tableMap.put(Cognimobile_Data.ERASE_TIMESTAMP, Cognimobile_Data.ERASE_TIMESTAMP);
+        tableMap.put(Cognimobile_Data.TARGET, Cognimobile_Data.TARGET);
+        tableMap.put(Cognimobile_Data.IDEMPOTENCY_KEY, Cognimobile_Data.IDEMPOTENCY_KEY);
+        tableMap.put(Cognimobile_Data.STATUS, Cognimobile_Data.STATUS);
+        tableMap.put(Cognimobile_Data.PRIORITY, Cognimobile_Data.PRIORITY);
+        tableMap.put(Cognimobile_Data.TASK, Cognimobile_Data.TASK);
+        tableMap.put(Cognimobile_Data.POSITION, Cognimobile_Data.POSITION);
+        tableMap.put(Cognimobile_Data.ASSET, Cognimobile_Data.ASSET);
 
         return true; //let Android know that the database is ready to be used.
     }
@@ -182,13 +361,30 @@ public class Provider extends ContentProvider {
             case TABLE_RESULTS_DIR:
                 queryConfiguration(DATABASE_TABLES[1],qb);
                 break;
+            case TABLE_OUTBOX_DIR:
+                queryConfiguration(DATABASE_TABLES[2],qb);
+                break;
+            case TABLE_TASKS_DIR:
+                queryConfiguration(DATABASE_TABLES[3],qb);
+                break;
+            case TABLE_ASSETS_DIR:
+                queryConfiguration(DATABASE_TABLES[4],qb);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         //Don't change me
         try {
-            Cursor c = qb.query(database, projection, selection, selectionArgs,
-                    null, null, sortOrder);
+            QueryMetrics metrics = QueryMetrics.getInstance();
+            boolean duringWrite = metrics.isWriting();
+            long start = System.nanoTime();
+            //The query runs when its first rows are read, after getting a free connection
+            Cursor c = new QueryMetrics.TimedCursor(qb.query(database, projection, selection, selectionArgs,
+                    null, null, sortOrder), metrics.forTable(qb.getTables()), start, duringWrite);
+            int dataColumn = c.getColumnIndex(Cognimobile_Data.DATA);
+            if (isCompressed(qb.getTables()) && dataColumn >= 0) {
+                c = new CompressedData.DecompressingCursor(c, dataColumn);
+            }
             c.setNotificationUri(Objects.requireNonNull(getContext()).getContentResolver(), uri);
             return c;
         } catch (IllegalStateException e) {
@@ -201,15 +397,82 @@ public class Provider extends ContentProvider {
         qb.setProjectionMap(tableMap); //the hashmap of the table
     }
 
+    /**
+     * Checks if the data of a table could be stored compressed, see {@link CompressedData}.
+     *
+     * @param databaseTable to be checked.
+     * @return true for the tests and the results.
+     */
+    private static boolean isCompressed(String databaseTable) {
+        return DB_TBL_TESTS.equals(databaseTable) || DB_TBL_RESULTS.equals(databaseTable);
+    }
+
+    /**
+     * Opens the data of a test or a result as a stream of UTF-8 text, decompressed while it
+     * is read, so the caller never holds the whole text. It is read with
+     * {@link ContentResolver#openInputStream} on the URI of the row, for example
+     * {@link ContentUris#withAppendedId}({@link #CONTENT_URI_RESULTS}, id).
+     *
+     * @param uri  of the row.
+     * @param mode only "r" is supported.
+     * @return the read end of a pipe written from a background thread.
+     * @throws FileNotFoundException in case that the URI is not a test or a result that exists,
+     *                               or the mode is not "r".
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        String table;
+        switch (sUriMatcher.match(uri)) {
+            case TABLE_TESTS_ITEM:
+                table = DB_TBL_TESTS;
+                break;
+            case TABLE_RESULTS_ITEM:
+                table = DB_TBL_RESULTS;
+                break;
+            default:
+                throw new FileNotFoundException("No data to be read from " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("The data of " + uri + " can only be read");
+        }
+
+        initialiseDatabase();
+
+        InputStream data;
+        try (Cursor cursor = database.query(table, new String[]{Cognimobile_Data.DATA}, Cognimobile_Data._ID + " = ?",
+                new String[]{Long.toString(ContentUris.parseId(uri))}, null, null, null)) {
+            if (!cursor.moveToFirst()) {
+                throw new FileNotFoundException("Nothing stored at " + uri);
+            }
+            data = CompressedData.openStream(cursor, 0);
+        }
+
+        return openPipeHelper(uri, Cognimobile_Data.CONTENT_ITEM_TYPE, null, data, (output, pipeUri, mimeType, opts, in) -> {
+            try (OutputStream out = new FileOutputStream(output.getFileDescriptor())) {
+                CompressedData.copy(in, out);
+            } catch (IOException e) {
+                //The reader has closed its end
+                e.printStackTrace();
+            }
+        });
+    }
+
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
         switch (sUriMatcher.match(uri)) {
             case TABLE_TESTS_DIR:
             case TABLE_RESULTS_DIR:
+            case TABLE_OUTBOX_DIR:
+            case TABLE_TASKS_DIR:
+            case TABLE_ASSETS_DIR:
                 return Cognimobile_Data.CONTENT_TYPE;
             case TABLE_TESTS_ITEM:
             case TABLE_RESULTS_ITEM:
+            case TABLE_OUTBOX_ITEM:
+            case TABLE_TASKS_ITEM:
+            case TABLE_ASSETS_ITEM:
                 return Cognimobile_Data.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -225,7 +488,6 @@ public class Provider extends ContentProvider {
         ContentValues values = (initialValues != null) ? new ContentValues(initialValues) : new ContentValues();
 
         Uri returnValue;
-        database.beginTransaction();
         switch (sUriMatcher.match(uri)) {
             case TABLE_TESTS_DIR:
                 returnValue = insertTransaction(uri, DATABASE_TABLES[0], values);
@@ -233,6 +495,15 @@ public class Provider extends ContentProvider {
             case TABLE_RESULTS_DIR:
                 returnValue = insertTransaction(uri, DATABASE_TABLES[1], values);
                 break;
+            case TABLE_OUTBOX_DIR:
+                returnValue = insertTransaction(uri, DATABASE_TABLES[2], values);
+                break;
+            case TABLE_TASKS_DIR:
+                returnValue = insertTransaction(uri, DATABASE_TABLES[3], values);
+                break;
+            case TABLE_ASSETS_DIR:
+                returnValue = insertTransaction(uri, DATABASE_TABLES[4], values);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -240,10 +511,38 @@ public class Provider extends ContentProvider {
         return returnValue;
     }
 
+    /**
+     * Inserts a row in its own transaction. The tasks of a test are stored in the same
+     * transaction, see {@link TestDefinitions}, and the data of the tests and the results is
+     * compressed, see {@link CompressedData}.
+     *
+     * @param uri           of the table.
+     * @param databaseTable where the row is inserted.
+     * @param values        of the row.
+     * @return the URI of the new row.
+     * @throws SQLException in case that the row could not be inserted, nothing is stored.
+     */
     private Uri insertTransaction(Uri uri, String databaseTable, ContentValues values) {
-        long id = database.insert(databaseTable, Cognimobile_Data.DEVICE_ID, values);
-        database.setTransactionSuccessful();
-        database.endTransaction();
+        Batch batch = batches.get();
+        long id;
+        beginWrite();
+        try {
+            if (databaseTable.equals(DB_TBL_TESTS)) {
+                values = TestDefinitions.storeTasks(database, values);
+            }
+            if (isCompressed(databaseTable)) {
+                values = CompressedData.compress(values);
+            }
+            id = batch != null
+                    ? batch.inserts.insert(databaseTable, values)
+                    : database.insert(databaseTable, Cognimobile_Data.DEVICE_ID, values);
+            //Without the row, like a test whose name is already stored, its tasks are rolled back
+            if (id > 0) {
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            endWrite();
+        }
         if (id > 0) {
             Uri dataUri;
             List<String> segments = uri.getPathSegments();
@@ -251,22 +550,156 @@ public class Provider extends ContentProvider {
                 dataUri = ContentUris.withAppendedId(Cognimobile_Data.CONTENT_URI_TESTS, id);
             } else if (segments.get(segments.size() - 1).equals(DB_TBL_RESULTS)) {
                 dataUri = ContentUris.withAppendedId(Cognimobile_Data.CONTENT_URI_RESULTS, id);
+            } else if (segments.get(segments.size() - 1).equals(DB_TBL_OUTBOX)) {
+                dataUri = ContentUris.withAppendedId(Cognimobile_Data.CONTENT_URI_OUTBOX, id);
+            } else if (segments.get(segments.size() - 1).equals(DB_TBL_TASKS)) {
+                dataUri = ContentUris.withAppendedId(Cognimobile_Data.CONTENT_URI_TASKS, id);
+            } else if (segments.get(segments.size() - 1).equals(DB_TBL_ASSETS)) {
+                dataUri = ContentUris.withAppendedId(Cognimobile_Data.CONTENT_URI_ASSETS, id);
             } else {
                 throw new RuntimeException("PETO EN PROVIDER.java:244");
             }
 
-            Objects.requireNonNull(getContext()).getContentResolver().notifyChange(dataUri, null, false);
+            //A batch notifies the whole table once, instead of every new row
+            notifyChange(batch != null ? uri : dataUri);
             return dataUri;
         }
         throw new SQLException("Failed to insert row into " + uri);
     }
 
 
+    /**
+     * Inserts many rows in a single transaction with a single change notification, reusing
+     * the compiled statement of the insertion, see {@link CompiledInserts}.
+     * Tests are keyed by their name: a test that is already stored gets its data replaced,
+     * keeping its progress, instead of being duplicated. Their tasks are split from their
+     * definition, see {@link TestDefinitions}.
+     *
+     * @param uri    of the table.
+     * @param values rows to be inserted.
+     * @return number of new rows.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        initialiseDatabase();
+
+        String table;
+        switch (sUriMatcher.match(uri)) {
+            case TABLE_TESTS_DIR:
+                table = DATABASE_TABLES[0];
+                break;
+            case TABLE_RESULTS_DIR:
+                table = DATABASE_TABLES[1];
+                break;
+            case TABLE_OUTBOX_DIR:
+                table = DATABASE_TABLES[2];
+                break;
+            case TABLE_TASKS_DIR:
+                table = DATABASE_TABLES[3];
+                break;
+            case TABLE_ASSETS_DIR:
+                table = DATABASE_TABLES[4];
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        int inserted = 0;
+        beginWrite();
+        try (CompiledInserts inserts = new CompiledInserts(database)) {
+            for (ContentValues value : values) {
+                if (table.equals(DB_TBL_TESTS)) {
+                    value = CompressedData.compress(TestDefinitions.storeTasks(database, value));
+                    if (updateTestByName(value)) {
+                        continue;
+                    }
+                } else if (table.equals(DB_TBL_RESULTS)) {
+                    value = CompressedData.compress(value);
+                }
+                if (inserts.insert(table, value) > 0) {
+                    ++inserted;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            endWrite();
+        }
+
+        notifyChange(uri);
+        return inserted;
+    }
+
+    /**
+     * Applies a batch of operations in a single transaction: all of them are applied or none.
+     * The insertions reuse their compiled statements, and every URI changed is notified once,
+     * after the transaction has been committed.
+     *
+     * @param operations to be applied.
+     * @return the results of the operations.
+     * @throws OperationApplicationException in case that an operation fails, nothing is applied.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        initialiseDatabase();
+
+        ContentProviderResult[] results;
+        Batch batch = new Batch(new CompiledInserts(database));
+        batches.set(batch);
+        beginWrite();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            batches.remove();
+            batch.inserts.close();
+            endWrite();
+        }
+
+        for (Uri uri : batch.changes) {
+            Objects.requireNonNull(getContext()).getContentResolver().notifyChange(uri, null, false);
+        }
+        return results;
+    }
+
+    /**
+     * Notifies a change of the data, or keeps it until the end of the batch being applied.
+     *
+     * @param uri of the data changed.
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = batches.get();
+        if (batch != null) {
+            batch.changes.add(uri);
+        } else {
+            Objects.requireNonNull(getContext()).getContentResolver().notifyChange(uri, null, false);
+        }
+    }
+
+    /**
+     * Replaces the stored test with the same name. SQLite only supports ON CONFLICT upserts
+     * from 3.24, newer than the one shipped with the minimum API level, so it is done as an
+     * update followed by an insertion when nothing was updated.
+     *
+     * @param value row of the test.
+     * @return true if the test was already stored.
+     */
+    private boolean updateTestByName(ContentValues value) {
+        String name = value.getAsString(Cognimobile_Data.NAME);
+        if (name == null) {
+            return false;
+        }
+
+        ContentValues changes = new ContentValues(value);
+        changes.remove(Cognimobile_Data.NAME);
+        return database.update(DB_TBL_TESTS, changes, Cognimobile_Data.NAME + " = ?", new String[]{name}) > 0;
+    }
+
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
         initialiseDatabase();
 
-        database.beginTransaction();
+        beginWrite();
 
         int count;
 
@@ -277,15 +710,24 @@ public class Provider extends ContentProvider {
             case TABLE_RESULTS_DIR:
                 count = database.delete(DATABASE_TABLES[1], selection, selectionArgs);
                 break;
+            case TABLE_OUTBOX_DIR:
+                count = database.delete(DATABASE_TABLES[2], selection, selectionArgs);
+                break;
+            case TABLE_TASKS_DIR:
+                count = database.delete(DATABASE_TABLES[3], selection, selectionArgs);
+                break;
+            case TABLE_ASSETS_DIR:
+                count = database.delete(DATABASE_TABLES[4], selection, selectionArgs);
+                break;
             default:
-                database.endTransaction();
+                endWrite();
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         database.setTransactionSuccessful();
-        database.endTransaction();
+        endWrite();
 
-        Objects.requireNonNull(getContext()).getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return count;
     }
 
@@ -294,26 +736,35 @@ public class Provider extends ContentProvider {
 
         initialiseDatabase();
 
-        database.beginTransaction();
+        beginWrite();
 
         int count;
         switch (sUriMatcher.match(uri)) {
             case TABLE_TESTS_DIR:
-                count = database.update(DATABASE_TABLES[0], values, selection, selectionArgs);
+                count = database.update(DATABASE_TABLES[0], CompressedData.compress(values), selection, selectionArgs);
                 break;
             case TABLE_RESULTS_DIR:
-                count = database.update(DATABASE_TABLES[1], values, selection, selectionArgs);
+                count = database.update(DATABASE_TABLES[1], CompressedData.compress(values), selection, selectionArgs);
+                break;
+            case TABLE_OUTBOX_DIR:
+                count = database.update(DATABASE_TABLES[2], values, selection, selectionArgs);
+                break;
+            case TABLE_TASKS_DIR:
+                count = database.update(DATABASE_TABLES[3], values, selection, selectionArgs);
+                break;
+            case TABLE_ASSETS_DIR:
+                count = database.update(DATABASE_TABLES[4], values, selection, selectionArgs);
                 break;
             default:
-                database.endTransaction();
+                endWrite();
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
 
         database.setTransactionSuccessful();
-        database.endTransaction();
+        endWrite();
 
-        Objects.requireNonNull(getContext()).getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
 
         return count;
     }
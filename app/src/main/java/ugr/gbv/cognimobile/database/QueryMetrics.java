@@ -0,0 +1,384 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.Context;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class to measure how long the queries of {@link Provider} wait, per table, to find out if
+ * the screens are blocked by the writes of the workers.
+ * The time of a query goes from the call until its first rows are read, which includes
+ * waiting for a free connection of the database, and it is recorded by a {@link TimedCursor}
+ * when the caller reads them, so the query is not run just to be timed. The queries made
+ * while a write transaction is open are counted apart, so the difference between both
+ * latencies is the contention.
+ * Every counter is a {@link LongAdder}, like in
+ * {@link ugr.gbv.cognimobile.utilities.NetworkMetrics}, so recording never takes a lock.
+ */
+public class QueryMetrics {
+
+    public static final String DUMP_FILE_NAME = "query_metrics.json";
+
+    private static final long[] LATENCY_BOUNDS_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000};
+
+    private static volatile QueryMetrics instantiated;
+
+    private final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<>();
+    private final AtomicInteger openWrites = new AtomicInteger();
+    private volatile long since = System.currentTimeMillis();
+
+    /**
+     * Private constructor "singleton" pattern
+     */
+    private QueryMetrics() {
+
+        if (instantiated != null) {
+            throw new RuntimeException("Use getInstance() method to get the single instance of this class.");
+        }
+    }
+
+    /**
+     * Static method to get the single instance
+     *
+     * @return the single instance of the class
+     */
+    public static QueryMetrics getInstance() {
+        if (instantiated == null) {
+            synchronized (QueryMetrics.class) {
+                if (instantiated == null) {
+                    instantiated = new QueryMetrics();
+                }
+            }
+        }
+        return instantiated;
+    }
+
+    /**
+     * Records that a write transaction has been opened.
+     */
+    void onWriteStarted() {
+        openWrites.incrementAndGet();
+    }
+
+    /**
+     * Records that a write transaction has been closed, committed or not.
+     */
+    void onWriteEnded() {
+        openWrites.decrementAndGet();
+    }
+
+    /**
+     * Checks if there is a write transaction open in any thread.
+     *
+     * @return true if a write is in progress.
+     */
+    public boolean isWriting() {
+        return openWrites.get() > 0;
+    }
+
+    /**
+     * Gets the counters of a table.
+     *
+     * @param name of the table.
+     * @return the counters of the table.
+     */
+    public Table forTable(String name) {
+        Table table = tables.get(name);
+        if (table == null) {
+            table = tables.computeIfAbsent(name, key -> new Table());
+        }
+        return table;
+    }
+
+    /**
+     * Removes every counter.
+     */
+    public void reset() {
+        tables.clear();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the counters of every table as json.
+     *
+     * @return the counters, with the time they started to be counted.
+     * @throws JSONException in case that the json could not be built.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("since", since);
+        json.put("generated", System.currentTimeMillis());
+
+        JSONObject tablesJson = new JSONObject();
+        for (Map.Entry<String, Table> entry : new TreeMap<>(tables).entrySet()) {
+            tablesJson.put(entry.getKey(), entry.getValue().toJson());
+        }
+        json.put("tables", tablesJson);
+
+        return json;
+    }
+
+    /**
+     * Writes the counters of every table into a file of the app.
+     *
+     * @param context Context required to get the files directory
+     * @return the written file.
+     * @throws IOException   in case that the file could not be written.
+     * @throws JSONException in case that the json could not be built.
+     */
+    public File dump(Context context) throws IOException, JSONException {
+        File file = new File(context.getFilesDir(), DUMP_FILE_NAME);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(toJson().toString(2));
+        }
+        return file;
+    }
+
+    /**
+     * Gets the bucket of the latency histogram of a duration.
+     *
+     * @param millis duration of the query.
+     * @return the index of the bucket.
+     */
+    static int latencyBucket(long millis) {
+        for (int i = 0; i < LATENCY_BOUNDS_MILLIS.length; ++i) {
+            if (millis <= LATENCY_BOUNDS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BOUNDS_MILLIS.length;
+    }
+
+    /**
+     * Gets the label of a bucket of the latency histogram.
+     *
+     * @param bucket index of the bucket.
+     * @return the label, the upper bound of the bucket.
+     */
+    static String latencyLabel(int bucket) {
+        return bucket < LATENCY_BOUNDS_MILLIS.length
+                ? "<=" + LATENCY_BOUNDS_MILLIS[bucket]
+                : ">" + LATENCY_BOUNDS_MILLIS[LATENCY_BOUNDS_MILLIS.length - 1];
+    }
+
+    /**
+     * Counters of the queries of a table, with or without a write in progress.
+     */
+    public static class Table {
+        private final Latency idle = new Latency();
+        private final Latency duringWrites = new Latency();
+
+        /**
+         * Constructor
+         */
+        Table() {
+        }
+
+        /**
+         * Records a query.
+         *
+         * @param elapsedNanos since the query was called until its first rows were read.
+         * @param duringWrite  if a write transaction was open when it was called.
+         */
+        public void onQuery(long elapsedNanos, boolean duringWrite) {
+            (duringWrite ? duringWrites : idle).onQuery(elapsedNanos);
+        }
+
+        /**
+         * Gets the number of queries.
+         *
+         * @return the number of queries, with or without a write in progress.
+         */
+        public long getQueries() {
+            return idle.queries.sum() + duringWrites.queries.sum();
+        }
+
+        /**
+         * Gets the number of queries made while a write was in progress.
+         *
+         * @return the number of queries.
+         */
+        public long getQueriesDuringWrites() {
+            return duringWrites.queries.sum();
+        }
+
+        /**
+         * Gets the counters as json.
+         *
+         * @return the counters.
+         * @throws JSONException in case that the json could not be built.
+         */
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("queries", getQueries());
+            json.put("idle", idle.toJson());
+            json.put("during_writes", duringWrites.toJson());
+            return json;
+        }
+    }
+
+    /**
+     * Latency histogram of some queries.
+     */
+    private static class Latency {
+        private final LongAdder queries = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BOUNDS_MILLIS.length + 1];
+
+        /**
+         * Constructor
+         */
+        Latency() {
+            for (int i = 0; i < buckets.length; ++i) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Adds a query to the histogram.
+         *
+         * @param elapsedNanos duration of the query.
+         */
+        void onQuery(long elapsedNanos) {
+            queries.increment();
+            sumMicros.add(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+            buckets[latencyBucket(TimeUnit.NANOSECONDS.toMillis(elapsedNanos))].increment();
+        }
+
+        /**
+         * Gets the counters as json.
+         *
+         * @return the counters.
+         * @throws JSONException in case that the json could not be built.
+         */
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            long total = queries.sum();
+            long sum = sumMicros.sum();
+            json.put("queries", total);
+            json.put("sum_us", sum);
+            json.put("mean_us", total > 0 ? sum / total : 0);
+
+            JSONObject bucketsJson = new JSONObject();
+            for (int i = 0; i < buckets.length; ++i) {
+                long count = buckets[i].sum();
+                if (count > 0) {
+                    bucketsJson.put(latencyLabel(i), count);
+                }
+            }
+            json.put("buckets", bucketsJson);
+            return json;
+        }
+    }
+
+    /**
+     * Cursor that records its query in a table the first time its rows are read, when the
+     * query actually runs and fills its first window. A cursor that is never read is not
+     * recorded.
+     */
+    static class TimedCursor extends CrossProcessCursorWrapper {
+        private final Table table;
+        private final long startNanos;
+        private final boolean duringWrite;
+        private boolean recorded;
+
+        /**
+         * Constructor
+         *
+         * @param cursor      returned by the query, not read yet.
+         * @param table       counters of the queried table.
+         * @param startNanos  when the query was called, from {@link System#nanoTime()}.
+         * @param duringWrite if a write transaction was open when it was called.
+         */
+        TimedCursor(Cursor cursor, Table table, long startNanos, boolean duringWrite) {
+            super(cursor);
+            this.table = table;
+            this.startNanos = startNanos;
+            this.duringWrite = duringWrite;
+        }
+
+        /**
+         * Records the query the first time it is called. Counting the rows fills the first
+         * window, which the read being made would do anyway.
+         */
+        private void onRead() {
+            if (!recorded) {
+                recorded = true;
+                super.getCount();
+                table.onQuery(System.nanoTime() - startNanos, duringWrite);
+            }
+        }
+
+        @Override
+        public int getCount() {
+            onRead();
+            return super.getCount();
+        }
+
+        @Override
+        public boolean move(int offset) {
+            onRead();
+            return super.move(offset);
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            onRead();
+            return super.moveToPosition(position);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            onRead();
+            return super.moveToFirst();
+        }
+
+        @Override
+        public boolean moveToLast() {
+            onRead();
+            return super.moveToLast();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            onRead();
+            return super.moveToNext();
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            onRead();
+            return super.moveToPrevious();
+        }
+
+        @Override
+        public CursorWindow getWindow() {
+            onRead();
+            return super.getWindow();
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            onRead();
+            super.fillWindow(position, window);
+        }
+    }
+}
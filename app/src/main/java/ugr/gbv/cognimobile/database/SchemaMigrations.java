@@ -0,0 +1,202 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Class to keep the schema of the local database up to date on top of the AWARE
+ * {@link com.aware.utils.DatabaseHelper}. The helper creates the tables and, when
+ * {@link Provider#DATABASE_VERSION} changes, rebuilds them with their new columns keeping the
+ * data, but it knows nothing about indexes or constraints, and it drops them on every rebuild.
+ * The migrations here change the data, run once each in order and are recorded in their own
+ * table. The indexes, including the one that keeps the name of the tests unique, and the
+ * triggers are created every time the database is opened, as they could have been dropped by
+ * the helper.
+ */
+public class SchemaMigrations {
+
+    public static final int SCHEMA_VERSION = 4;
+
+    private static final String DB_TBL_MIGRATIONS = "schema_migrations";
+    private static final String VERSION = "version";
+
+    //Name, table, columns and uniqueness of every index
+    private static final String[][] INDEXES = {
+            {"tests_name", Provider.DB_TBL_TESTS, Provider.Cognimobile_Data.NAME, "UNIQUE "},
+            {"tests_done", Provider.DB_TBL_TESTS, Provider.Cognimobile_Data.DONE, ""},
+            {"tests_erase_timestamp", Provider.DB_TBL_TESTS, Provider.Cognimobile_Data.ERASE_TIMESTAMP, ""},
+            {"results_synced", Provider.DB_TBL_RESULTS, Provider.Cognimobile_Data.SYNCED, ""},
+            {"results_erase_timestamp", Provider.DB_TBL_RESULTS, Provider.Cognimobile_Data.ERASE_TIMESTAMP, ""},
+            {"outbox_status_priority", Provider.DB_TBL_OUTBOX, Provider.Cognimobile_Data.STATUS + ","
+                    + Provider.Cognimobile_Data.PRIORITY + "," + Provider.Cognimobile_Data.TARGET, ""},
+            {"test_tasks_name_task", Provider.DB_TBL_TASKS, Provider.Cognimobile_Data.NAME + ","
+                    + Provider.Cognimobile_Data.TASK, ""},
+            {"test_assets_name_task", Provider.DB_TBL_ASSETS, Provider.Cognimobile_Data.NAME + ","
+                    + Provider.Cognimobile_Data.TASK + "," + Provider.Cognimobile_Data.POSITION, ""}
+    };
+
+    //The tasks and assets of a test are deleted with it
+    private static final String TESTS_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS tests_delete_tasks AFTER DELETE ON "
+            + Provider.DB_TBL_TESTS + " BEGIN"
+            + " DELETE FROM " + Provider.DB_TBL_TASKS + " WHERE " + Provider.Cognimobile_Data.NAME + " = OLD." + Provider.Cognimobile_Data.NAME + ";"
+            + " DELETE FROM " + Provider.DB_TBL_ASSETS + " WHERE " + Provider.Cognimobile_Data.NAME + " = OLD." + Provider.Cognimobile_Data.NAME + ";"
+            + " END";
+
+    /**
+     * Migration of the data from the previous schema version.
+     */
+    interface Migration {
+        /**
+         * Migrates the data, inside a transaction.
+         *
+         * @param database to be migrated.
+         */
+        void migrate(SQLiteDatabase database);
+    }
+
+    //The migration at position i takes the schema from version i + 1 to version i + 2
+    private static final Migration[] MIGRATIONS = {
+            SchemaMigrations::removeDuplicatedTests,
+            SchemaMigrations::splitStoredTests,
+            SchemaMigrations::compressStoredData
+    };
+
+    /**
+     * Runs the migrations that are pending and creates the missing indexes and triggers.
+     *
+     * @param database opened by the helper, not in a transaction.
+     */
+    public static void migrate(SQLiteDatabase database) {
+        database.execSQL("CREATE TABLE IF NOT EXISTS " + DB_TBL_MIGRATIONS + " ("
+                + VERSION + " integer primary key," + Provider.Cognimobile_Data.TIMESTAMP + " real default 0)");
+
+        for (int version = getVersion(database); version < SCHEMA_VERSION; ++version) {
+            database.beginTransaction();
+            try {
+                MIGRATIONS[version - 1].migrate(database);
+
+                ContentValues applied = new ContentValues();
+                applied.put(VERSION, version + 1);
+                applied.put(Provider.Cognimobile_Data.TIMESTAMP, System.currentTimeMillis());
+                database.insertOrThrow(DB_TBL_MIGRATIONS, null, applied);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        createIndexes(database);
+        database.execSQL(TESTS_DELETE_TRIGGER);
+    }
+
+    /**
+     * Gets the schema version of the database, 1 if no migration has run yet.
+     *
+     * @param database to be checked.
+     * @return the version.
+     */
+    static int getVersion(SQLiteDatabase database) {
+        return (int) Math.max(1, DatabaseUtils.longForQuery(database,
+                "SELECT IFNULL(MAX(" + VERSION + "), 1) FROM " + DB_TBL_MIGRATIONS, null));
+    }
+
+    /**
+     * Creates the indexes that do not exist.
+     *
+     * @param database where the tables are.
+     */
+    private static void createIndexes(SQLiteDatabase database) {
+        for (String[] index : INDEXES) {
+            database.execSQL("CREATE " + index[3] + "INDEX IF NOT EXISTS " + index[0]
+                    + " ON " + index[1] + "(" + index[2] + ")");
+        }
+    }
+
+    /**
+     * Version 2: removes the tests stored more than once with the same name by the previous
+     * versions, keeping the last one, so the name could be unique.
+     *
+     * @param database to be migrated.
+     */
+    private static void removeDuplicatedTests(SQLiteDatabase database) {
+        database.delete(Provider.DB_TBL_TESTS, Provider.Cognimobile_Data._ID + " NOT IN (SELECT MAX("
+                + Provider.Cognimobile_Data._ID + ") FROM " + Provider.DB_TBL_TESTS
+                + " GROUP BY " + Provider.Cognimobile_Data.NAME + ")", null);
+    }
+
+    /**
+     * Version 3: splits the tests stored with their whole definition into a header, their tasks
+     * and their images, see {@link TestDefinitions}. They are read one by one, as a definition
+     * could be large.
+     *
+     * @param database to be migrated.
+     */
+    private static void splitStoredTests(SQLiteDatabase database) {
+        String[] columns = {Provider.Cognimobile_Data.NAME, Provider.Cognimobile_Data.DATA, Provider.Cognimobile_Data.DEVICE_ID};
+        String where = Provider.Cognimobile_Data._ID + " = ?";
+
+        Cursor ids = database.query(Provider.DB_TBL_TESTS, new String[]{Provider.Cognimobile_Data._ID},
+                null, null, null, null, null);
+        long[] testIds = new long[ids.getCount()];
+        for (int i = 0; ids.moveToNext(); ++i) {
+            testIds[i] = ids.getLong(0);
+        }
+        ids.close();
+
+        for (long id : testIds) {
+            String[] whereArgs = {Long.toString(id)};
+            Cursor test = database.query(Provider.DB_TBL_TESTS, columns, where, whereArgs, null, null, null);
+            ContentValues values = new ContentValues();
+            if (test.moveToFirst()) {
+                DatabaseUtils.cursorRowToContentValues(test, values);
+            }
+            test.close();
+
+            ContentValues header = TestDefinitions.storeTasks(database, values);
+            if (header != values) {
+                ContentValues changes = new ContentValues();
+                changes.put(Provider.Cognimobile_Data.DATA, header.getAsString(Provider.Cognimobile_Data.DATA));
+                database.update(Provider.DB_TBL_TESTS, changes, where, whereArgs);
+            }
+        }
+    }
+
+    /**
+     * Version 4: compresses the data of the tests and the results stored as text, see
+     * {@link CompressedData}. Like in version 3, the rows are read one by one.
+     *
+     * @param database to be migrated.
+     */
+    private static void compressStoredData(SQLiteDatabase database) {
+        String[] columns = {Provider.Cognimobile_Data.DATA};
+        String where = Provider.Cognimobile_Data._ID + " = ?";
+
+        for (String table : new String[]{Provider.DB_TBL_TESTS, Provider.DB_TBL_RESULTS}) {
+            Cursor ids = database.query(table, new String[]{Provider.Cognimobile_Data._ID},
+                    "typeof(" + Provider.Cognimobile_Data.DATA + ") = 'text' AND length(" + Provider.Cognimobile_Data.DATA + ") >= "
+                            + CompressedData.MIN_COMPRESSED_CHARS, null, null, null, null);
+            long[] rowIds = new long[ids.getCount()];
+            for (int i = 0; ids.moveToNext(); ++i) {
+                rowIds[i] = ids.getLong(0);
+            }
+            ids.close();
+
+            for (long id : rowIds) {
+                String[] whereArgs = {Long.toString(id)};
+                Cursor row = database.query(table, columns, where, whereArgs, null, null, null);
+                ContentValues values = new ContentValues();
+                if (row.moveToFirst()) {
+                    DatabaseUtils.cursorRowToContentValues(row, values);
+                }
+                row.close();
+
+                ContentValues compressed = CompressedData.compress(values);
+                if (compressed != values) {
+                    database.update(table, compressed, where, whereArgs);
+                }
+            }
+        }
+    }
+}
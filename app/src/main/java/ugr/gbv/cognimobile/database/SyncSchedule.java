@@ -0,0 +1,143 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.concurrent.TimeUnit;
+
+import ugr.gbv.cognimobile.R;
+
+/**
+ * Class to store when every synchronization task is due, so the periodic wake-up only runs the
+ * tasks that have something to do.
+ * The download interval grows exponentially while the server has no new tests and goes back
+ * to the base interval as soon as it has.
+ */
+public class SyncSchedule {
+
+    private static final String PREFERENCES_NAME = "cognimobile_sync_schedule";
+    private static final String NEXT_DOWNLOAD = "next_download";
+    private static final String DOWNLOAD_INTERVAL = "download_interval";
+    private static final String NEXT_CLEANUP = "next_cleanup";
+    private static final String UPLOAD_DEFERRED_SINCE = "upload_deferred_since";
+
+    /**
+     * Checks if the tests should be downloaded.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     * @param now     current time in milliseconds.
+     * @return true if the download is due.
+     */
+    public static boolean isDownloadDue(Context context, long now) {
+        return getPreferences(context).getLong(NEXT_DOWNLOAD, 0) <= now;
+    }
+
+    /**
+     * Schedules the next download after a successful one. The interval is reset to the base one
+     * if new tests were found, otherwise it is doubled up to the maximum.
+     *
+     * @param context  Context required for the {@link SharedPreferences}
+     * @param newTests true if the download found new tests.
+     * @param now      current time in milliseconds.
+     */
+    public static void onDownloadFinished(Context context, boolean newTests, long now) {
+        SharedPreferences sp = getPreferences(context);
+        long base = TimeUnit.MINUTES.toMillis(context.getResources().getInteger(R.integer.fifteen));
+        long max = TimeUnit.MINUTES.toMillis(context.getResources().getInteger(R.integer.download_max_interval_minutes));
+
+        long interval = nextDownloadInterval(sp.getLong(DOWNLOAD_INTERVAL, 0), base, max, newTests);
+
+        sp.edit()
+                .putLong(DOWNLOAD_INTERVAL, interval)
+                .putLong(NEXT_DOWNLOAD, now + interval)
+                .apply();
+    }
+
+    /**
+     * Computes the interval until the next download.
+     *
+     * @param current  interval used until now, 0 if there was none.
+     * @param base     interval when there are new tests.
+     * @param max      longest interval.
+     * @param newTests true if the last download found new tests.
+     * @return the next interval.
+     */
+    public static long nextDownloadInterval(long current, long base, long max, boolean newTests) {
+        if (newTests || current < base) {
+            return base;
+        }
+        return Math.min(max, current * 2);
+    }
+
+    /**
+     * Checks if the old data should be deleted.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     * @param now     current time in milliseconds.
+     * @return true if the cleanup is due.
+     */
+    public static boolean isCleanupDue(Context context, long now) {
+        return getPreferences(context).getLong(NEXT_CLEANUP, 0) <= now;
+    }
+
+    /**
+     * Schedules the next cleanup.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     * @param now     current time in milliseconds.
+     */
+    public static void onCleanupScheduled(Context context, long now) {
+        long interval = TimeUnit.DAYS.toMillis(context.getResources().getInteger(R.integer.thirty));
+        getPreferences(context).edit().putLong(NEXT_CLEANUP, now + interval).apply();
+    }
+
+    /**
+     * Checks if a large upload has waited too long for an unmetered network. The first time it
+     * is called for a pending upload the wait starts.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     * @param now     current time in milliseconds.
+     * @return true if the upload should use any network.
+     */
+    public static boolean hasUnmeteredWaitExpired(Context context, long now) {
+        SharedPreferences sp = getPreferences(context);
+        long since = sp.getLong(UPLOAD_DEFERRED_SINCE, 0);
+        if (since == 0) {
+            sp.edit().putLong(UPLOAD_DEFERRED_SINCE, now).apply();
+            return false;
+        }
+        long maxWait = TimeUnit.HOURS.toMillis(context.getResources().getInteger(R.integer.unmetered_max_wait_hours));
+        return now - since >= maxWait;
+    }
+
+    /**
+     * Ends the wait for an unmetered network, once there is nothing large pending.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     */
+    public static void onUploadNotDeferred(Context context) {
+        SharedPreferences sp = getPreferences(context);
+        if (sp.contains(UPLOAD_DEFERRED_SINCE)) {
+            sp.edit().remove(UPLOAD_DEFERRED_SINCE).apply();
+        }
+    }
+
+    /**
+     * Removes the schedule, every task is due in the next wake-up.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     */
+    public static void clear(Context context) {
+        getPreferences(context).edit().clear().apply();
+    }
+
+    /**
+     * Gets the preferences file of the schedule.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     * @return the preferences.
+     */
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
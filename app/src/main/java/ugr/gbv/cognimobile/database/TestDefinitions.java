@@ -0,0 +1,168 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to store the definition of a test split in parts, so a session loads only what it is
+ * about to show. The row of the test keeps a header with the name, the language, whether to
+ * display the help and the number of tasks. Every task is a row of its own, and the images of
+ * the tasks are decoded from base64 and stored apart, as binary assets.
+ * The tasks of a test are replaced whenever the test is stored again, and deleted with it.
+ */
+public class TestDefinitions {
+
+    public static final String TASKS = "tasks";
+
+    private static final String TASK_PREFIX = "task_";
+    private static final String IMAGES = "images";
+
+    /**
+     * Task of a test as it is stored: its definition and its images.
+     */
+    public static class StoredTask {
+        public final String json;
+        public final List<byte[]> images;
+
+        /**
+         * Constructor
+         *
+         * @param json   definition of the task, without the images.
+         * @param images of the task, in order.
+         */
+        StoredTask(String json, List<byte[]> images) {
+            this.json = json;
+            this.images = images;
+        }
+    }
+
+    /**
+     * Stores the tasks and the images of a test being inserted, replacing the ones stored
+     * before with the same name.
+     *
+     * @param database where the test is inserted, in a transaction.
+     * @param test     values of the test, with its whole definition.
+     * @return the values of the test with its header instead of the whole definition. The same
+     * values if the definition has no tasks, like a header, or is not valid.
+     */
+    static ContentValues storeTasks(SQLiteDatabase database, ContentValues test) {
+        String name = test.getAsString(Provider.Cognimobile_Data.NAME);
+        String data = test.getAsString(Provider.Cognimobile_Data.DATA);
+        if (name == null || data == null) {
+            return test;
+        }
+
+        JSONObject header;
+        List<String> tasks = new ArrayList<>();
+        List<List<byte[]>> images = new ArrayList<>();
+        try {
+            header = new JSONObject(data);
+            JSONObject task;
+            while ((task = (JSONObject) header.remove(TASK_PREFIX + tasks.size())) != null) {
+                images.add(decodeImages((JSONArray) task.remove(IMAGES)));
+                tasks.add(task.toString());
+            }
+            if (tasks.isEmpty()) {
+                return test;
+            }
+            header.put(TASKS, tasks.size());
+        } catch (JSONException | ClassCastException | IllegalArgumentException e) {
+            //Not a test definition, it is stored as it is
+            return test;
+        }
+
+        String[] whereArgs = {name};
+        database.delete(Provider.DB_TBL_TASKS, Provider.Cognimobile_Data.NAME + " = ?", whereArgs);
+        database.delete(Provider.DB_TBL_ASSETS, Provider.Cognimobile_Data.NAME + " = ?", whereArgs);
+
+        String deviceId = test.getAsString(Provider.Cognimobile_Data.DEVICE_ID);
+        for (int position = 0; position < tasks.size(); ++position) {
+            ContentValues task = new ContentValues();
+            task.put(Provider.Cognimobile_Data.NAME, name);
+            task.put(Provider.Cognimobile_Data.DEVICE_ID, deviceId);
+            task.put(Provider.Cognimobile_Data.TASK, position);
+            task.put(Provider.Cognimobile_Data.DATA, tasks.get(position));
+            database.insertOrThrow(Provider.DB_TBL_TASKS, Provider.Cognimobile_Data.DEVICE_ID, task);
+
+            List<byte[]> taskImages = images.get(position);
+            for (int image = 0; image < taskImages.size(); ++image) {
+                ContentValues asset = new ContentValues();
+                asset.put(Provider.Cognimobile_Data.NAME, name);
+                asset.put(Provider.Cognimobile_Data.DEVICE_ID, deviceId);
+                asset.put(Provider.Cognimobile_Data.TASK, position);
+                asset.put(Provider.Cognimobile_Data.POSITION, image);
+                asset.put(Provider.Cognimobile_Data.ASSET, taskImages.get(image));
+                database.insertOrThrow(Provider.DB_TBL_ASSETS, Provider.Cognimobile_Data.DEVICE_ID, asset);
+            }
+        }
+
+        ContentValues values = new ContentValues(test);
+        values.put(Provider.Cognimobile_Data.DATA, header.toString());
+        return values;
+    }
+
+    /**
+     * Loads a task of a test with its images. It should not be called from the UI thread.
+     *
+     * @param resolver of the provider.
+     * @param name     of the test.
+     * @param position of the task in the test.
+     * @return the task, null if it is not stored.
+     */
+    public static StoredTask loadTask(ContentResolver resolver, String name, int position) {
+        String where = Provider.Cognimobile_Data.NAME + " = ? AND " + Provider.Cognimobile_Data.TASK + " = ?";
+        String[] selectionArgs = {name, Integer.toString(position)};
+
+        String json = null;
+        Cursor task = resolver.query(Provider.CONTENT_URI_TASKS, new String[]{Provider.Cognimobile_Data.DATA},
+                where, selectionArgs, null);
+        if (task != null) {
+            if (task.moveToFirst()) {
+                json = task.getString(0);
+            }
+            task.close();
+        }
+        if (json == null) {
+            return null;
+        }
+
+        List<byte[]> images = new ArrayList<>();
+        Cursor assets = resolver.query(Provider.CONTENT_URI_ASSETS, new String[]{Provider.Cognimobile_Data.ASSET},
+                where, selectionArgs, Provider.Cognimobile_Data.POSITION);
+        if (assets != null) {
+            while (assets.moveToNext()) {
+                images.add(assets.getBlob(0));
+            }
+            assets.close();
+        }
+
+        return new StoredTask(json, images);
+    }
+
+    /**
+     * Decodes the base64 images of a task.
+     *
+     * @param encoded images, could be null.
+     * @return the decoded images, empty if there are none.
+     * @throws JSONException in case that an image is not a string.
+     */
+    private static List<byte[]> decodeImages(JSONArray encoded) throws JSONException {
+        List<byte[]> images = new ArrayList<>();
+        if (encoded != null) {
+            for (int i = 0; i < encoded.length(); ++i) {
+                images.add(Base64.decode(encoded.getString(i), Base64.DEFAULT));
+            }
+        }
+        return images;
+    }
+}
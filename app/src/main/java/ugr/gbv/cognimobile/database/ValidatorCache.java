@@ -0,0 +1,108 @@
+package ugr.gbv.cognimobile.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class to store the HTTP validators (ETag and Last-Modified) of every test url, so the
+ * periodic sync could ask the server only for what has changed.
+ */
+public class ValidatorCache {
+
+    private static final String PREFERENCES_NAME = "cognimobile_validators";
+    private static final String ETAG_PREFIX = "etag:";
+    private static final String LAST_MODIFIED_PREFIX = "last_modified:";
+    private static final String BODY_PREFIX = "body:";
+
+    /**
+     * Gets the conditional headers to request a url.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     * @param url     to be requested.
+     * @return If-None-Match and If-Modified-Since headers, empty if the url was never cached.
+     */
+    public static Map<String, String> getConditionalHeaders(Context context, String url) {
+        SharedPreferences sp = getPreferences(context);
+        Map<String, String> headers = new HashMap<>();
+
+        String eTag = sp.getString(ETAG_PREFIX + url, null);
+        if (eTag != null) {
+            headers.put("If-None-Match", eTag);
+        }
+
+        String lastModified = sp.getString(LAST_MODIFIED_PREFIX + url, null);
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+
+        return headers;
+    }
+
+    /**
+     * Stores the validators of a url once its content has been processed.
+     *
+     * @param context      Context required for the {@link SharedPreferences}
+     * @param url          requested.
+     * @param eTag         ETag header of the response, could be null.
+     * @param lastModified Last-Modified header of the response, could be null.
+     * @param body         content to be returned when the server answers not modified, could be
+     *                     null when the caller does not need it.
+     */
+    public static void store(Context context, String url, String eTag, String lastModified, String body) {
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+
+        putOrRemove(editor, ETAG_PREFIX + url, eTag);
+        putOrRemove(editor, LAST_MODIFIED_PREFIX + url, lastModified);
+        putOrRemove(editor, BODY_PREFIX + url, body);
+
+        editor.apply();
+    }
+
+    /**
+     * Gets the content stored with the validators of a url.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     * @param url     requested.
+     * @return the content, null if it was not stored.
+     */
+    public static String getBody(Context context, String url) {
+        return getPreferences(context).getString(BODY_PREFIX + url, null);
+    }
+
+    /**
+     * Removes every validator, the next sync downloads everything again.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     */
+    public static void clear(Context context) {
+        getPreferences(context).edit().clear().apply();
+    }
+
+    /**
+     * Gets the preferences file of the cache.
+     *
+     * @param context Context required for the {@link SharedPreferences}
+     * @return the preferences.
+     */
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Puts a value in the editor, or removes the key if there is no value.
+     *
+     * @param editor of the preferences.
+     * @param key    of the value.
+     * @param value  to be stored, could be null.
+     */
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value != null) {
+            editor.putString(key, value);
+        } else {
+            editor.remove(key);
+        }
+    }
+}
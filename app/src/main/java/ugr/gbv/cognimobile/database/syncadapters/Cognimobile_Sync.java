@@ -26,7 +26,7 @@ public class Cognimobile_Sync extends Service {
             if (sSyncAdapter == null) {
                 sSyncAdapter = new AwareSyncAdapter(getApplicationContext(), true, true);
                 sSyncAdapter.init(
-                        Provider.DATABASE_TABLES, Provider.TABLES_FIELDS,
+                        Provider.SYNCED_TABLES, Provider.SYNCED_TABLES_FIELDS,
                         new Uri[]{
                                 Provider.Cognimobile_Data.CONTENT_URI_TESTS,
                                 Provider.Cognimobile_Data.CONTENT_URI_RESULTS
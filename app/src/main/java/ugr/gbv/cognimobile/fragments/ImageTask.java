@@ -106,15 +106,15 @@ public class ImageTask extends Task {
         final CardView layout = mainView.findViewById(R.id.cardView);
 
 
-        final String[] imagesArray = bundle.getStringArray("images");
+        final int imagesCount = bundle.getInt("images_count", -1);
 
-        if (imagesArray == null) {
+        if (imagesCount < 0) {
             throw new RuntimeException("IMAGES NULL");
         }
 
         expectedAnswers = bundle.getStringArray("answer");
 
-        imagesId = new int[imagesArray.length];
+        imagesId = new int[imagesCount];
 
         sttButtonContainer = mainLayout.findViewById(R.id.sttButtonContainer);
 
@@ -129,8 +129,8 @@ public class ImageTask extends Task {
         firstInput.setOnEditorActionListener((v, actionId, event) -> handleSubmitKeyboardButton(actionId));
 
 
-        for (int i = 0; i < imagesArray.length; ++i) {
-            Bitmap decodedByte = ImageConverse.getInstance().decodeFromBase64(imagesArray[i]);
+        for (int i = 0; i < imagesCount; ++i) {
+            Bitmap decodedByte = ImageConverse.getInstance().decodeFromBytes(bundle.getByteArray("image_" + i));
             ImageView imageView = new ImageView(context);
             imageView.setId(View.generateViewId());
             imageView.setImageBitmap(decodedByte);
@@ -171,7 +171,7 @@ public class ImageTask extends Task {
                 break;
         }
 
-        if (imagesArray.length <= 1) {
+        if (imagesCount <= 1) {
             setNextButtonStandardBehaviour();
         }
 
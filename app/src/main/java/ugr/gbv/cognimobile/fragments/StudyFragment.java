@@ -23,7 +23,11 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import ugr.gbv.cognimobile.R;
 import ugr.gbv.cognimobile.database.CognimobilePreferences;
 import ugr.gbv.cognimobile.database.Provider;
+import ugr.gbv.cognimobile.database.SyncSchedule;
+import ugr.gbv.cognimobile.database.ValidatorCache;
 import ugr.gbv.cognimobile.interfaces.QRCallback;
+import ugr.gbv.cognimobile.utilities.StudyEndpointCache;
+
 /**
  * Fragment to display the Study section in {@link ugr.gbv.cognimobile.activities.MainActivity}
  */
@@ -159,6 +163,11 @@ public class StudyFragment extends Fragment {
                 null,
                 null
         );
+        ValidatorCache.clear(context);
+        SyncSchedule.clear(context);
+        StudyEndpointCache.getInstance().invalidate();
+        CognimobilePreferences.setSessionEnvelopeUnsupported(context, false);
+        CognimobilePreferences.setBinaryEventsUnsupported(context, false);
         CognimobilePreferences.setHasUserJoinedStudy(context, false);
         showNoStudy();
     }
@@ -12,14 +12,20 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
+import androidx.work.Data;
+import androidx.work.WorkInfo;
 import androidx.recyclerview.widget.DividerItemDecoration;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.util.List;
+
 import ugr.gbv.cognimobile.R;
 import ugr.gbv.cognimobile.adapters.TestsAdapter;
 import ugr.gbv.cognimobile.database.Provider;
 import ugr.gbv.cognimobile.interfaces.TestClickHandler;
+import ugr.gbv.cognimobile.sync.TestsWorker;
+import ugr.gbv.cognimobile.sync.WorkerManager;
 /**
  * Fragment to display the Tests section in {@link ugr.gbv.cognimobile.activities.MainActivity}
  */
@@ -30,6 +36,8 @@ public class TestsFragment extends Fragment {
     private TextView noTestText;
     private Context context;
     private TestClickHandler callBack;
+    private TestsAdapter testsAdapter;
+    private int displayedParsedTests;
 
     public TestsFragment() {}
 
@@ -65,13 +73,77 @@ public class TestsFragment extends Fragment {
 
         context = getContext();
 
+        //A new view needs its own adapter
+        testsAdapter = null;
+        displayedParsedTests = 0;
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        recyclerView.addItemDecoration(new DividerItemDecoration(
+                recyclerView.getContext(), LinearLayoutManager.VERTICAL));
+
+        refreshTests();
+
+        return view;
+    }
+
+    /**
+     * Overrides {@link androidx.fragment.app.Fragment#onViewCreated(View, Bundle)} to follow the
+     * download of the tests while the view exists.
+     *
+     * @param view               The View returned by {@link #onCreateView(LayoutInflater, ViewGroup, Bundle)}.
+     * @param savedInstanceState If non-null, this fragment is being re-constructed
+     *                           from a previous saved state as given here.
+     */
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        WorkerManager.getInstance().getJoinedStudyDownload(context)
+                .observe(getViewLifecycleOwner(), this::onJoinedStudyDownload);
+    }
+
+    /**
+     * Follows the download of the tests of a study that has just been joined: the tests are
+     * shown as soon as they are inserted, and while there are none the progress is displayed.
+     *
+     * @param workInfos state of the download.
+     */
+    private void onJoinedStudyDownload(List<WorkInfo> workInfos) {
+        WorkInfo running = null;
+        for (WorkInfo workInfo : workInfos) {
+            if (workInfo.getState() == WorkInfo.State.RUNNING) {
+                running = workInfo;
+            }
+        }
+
+        if (running == null) {
+            noTestText.setText(R.string.no_tests_actives);
+            if (displayedParsedTests > 0) {
+                displayedParsedTests = 0;
+                refreshTests();
+            }
+            return;
+        }
+
+        Data progress = running.getProgress();
+        int parsedTests = progress.getInt(TestsWorker.KEY_PARSED_TESTS, 0);
+        int totalTests = progress.getInt(TestsWorker.KEY_TOTAL_TESTS, 0);
+        noTestText.setText(getString(R.string.downloading_tests, parsedTests, totalTests));
+
+        if (parsedTests != displayedParsedTests) {
+            displayedParsedTests = parsedTests;
+            refreshTests();
+        }
+    }
+
+    /**
+     * Displays the tests available, or that there are none.
+     */
+    private void refreshTests() {
         if (emptyTests()) {
             showNoTests();
         } else {
             fetchTests();
         }
-
-        return view;
     }
 
     /**
@@ -97,23 +169,19 @@ public class TestsFragment extends Fragment {
      * Retrieves from the local database the tests available
      */
     private void fetchTests() {
-        recyclerView.setHasFixedSize(true);
-        recyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
-
-        String where = Provider.Cognimobile_Data.DONE + " LIKE ?";
+        String where = Provider.Cognimobile_Data.DONE + " = ?";
         String[] selectionArgs = {"0"};
         String[] projection = new String[]{Provider.Cognimobile_Data._ID, Provider.Cognimobile_Data.NAME, Provider.Cognimobile_Data.DATA};
         Cursor cursor = context.getContentResolver().query(Provider.CONTENT_URI_TESTS, projection, where, selectionArgs, Provider.Cognimobile_Data._ID);
         if (cursor != null) {
             cursor.moveToFirst();
         }
-        TestsAdapter testsAdapter = new TestsAdapter(cursor, callBack);
-        recyclerView.setAdapter(testsAdapter);
-
-        DividerItemDecoration dividerItemDecoration = new DividerItemDecoration(
-                recyclerView.getContext(), LinearLayoutManager.VERTICAL);
-
-        recyclerView.addItemDecoration(dividerItemDecoration);
+        if (testsAdapter == null) {
+            testsAdapter = new TestsAdapter(cursor, callBack);
+            recyclerView.setAdapter(testsAdapter);
+        } else {
+            testsAdapter.updateCursor(cursor);
+        }
 
         showTests();
     }
@@ -122,7 +190,7 @@ public class TestsFragment extends Fragment {
      * Checks if there are tests to be displayed or not.
      */
     private boolean emptyTests() {
-        String where = Provider.Cognimobile_Data.DONE + " LIKE ?";
+        String where = Provider.Cognimobile_Data.DONE + " = ?";
         String[] selectionArgs = {"0"};
         String[] projection = new String[]{Provider.Cognimobile_Data._ID};
         Cursor tempCursor = context.getContentResolver().query(Provider.CONTENT_URI_TESTS, projection, where, selectionArgs, Provider.Cognimobile_Data._ID);
@@ -138,15 +206,11 @@ public class TestsFragment extends Fragment {
      * Deletes the test with the name given.
      */
     public void deleteTest(String name) {
-        String where = Provider.Cognimobile_Data.NAME + " LIKE ?";
+        String where = Provider.Cognimobile_Data.NAME + " = ?";
         String[] selectionArgs = {name};
         context.getContentResolver().delete(Provider.CONTENT_URI_TESTS, where, selectionArgs);
 
-        if (emptyTests()) {
-            showNoTests();
-        } else {
-            fetchTests();
-        }
+        refreshTests();
     }
 
 
@@ -1,18 +1,20 @@
 package ugr.gbv.cognimobile.sync;
 
 import android.content.Context;
-import android.icu.util.Calendar;
-import android.net.Uri;
+import android.os.Bundle;
 
 import androidx.annotation.NonNull;
 import androidx.work.Data;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import ugr.gbv.cognimobile.database.DataExpiry;
 import ugr.gbv.cognimobile.database.Provider;
 
 /**
- * Class to do delete periodic tasks on the local database.
+ * Class to do delete periodic tasks on the local database. The tests and results whose erase
+ * timestamp has passed are deleted by the provider, see {@link DataExpiry}, and the rows and
+ * bytes reclaimed are reported in the output of the worker.
  */
 public class DeleteWorker extends Worker {
 
@@ -43,42 +45,14 @@ public class DeleteWorker extends Worker {
     @NonNull
     @Override
     public Result doWork() {
-        int deleted = 0;
+        Bundle expired = workerContext.getContentResolver().call(Provider.CONTENT_URI_RESULTS, Provider.METHOD_EXPIRE, null, null);
 
-        deleted += deleteFromCursor(Provider.CONTENT_URI_RESULTS, workerContext);
-        deleted += deleteFromCursor(Provider.CONTENT_URI_TESTS, workerContext);
+        Data output = new Data.Builder()
+                .putInt(DataExpiry.KEY_DELETED_ROWS, expired != null ? expired.getInt(DataExpiry.KEY_DELETED_ROWS) : 0)
+                .putLong(DataExpiry.KEY_RECLAIMED_BYTES, expired != null ? expired.getLong(DataExpiry.KEY_RECLAIMED_BYTES) : 0)
+                .build();
 
-
-        if (deleted > 0) {
-            return Result.success();
-        } else {
-            return Result.retry();
-        }
-
-
-    }
-
-
-    /**
-     * Retrieves the data to be erased and deletes it.
-     *
-     * @param uri           to retrieve the data
-     * @param workerContext the worker context.
-     * @return rows affected.
-     */
-    private int deleteFromCursor(Uri uri, Context workerContext) {
-        String where = Provider.Cognimobile_Data.ERASE_TIMESTAMP + " >= ?";
-        String[] selectionArgs = {Long.toString(getCurrentMillis())};
-        return workerContext.getContentResolver().delete(uri, where, selectionArgs);
-    }
-
-    /**
-     * Gets the current time in milliseconds.
-     *
-     * @return current time in milliseconds.
-     */
-    private long getCurrentMillis() {
-        Calendar c = Calendar.getInstance();
-        return c.getTimeInMillis();
+        //Nothing to delete is not an error, the next cleanup is already scheduled
+        return Result.success(output);
     }
 }
@@ -5,21 +5,62 @@ import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.work.Data;
-import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ugr.gbv.cognimobile.R;
+import ugr.gbv.cognimobile.database.CognimobilePreferences;
 import ugr.gbv.cognimobile.database.Provider;
+import ugr.gbv.cognimobile.utilities.CircuitBreaker;
 import ugr.gbv.cognimobile.utilities.DataSender;
+import ugr.gbv.cognimobile.utilities.ErrorHandler;
+import ugr.gbv.cognimobile.utilities.RetryPolicy;
+import ugr.gbv.cognimobile.utilities.UploadPriority;
 
 /**
  * Class to do send if there is any results from tests that are on the local database.
+ * Finished sessions are read from the outbox, where they are stored before any upload, and
+ * packed in batches, so a device with many queued sessions uploads them with a few requests
+ * instead of one per result. Both tables of a session travel in a single envelope when the server
+ * supports it, except when they are in different {@link UploadPriority} classes and only the
+ * first one is uploaded, then every class goes in its own envelope. Large rows, like the ones
+ * of the drawing tasks, are uploaded on their own in chunks, so an interrupted upload
+ * continues from the last chunk that the server committed.
+ * The worker uploads the {@link UploadPriority} classes given in its input, the most important
+ * first.
+ * A row only leaves the outbox once the server has confirmed it.
  */
-public class ResultWorker extends Worker {
+public class ResultWorker extends StoppableWorker {
+
+    public static final String KEY_UPLOADED_ROWS = "uploaded_rows";
+    public static final String KEY_FAILED_ROWS = "failed_rows";
+    public static final String KEY_REJECTED_ROWS = "rejected_rows";
+    public static final String KEY_ROWS_PER_SECOND = "rows_per_second";
+    public static final String KEY_CHARS_PER_SECOND = "chars_per_second";
+    public static final String KEY_MIN_PRIORITY = "min_priority";
+    public static final String KEY_MAX_PRIORITY = "max_priority";
+
+    private static final int BATCH_MAX_ROWS = 25;
+    private static final int BATCH_MAX_CHARS = 512 * 1024;
 
     private final Context workerContext;
+    private int uploaded;
+    private int failed;
+    private int rejected;
+    private boolean circuitOpen;
+    private boolean envelopeUnsupported;
+    private long uploadedChars;
+    private int resumableChars;
 
     /**
      * Constructor
@@ -35,7 +76,10 @@ public class ResultWorker extends Worker {
     }
 
     /**
-     * Overrides the {@link Worker#doWork()} method
+     * Uploads the pending rows in the thread of the worker, so WorkManager gets the real outcome:
+     * success once every row has been confirmed or rejected for good, retry with its backoff if
+     * any row is still pending. The rows uploaded so far are published as progress after every
+     * request. When the worker is stopped no more requests are made.
      *
      * @return The {@link androidx.work.ListenableWorker.Result} of the computation; note that
      * dependent work will not execute if you use
@@ -44,45 +88,428 @@ public class ResultWorker extends Worker {
      */
     @NonNull
     @Override
-    public Result doWork() {
+    protected Result doStoppableWork() {
+        long start = System.nanoTime();
+        resumableChars = workerContext.getResources().getInteger(R.integer.resumable_upload_chars);
+        int minPriority = getInputData().getInt(KEY_MIN_PRIORITY, UploadPriority.RESULTS);
+        int maxPriority = getInputData().getInt(KEY_MAX_PRIORITY, UploadPriority.BULK);
+
+        if (!CognimobilePreferences.getSessionEnvelopeUnsupported(workerContext)) {
+            //The bulk data goes after the sessions, not inside their envelopes
+            uploadSessions(minPriority, Math.min(maxPriority, UploadPriority.CONTEXT_EVENTS));
+            uploadSessions(Math.max(minPriority, UploadPriority.BULK), maxPriority);
+        }
+        if (CognimobilePreferences.getSessionEnvelopeUnsupported(workerContext)) {
+            uploadRows(queryOutbox(minPriority, maxPriority, Provider.Cognimobile_Data.PRIORITY + ","
+                    + Provider.Cognimobile_Data.TARGET + "," + Provider.Cognimobile_Data._ID), true);
+        }
+
+        if (minPriority <= UploadPriority.RESULTS) {
+            //Results stored by the previous versions when their upload failed
+            String[] projection = new String[]{Provider.Cognimobile_Data._ID, Provider.Cognimobile_Data.DATA};
+            String where = Provider.Cognimobile_Data.SYNCED + " = ?";
+            String[] selectionArgs = {"0"};
+            Cursor results = workerContext.getContentResolver().query(Provider.CONTENT_URI_RESULTS, projection, where, selectionArgs, Provider.Cognimobile_Data._ID);
+            uploadRows(results, false);
+        }
 
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Data output = new Data.Builder()
+                .putInt(KEY_UPLOADED_ROWS, uploaded)
+                .putInt(KEY_FAILED_ROWS, failed)
+                .putInt(KEY_REJECTED_ROWS, rejected)
+                .putDouble(KEY_ROWS_PER_SECOND, seconds > 0 ? uploaded / seconds : 0)
+                .putDouble(KEY_CHARS_PER_SECOND, seconds > 0 ? uploadedChars / seconds : 0)
+                .build();
 
-        String[] projection = new String[]{Provider.Cognimobile_Data.DATA};
+        if (failed == 0 && !isStopped()) {
+            return Result.success(output);
+        } else {
+            return Result.retry();
+        }
 
-        String where = Provider.Cognimobile_Data.SYNCED + " LIKE ?";
-        String[] selectionArgs = {"0"};
 
-        Cursor cursor = workerContext.getContentResolver().query(Provider.CONTENT_URI_RESULTS, projection, where, selectionArgs, Provider.Cognimobile_Data._ID);
+    }
+
+    /**
+     * Publishes the rows uploaded, failed and rejected until now.
+     */
+    private void publishProgress() {
+        setProgressAsync(new Data.Builder()
+                .putInt(KEY_UPLOADED_ROWS, uploaded)
+                .putInt(KEY_FAILED_ROWS, failed)
+                .putInt(KEY_REJECTED_ROWS, rejected)
+                .build());
+    }
+
+    /**
+     * Gets the outbox rows pending to be uploaded of several {@link UploadPriority} classes.
+     *
+     * @param minPriority first class of the rows.
+     * @param maxPriority last class of the rows.
+     * @param sortOrder   of the rows.
+     * @return the cursor, could be null.
+     */
+    private Cursor queryOutbox(int minPriority, int maxPriority, String sortOrder) {
+        String[] projection = new String[]{Provider.Cognimobile_Data._ID, Provider.Cognimobile_Data.TIMESTAMP,
+                Provider.Cognimobile_Data.NAME, Provider.Cognimobile_Data.TARGET, Provider.Cognimobile_Data.DATA,
+                Provider.Cognimobile_Data.IDEMPOTENCY_KEY};
+        String where = Provider.Cognimobile_Data.STATUS + " = ? AND " + Provider.Cognimobile_Data.PRIORITY + " BETWEEN ? AND ?";
+        String[] selectionArgs = {"0", Integer.toString(minPriority), Integer.toString(maxPriority)};
+        return workerContext.getContentResolver().query(Provider.CONTENT_URI_OUTBOX, projection, where, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Uploads the outbox joining the tables of every session in a single envelope, so a
+     * session needs one request instead of one per table. The rows of a session are stored
+     * together, so they are consecutive when sorted by id. Only the rows of the given classes
+     * are joined, so a session whose context events wait for an unmetered network is sent in
+     * two envelopes, each one committed on its own and with its own key, see
+     * {@link DataSender#buildEnvelopeKey}. If the server does not know the envelope it is
+     * remembered for a day and the rest of the outbox is left to be uploaded by table, after
+     * that day the envelope is tried again.
+     *
+     * @param minPriority first {@link UploadPriority} class of the rows.
+     * @param maxPriority last {@link UploadPriority} class of the rows.
+     */
+    private void uploadSessions(int minPriority, int maxPriority) {
+        if (minPriority > maxPriority || envelopeUnsupported) {
+            return;
+        }
+        Cursor cursor = queryOutbox(minPriority, maxPriority, Provider.Cognimobile_Data._ID);
+        if (cursor == null) {
+            return;
+        }
 
-        int inserted = 0;
+        int idColumn = cursor.getColumnIndex(Provider.Cognimobile_Data._ID);
+        int dataColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.DATA);
+        int timestampColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.TIMESTAMP);
+        int nameColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.NAME);
+        int targetColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.TARGET);
+        int keyColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.IDEMPOTENCY_KEY);
 
-        if (cursor != null && cursor.getCount() > 0) {
-            cursor.moveToFirst();
-            inserted = cursor.getCount();
-            while (!cursor.isAfterLast()) {
-                JSONArray jsonArray = null;
-                try {
-                    jsonArray = new JSONArray(cursor.getString(cursor.getColumnIndex(Provider.Cognimobile_Data.DATA)));
-                } catch (JSONException e) {
-                    e.printStackTrace();
+        Batch batch = new Batch(DataSender.SESSIONS_TABLE);
+        Entry session = null;
+        String sessionOf = null;
+        List<String> targets = new ArrayList<>();
+        List<Long> invalid = new ArrayList<>();
+
+        while (!envelopeUnsupported && !isStopped() && cursor.moveToNext()) {
+            String key = cursor.getString(keyColumn);
+            int separator = key.lastIndexOf(':');
+            String sessionKey = separator > 0 ? key.substring(0, separator) : key;
+            String data = cursor.getString(dataColumn);
+            try {
+                if (session == null || !sessionOf.equals(sessionKey)) {
+                    if (session != null) {
+                        session.key = DataSender.buildEnvelopeKey(sessionOf, targets);
+                        batch = addToBatch(batch, session, true);
+                    }
+                    JSONObject envelope = new JSONObject();
+                    envelope.put(Provider.Cognimobile_Data.NAME, cursor.getString(nameColumn));
+                    session = new Entry(envelope, cursor.getLong(timestampColumn), cursor.getString(nameColumn), null);
+                    sessionOf = sessionKey;
+                    targets.clear();
                 }
-                if (jsonArray != null) {
-                    DataSender.getInstance().postToServer("insert", "results", jsonArray, getApplicationContext());
+                ((JSONObject) session.data).put(cursor.getString(targetColumn), new JSONArray(data));
+                targets.add(cursor.getString(targetColumn));
+                session.ids.add(cursor.getLong(idColumn));
+                session.length += data.length();
+            } catch (JSONException e) {
+                e.printStackTrace();
+                invalid.add(cursor.getLong(idColumn));
+            }
+        }
+        rejectInvalid(invalid, true);
+
+        if (session != null && !envelopeUnsupported) {
+            session.key = DataSender.buildEnvelopeKey(sessionOf, targets);
+            batch = addToBatch(batch, session, true);
+        }
+        if (!batch.entries.isEmpty() && !envelopeUnsupported) {
+            uploadBatch(batch, true);
+        }
+
+        cursor.close();
+    }
+
+    /**
+     * Uploads the rows of a cursor in batches, table by table, and closes it.
+     *
+     * @param cursor with the rows to be uploaded, could be null.
+     * @param outbox true if the rows come from the outbox, false if they come from the results
+     *               table.
+     */
+    private void uploadRows(Cursor cursor, boolean outbox) {
+        if (cursor == null) {
+            return;
+        }
+
+        int idColumn = cursor.getColumnIndex(Provider.Cognimobile_Data._ID);
+        int dataColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.DATA);
+        int timestampColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.TIMESTAMP);
+        int nameColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.NAME);
+        int targetColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.TARGET);
+        int keyColumn = cursor.getColumnIndex(Provider.Cognimobile_Data.IDEMPOTENCY_KEY);
+
+        Batch batch = null;
+        List<Long> invalid = new ArrayList<>();
+
+        while (!isStopped() && cursor.moveToNext()) {
+            String data = cursor.getString(dataColumn);
+            String target = outbox ? cursor.getString(targetColumn) : DataSender.RESULTS_TABLE;
+            try {
+                Entry entry = outbox
+                        ? new Entry(new JSONArray(data), cursor.getLong(timestampColumn), cursor.getString(nameColumn), cursor.getString(keyColumn))
+                        : new Entry(new JSONArray(data), null, null, null);
+                entry.ids.add(cursor.getLong(idColumn));
+                entry.length = data.length();
+
+                if (batch != null && !batch.target.equals(target)) {
+                    uploadBatch(batch, outbox);
+                    batch = null;
                 }
+                batch = addToBatch(batch != null ? batch : new Batch(target), entry, outbox);
+            } catch (JSONException e) {
+                e.printStackTrace();
+                invalid.add(cursor.getLong(idColumn));
+            }
+        }
+        rejectInvalid(invalid, outbox);
+
+        if (batch != null && !batch.entries.isEmpty()) {
+            uploadBatch(batch, outbox);
+        }
+
+        cursor.close();
+    }
+
+    /**
+     * Marks the rows whose data is not valid json as rejected, as they could never be uploaded.
+     * Otherwise they would stay pending forever, and an upload would be enqueued for them on
+     * every sync.
+     *
+     * @param ids    of the rows.
+     * @param outbox true if the rows come from the outbox.
+     */
+    private void rejectInvalid(List<Long> ids, boolean outbox) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        if (outbox) {
+            DataSender.getInstance().rejectOutbox(getApplicationContext(), ids, DataSender.STATUS_INVALID_DATA);
+        } else {
+            DataSender.getInstance().markResultsRejected(getApplicationContext(), ids);
+        }
+        rejected += ids.size();
+        publishProgress();
+    }
+
+    /**
+     * Adds an entry to a batch, uploading the batch first if the entry does not fit. Large
+     * entries are uploaded on their own, leaving the batch as it was.
+     *
+     * @param batch  where the entry is added.
+     * @param entry  to be added.
+     * @param outbox true if the rows come from the outbox.
+     * @return the batch with the entry.
+     */
+    private Batch addToBatch(Batch batch, Entry entry, boolean outbox) {
+        if (isResumable(entry, outbox)) {
+            Batch single = new Batch(batch.target);
+            single.entries.add(entry);
+            single.chars = entry.length;
+            uploadBatch(single, outbox);
+            return batch;
+        }
+        if (!batch.entries.isEmpty() && (batch.entries.size() == BATCH_MAX_ROWS || batch.chars + entry.length > BATCH_MAX_CHARS)) {
+            uploadBatch(batch, outbox);
+            batch = new Batch(batch.target);
+        }
+        batch.entries.add(entry);
+        batch.chars += entry.length;
+        return batch;
+    }
+
+    /**
+     * Uploads a batch with a single request, or in chunks when it is a single large entry, and
+     * acknowledges, in a single transaction, the rows that the server accepted. Outbox rows are
+     * removed once acknowledged, results rows are marked as synced. Rows rejected with a
+     * permanent failure are marked so they are not uploaded again, the rest are left for the
+     * next attempt.
+     *
+     * @param batch  to be uploaded.
+     * @param outbox true if the rows come from the outbox.
+     */
+    private void uploadBatch(Batch batch, boolean outbox) {
+        if (circuitOpen || envelopeUnsupported || isStopped()) {
+            failed += circuitOpen || isStopped() ? batch.countRows() : 0;
+            return;
+        }
+
+        boolean envelope = DataSender.SESSIONS_TABLE.equals(batch.target);
+        List<Object> data = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (Entry entry : batch.entries) {
+            data.add(entry.data);
+            timestamps.add(entry.timestamp);
+            keys.add(entry.key);
+        }
+
+        List<Long> synced = new ArrayList<>();
+        List<String> syncedTests = new ArrayList<>();
+        Map<Integer, List<Long>> rejectedByStatus = new HashMap<>();
+        int syncedChars = 0;
+        try {
+            int[] statuses;
+            Entry first = batch.entries.get(0);
+            if (batch.entries.size() == 1 && isResumable(first, outbox)) {
+                statuses = new int[]{DataSender.getInstance().postResumableToServer(batch.target, first.data,
+                        first.timestamp, first.key, getApplicationContext())};
+            } else {
+                statuses = DataSender.getInstance().postBatchToServer(batch.target, data,
+                        outbox ? timestamps : null, outbox ? keys : null, getApplicationContext());
             }
 
-            cursor.close();
+            if (envelope && isNotFound(statuses)) {
+                //Legacy AWARE server, the outbox is uploaded by table
+                envelopeUnsupported = true;
+                CognimobilePreferences.setSessionEnvelopeUnsupported(workerContext, true);
+                return;
+            }
 
+            for (int i = 0; i < statuses.length; ++i) {
+                Entry entry = batch.entries.get(i);
+                if (RetryPolicy.isSuccess(statuses[i])) {
+                    synced.addAll(entry.ids);
+                    syncedChars += entry.length;
+                    if (envelope || (outbox && DataSender.RESULTS_TABLE.equals(batch.target))) {
+                        syncedTests.add(entry.name);
+                    }
+                } else if (RetryPolicy.isPermanentFailure(statuses[i])) {
+                    List<Long> ids = rejectedByStatus.get(statuses[i]);
+                    if (ids == null) {
+                        ids = new ArrayList<>();
+                        rejectedByStatus.put(statuses[i], ids);
+                    }
+                    ids.addAll(entry.ids);
+                }
+            }
+        } catch (CircuitBreaker.OpenException e) {
+            circuitOpen = true;
+            ErrorHandler.displayError(e.getMessage());
+        } catch (IOException | JSONException e) {
+            if (!isStopped()) {
+                ErrorHandler.displayError(e.getMessage());
+            }
         }
 
+        int rejectedRows = 0;
+        for (Map.Entry<Integer, List<Long>> entry : rejectedByStatus.entrySet()) {
+            if (outbox) {
+                DataSender.getInstance().rejectOutbox(getApplicationContext(), entry.getValue(), entry.getKey());
+            } else {
+                DataSender.getInstance().markResultsRejected(getApplicationContext(), entry.getValue());
+            }
+            rejectedRows += entry.getValue().size();
+        }
 
-        if (inserted > 0) {
-            return Result.success();
+        if (outbox) {
+            DataSender.getInstance().acknowledgeOutbox(getApplicationContext(), synced, syncedTests);
         } else {
-            return Result.retry();
+            DataSender.getInstance().markResultsSynced(getApplicationContext(), synced);
         }
 
+        uploaded += synced.size();
+        rejected += rejectedRows;
+        failed += batch.countRows() - synced.size() - rejectedRows;
+        uploadedChars += syncedChars;
+        publishProgress();
+    }
+
+    /**
+     * Checks if an entry is large enough to be uploaded in chunks.
+     *
+     * @param entry  to be uploaded.
+     * @param outbox true if the rows come from the outbox.
+     * @return true if it comes from the outbox, with its key and timestamp, and it is large.
+     */
+    private boolean isResumable(Entry entry, boolean outbox) {
+        return outbox && entry.key != null && entry.timestamp != null && entry.length >= resumableChars;
+    }
+
+    /**
+     * Checks if the server answered that the endpoint does not exist.
+     *
+     * @param statuses of every row.
+     * @return true if every row got a 404.
+     */
+    private boolean isNotFound(int[] statuses) {
+        for (int status : statuses) {
+            if (status != HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+        }
+        return statuses.length > 0;
+    }
 
+    /**
+     * Data sent as a row of a request: a row of a table, or every table of a session.
+     */
+    private static class Entry {
+        private final Object data;
+        private final Long timestamp;
+        private final String name;
+        private String key;
+        private final List<Long> ids = new ArrayList<>();
+        private int length;
+
+        /**
+         * Constructor
+         *
+         * @param data      to be sent.
+         * @param timestamp of the session, null to use the current time.
+         * @param name      of the test, could be null.
+         * @param key       idempotency key, could be null, or set once the entry is complete.
+         */
+        Entry(Object data, Long timestamp, String name, String key) {
+            this.data = data;
+            this.timestamp = timestamp;
+            this.name = name;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Entries to be uploaded to a table with a single request.
+     */
+    private static class Batch {
+        private final String target;
+        private final List<Entry> entries = new ArrayList<>();
+        private int chars;
+
+        /**
+         * Constructor
+         *
+         * @param target table of the server.
+         */
+        Batch(String target) {
+            this.target = target;
+        }
+
+        /**
+         * Counts the local rows of the batch.
+         *
+         * @return number of rows.
+         */
+        int countRows() {
+            int rows = 0;
+            for (Entry entry : entries) {
+                rows += entry.ids.size();
+            }
+            return rows;
+        }
     }
 
 }
@@ -0,0 +1,78 @@
+package ugr.gbv.cognimobile.sync;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+/**
+ * Worker whose thread is interrupted when WorkManager stops it, because its constraints are no
+ * longer met or it has been cancelled or replaced. The network code waiting to retry, or
+ * between the chunks of an upload, gives up as soon as it is interrupted, so no request of the
+ * worker is still running once it has been stopped.
+ */
+public abstract class StoppableWorker extends Worker {
+
+    private Thread workThread;
+
+    /**
+     * Constructor
+     *
+     * @param context from the parent activity.
+     * @param params  worker parameters
+     */
+    public StoppableWorker(
+            @NonNull Context context,
+            @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Does the work in the thread given by WorkManager, see {@link Worker#doWork()}, checking
+     * {@link #isStopped()} between its steps.
+     *
+     * @return The {@link androidx.work.ListenableWorker.Result} of the computation.
+     */
+    @NonNull
+    protected abstract Result doStoppableWork();
+
+    /**
+     * Overrides the {@link Worker#doWork()} method
+     *
+     * @return The {@link androidx.work.ListenableWorker.Result} of the computation; note that
+     * dependent work will not execute if you use
+     * {@link androidx.work.ListenableWorker.Result#failure()} or
+     * {@link androidx.work.ListenableWorker.Result#failure(Data)}
+     */
+    @NonNull
+    @Override
+    public final Result doWork() {
+        synchronized (this) {
+            workThread = Thread.currentThread();
+        }
+        try {
+            return doStoppableWork();
+        } finally {
+            synchronized (this) {
+                workThread = null;
+            }
+            //The thread goes back to the pool of WorkManager without the interruption
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Interrupts the thread of the worker, if it is still working.
+     */
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        synchronized (this) {
+            if (workThread != null) {
+                workThread.interrupt();
+            }
+        }
+    }
+}
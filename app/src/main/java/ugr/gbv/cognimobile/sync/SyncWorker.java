@@ -0,0 +1,141 @@
+package ugr.gbv.cognimobile.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import ugr.gbv.cognimobile.R;
+import ugr.gbv.cognimobile.database.Provider;
+import ugr.gbv.cognimobile.database.SyncSchedule;
+import ugr.gbv.cognimobile.utilities.UploadPriority;
+
+/**
+ * Class woken up periodically that decides which synchronization tasks are due and enqueues
+ * them together, so the download, the upload and the cleanup share a single wake-up of the
+ * device and the radio instead of having one each. The results are uploaded on any network,
+ * while the bulk data, and the context events when there are many of them, wait for an
+ * unmetered network for a while before using any network, see {@link UploadPriority}.
+ */
+public class SyncWorker extends Worker {
+
+    private static final String PENDING_ROWS = "count(*) AS pending_rows";
+    private static final String PENDING_CHARS = "total(length(" + Provider.Cognimobile_Data.DATA + ")) AS pending_chars";
+
+    private final Context workerContext;
+
+    /**
+     * Constructor
+     *
+     * @param context from the parent activity.
+     * @param params  worker parameters
+     */
+    public SyncWorker(
+            @NonNull Context context,
+            @NonNull WorkerParameters params) {
+        super(context, params);
+        workerContext = context;
+    }
+
+    /**
+     * Overrides the {@link Worker#doWork()} method
+     *
+     * @return The {@link androidx.work.ListenableWorker.Result} of the computation; note that
+     * dependent work will not execute if you use
+     * {@link androidx.work.ListenableWorker.Result#failure()} or
+     * {@link androidx.work.ListenableWorker.Result#failure(Data)}
+     */
+    @NonNull
+    @Override
+    public Result doWork() {
+        long now = System.currentTimeMillis();
+        WorkerManager manager = WorkerManager.getInstance();
+
+        if (SyncSchedule.isDownloadDue(workerContext, now)) {
+            manager.enqueueDownload(workerContext);
+        }
+
+        long[][] pending = getPendingResults();
+        long large = workerContext.getResources().getInteger(R.integer.large_upload_chars);
+        int meteredMax = UploadPriority.getMeteredMaxPriority(pending[UploadPriority.CONTEXT_EVENTS][1], large);
+
+        if (countRows(pending, UploadPriority.RESULTS, meteredMax) > 0) {
+            manager.enqueueUpload(workerContext, meteredMax, ExistingWorkPolicy.KEEP);
+        }
+        if (countRows(pending, meteredMax + 1, UploadPriority.BULK) == 0) {
+            SyncSchedule.onUploadNotDeferred(workerContext);
+        } else if (!SyncSchedule.hasUnmeteredWaitExpired(workerContext, now)) {
+            manager.enqueueDeferredUpload(workerContext, meteredMax + 1, true, ExistingWorkPolicy.KEEP);
+        } else {
+            //Replaces the upload waiting for an unmetered network
+            manager.enqueueDeferredUpload(workerContext, meteredMax + 1, false, ExistingWorkPolicy.REPLACE);
+        }
+
+        if (SyncSchedule.isCleanupDue(workerContext, now)) {
+            manager.enqueueDelete(workerContext);
+            SyncSchedule.onCleanupScheduled(workerContext, now);
+        }
+
+        return Result.success();
+    }
+
+    /**
+     * Gets the amount of data waiting to be uploaded, in the outbox and in the results table,
+     * by {@link UploadPriority} class.
+     *
+     * @return number of rows and characters of their data of every class.
+     */
+    private long[][] getPendingResults() {
+        long[][] pending = new long[UploadPriority.BULK + 1][2];
+
+        String[] projection = new String[]{PENDING_ROWS, PENDING_CHARS};
+
+        String outboxWhere = Provider.Cognimobile_Data.STATUS + " = ? AND " + Provider.Cognimobile_Data.PRIORITY + " = ?";
+        for (int priority = UploadPriority.RESULTS; priority <= UploadPriority.BULK; ++priority) {
+            String[] outboxArgs = {"0", Integer.toString(priority)};
+            addPending(pending[priority], workerContext.getContentResolver().query(Provider.CONTENT_URI_OUTBOX, projection, outboxWhere, outboxArgs, null));
+        }
+
+        String where = Provider.Cognimobile_Data.SYNCED + " = ?";
+        String[] selectionArgs = {"0"};
+        addPending(pending[UploadPriority.RESULTS], workerContext.getContentResolver().query(Provider.CONTENT_URI_RESULTS, projection, where, selectionArgs, null));
+
+        return pending;
+    }
+
+    /**
+     * Counts the rows waiting to be uploaded of several classes.
+     *
+     * @param pending     number of rows and characters of every class.
+     * @param minPriority first class counted.
+     * @param maxPriority last class counted.
+     * @return number of rows.
+     */
+    private long countRows(long[][] pending, int minPriority, int maxPriority) {
+        long rows = 0;
+        for (int priority = minPriority; priority <= maxPriority; ++priority) {
+            rows += pending[priority][0];
+        }
+        return rows;
+    }
+
+    /**
+     * Adds the amount read from a cursor and closes it.
+     *
+     * @param pending number of rows and characters to add to.
+     * @param cursor  with the number of rows and characters, could be null.
+     */
+    private void addPending(long[] pending, Cursor cursor) {
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                pending[0] += cursor.getLong(0);
+                pending[1] += cursor.getLong(1);
+            }
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package ugr.gbv.cognimobile.sync;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Class to download the tests of a study in stages: the downloads run in parallel up to a
+ * limit, every downloaded test is parsed in a pool of workers as soon as it arrives, and the
+ * parsed tests are returned together so they could be inserted at once. A listener could also
+ * receive every test as soon as it is parsed, to make it available before the rest.
+ *
+ * @param <D> type of a downloaded test.
+ * @param <P> type of a parsed test.
+ */
+public class TestsDownloadPipeline<D, P> {
+
+    private final int fetchConcurrency;
+    private final int parseThreads;
+    private final Executor fetchExecutor;
+    private final Fetcher<D> fetcher;
+    private final Parser<D, P> parser;
+
+    /**
+     * Downloads a test.
+     *
+     * @param <D> type of a downloaded test.
+     */
+    public interface Fetcher<D> {
+        /**
+         * Downloads a test.
+         *
+         * @param url of the test.
+         * @return the downloaded test, null if there is nothing to parse.
+         * @throws Exception in case that the test could not be downloaded.
+         */
+        D fetch(String url) throws Exception;
+    }
+
+    /**
+     * Parses a test.
+     *
+     * @param <D> type of a downloaded test.
+     * @param <P> type of a parsed test.
+     */
+    public interface Parser<D, P> {
+        /**
+         * Parses a test.
+         *
+         * @param url        of the test.
+         * @param downloaded test.
+         * @return the parsed test, null if there is nothing to insert.
+         * @throws Exception in case that the test could not be parsed.
+         */
+        P parse(String url, D downloaded) throws Exception;
+    }
+
+    /**
+     * Receives the exceptions of the stages.
+     */
+    public interface FailureListener {
+        /**
+         * Called when a test could not be downloaded or parsed.
+         *
+         * @param error thrown by the stage.
+         */
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * Receives the tests as soon as they are parsed.
+     *
+     * @param <P> type of a parsed test.
+     */
+    public interface ParsedListener<P> {
+        /**
+         * Called in the parsing thread, in the order in which the tests are parsed.
+         *
+         * @param parsed test, never null.
+         * @throws Exception in case that the test could not be handled, it is reported as a
+         *                   failure of the test.
+         */
+        void onParsed(P parsed) throws Exception;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param fetchConcurrency maximum number of downloads at the same time.
+     * @param parseThreads     number of threads parsing the downloaded tests.
+     * @param fetchExecutor    where the downloads run, usually the network pool.
+     * @param fetcher          to download every test.
+     * @param parser           to parse every downloaded test.
+     */
+    public TestsDownloadPipeline(int fetchConcurrency, int parseThreads, Executor fetchExecutor,
+                                 Fetcher<D> fetcher, Parser<D, P> parser) {
+        this.fetchConcurrency = Math.max(1, fetchConcurrency);
+        this.parseThreads = Math.max(1, parseThreads);
+        this.fetchExecutor = fetchExecutor;
+        this.fetcher = fetcher;
+        this.parser = parser;
+    }
+
+    /**
+     * Downloads and parses every url, waiting for all of them.
+     * A test that fails is reported through the listener and does not stop the others.
+     *
+     * @param urls     of the tests.
+     * @param failures called with every exception thrown by a stage, could be null.
+     * @return the parsed tests, in the same order as the urls, without the null ones.
+     * @throws InterruptedException in case that the calling thread is interrupted, the stages
+     *                              that have not started yet are cancelled and the threads
+     *                              of the running downloads are interrupted.
+     */
+    public List<P> run(List<String> urls, FailureListener failures) throws InterruptedException {
+        return run(urls, failures, null);
+    }
+
+    /**
+     * Downloads and parses every url, waiting for all of them, and passes every test to the
+     * listener as soon as it is parsed.
+     * A test that fails is reported through the listener and does not stop the others.
+     *
+     * @param urls     of the tests.
+     * @param failures called with every exception thrown by a stage, could be null.
+     * @param parsed   called with every parsed test, from the parsing threads, could be null.
+     * @return the parsed tests, in the same order as the urls, without the null ones.
+     * @throws InterruptedException in case that the calling thread is interrupted, the stages
+     *                              that have not started yet are cancelled and the threads
+     *                              of the running downloads are interrupted.
+     */
+    public List<P> run(List<String> urls, FailureListener failures, ParsedListener<P> parsed) throws InterruptedException {
+        ExecutorService parsePool = Executors.newFixedThreadPool(Math.min(parseThreads, Math.max(1, urls.size())));
+        Semaphore fetchSlots = new Semaphore(fetchConcurrency);
+        RunningFetches running = new RunningFetches(Thread.currentThread());
+        List<CompletableFuture<D>> fetches = new ArrayList<>();
+        List<CompletableFuture<P>> stages = new ArrayList<>();
+
+        try {
+            for (String url : urls) {
+                fetchSlots.acquire();
+                CompletableFuture<D> fetched;
+                try {
+                    fetched = CompletableFuture.supplyAsync(() -> {
+                        try {
+                            running.started();
+                            try {
+                                return fetcher.fetch(url);
+                            } finally {
+                                running.finished();
+                            }
+                        } catch (Exception e) {
+                            throw new CompletionException(e);
+                        } finally {
+                            fetchSlots.release();
+                        }
+                    }, fetchExecutor);
+                } catch (RuntimeException e) {
+                    fetchSlots.release();
+                    throw e;
+                }
+                fetches.add(fetched);
+
+                stages.add(fetched.thenApplyAsync(downloaded -> {
+                    if (downloaded == null) {
+                        return null;
+                    }
+                    try {
+                        P result = parser.parse(url, downloaded);
+                        if (result != null && parsed != null) {
+                            parsed.onParsed(result);
+                        }
+                        return result;
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, parsePool));
+            }
+
+            List<P> parsedTests = new ArrayList<>();
+            for (CompletableFuture<P> stage : stages) {
+                try {
+                    P result = stage.get();
+                    if (result != null) {
+                        parsedTests.add(result);
+                    }
+                } catch (ExecutionException e) {
+                    if (failures != null) {
+                        Throwable cause = e.getCause();
+                        failures.onFailure(cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause);
+                    }
+                }
+            }
+            return parsedTests;
+        } catch (InterruptedException e) {
+            //The downloads and parses that have not started are skipped, the running downloads
+            //are interrupted so they stop at their next read
+            running.cancel();
+            for (CompletableFuture<D> fetch : fetches) {
+                fetch.cancel(false);
+            }
+            for (CompletableFuture<P> stage : stages) {
+                stage.cancel(false);
+            }
+            parsePool.shutdownNow();
+            throw e;
+        } finally {
+            parsePool.shutdown();
+        }
+    }
+
+    /**
+     * Threads running the downloads of a run, to interrupt them when the run is interrupted.
+     * The thread calling the run is not tracked, its interruption belongs to its caller.
+     */
+    private static class RunningFetches {
+        private final Thread caller;
+        private final Set<Thread> threads = new HashSet<>();
+        private boolean cancelled;
+
+        /**
+         * Constructor
+         *
+         * @param caller thread calling the run.
+         */
+        RunningFetches(Thread caller) {
+            this.caller = caller;
+        }
+
+        /**
+         * Records that the current thread starts a download.
+         *
+         * @throws CancellationException in case that the run has already been interrupted.
+         */
+        synchronized void started() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (Thread.currentThread() != caller) {
+                threads.add(Thread.currentThread());
+            }
+        }
+
+        /**
+         * Records that the current thread has finished its download, and clears the
+         * interruption of the run so it does not reach the next task of the thread.
+         */
+        synchronized void finished() {
+            if (threads.remove(Thread.currentThread()) && cancelled) {
+                Thread.interrupted();
+            }
+        }
+
+        /**
+         * Interrupts the running downloads and stops the ones about to start.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+}
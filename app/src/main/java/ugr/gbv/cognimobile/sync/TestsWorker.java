@@ -2,11 +2,12 @@ package ugr.gbv.cognimobile.sync;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.work.Data;
-import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
 import com.aware.Aware;
@@ -17,26 +18,50 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Objects;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import ugr.gbv.cognimobile.R;
 import ugr.gbv.cognimobile.database.Provider;
+import ugr.gbv.cognimobile.database.SyncSchedule;
+import ugr.gbv.cognimobile.database.ValidatorCache;
 import ugr.gbv.cognimobile.utilities.ErrorHandler;
+import ugr.gbv.cognimobile.utilities.HtmlTextReader;
+import ugr.gbv.cognimobile.utilities.HttpTransport;
 import ugr.gbv.cognimobile.utilities.JsonParserTests;
 import ugr.gbv.cognimobile.utilities.NotificationUtils;
 
 /**
  * Class to retrieve the tests from the server
  */
-public class TestsWorker extends Worker {
+public class TestsWorker extends StoppableWorker {
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String LINK_SEPARATOR = "\n";
+    private static final int MAX_PARSE_THREADS = 4;
+    private static final long STUDY_POLL_MILLIS = 500;
+
+    public static final String KEY_FETCH_CONCURRENCY = "fetch_concurrency";
+    public static final String KEY_JOINED_STUDY = "joined_study";
+    public static final String KEY_STUDY_READY = "study_ready";
+    public static final String KEY_PARSED_TESTS = "parsed_tests";
+    public static final String KEY_TOTAL_TESTS = "total_tests";
 
     private final Context workerContext;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger parsed = new AtomicInteger();
+    private final AtomicInteger streamedInserts = new AtomicInteger();
+    private int totalTests;
 
     /**
      * Constructor
@@ -52,7 +77,10 @@ public class TestsWorker extends Worker {
     }
 
     /**
-     * Overrides the {@link Worker#doWork()} method
+     * Downloads the tests in the thread of the worker. When the worker is stopped the downloads
+     * that have not started yet are cancelled. Right after joining a study, see
+     * {@link #KEY_JOINED_STUDY}, it waits for AWARE to store the study, inserts the tests as they
+     * arrive and then starts the periodic tasks.
      *
      * @return The {@link androidx.work.ListenableWorker.Result} of the computation; note that
      * dependent work will not execute if you use
@@ -61,58 +89,187 @@ public class TestsWorker extends Worker {
      */
     @NonNull
     @Override
-    public Result doWork() {
+    protected Result doStoppableWork() {
+        boolean joinedStudy = getInputData().getBoolean(KEY_JOINED_STUDY, false);
+        if (joinedStudy && !waitForStudy()) {
+            return Result.retry();
+        }
+
+        try {
+            return downloadTests(joinedStudy);
+        } finally {
+            if (joinedStudy) {
+                //The periodic tasks start once the first download has been recorded
+                WorkerManager.getInstance().initiateWorkers(workerContext);
+            }
+        }
+    }
+
+    /**
+     * Downloads, parses and inserts the tests of the study.
+     *
+     * @param streamInserts true to insert every test as soon as it is parsed, so the first ones
+     *                      are available while the rest are downloaded.
+     * @return The {@link androidx.work.ListenableWorker.Result} of the computation.
+     */
+    private Result downloadTests(boolean streamInserts) {
         String testURLString = Aware.getSetting(workerContext, Provider.DB_TBL_TESTS);
         String[] arrayLinks = getTestsLinks(testURLString);
 
+        List<String> urls = arrayLinks.length > 0 ? Arrays.asList(arrayLinks) : Collections.singletonList(testURLString);
+        totalTests = urls.size();
+        publishProgress();
 
-        int inserted = 0;
+        int fetchConcurrency = getInputData().getInt(KEY_FETCH_CONCURRENCY,
+                workerContext.getResources().getInteger(R.integer.tests_fetch_concurrency));
+        int parseThreads = Math.min(MAX_PARSE_THREADS, Runtime.getRuntime().availableProcessors());
 
-        if (arrayLinks.length > 0) {
-            for (String link : arrayLinks) {
-                String testJson = getHtml(link);
-                ContentValues[] data = retrieveDataFromHtml(testJson);
-                if (data != null)
-                    inserted += bulkInsert(data);
-            }
-        } else {
-            String testJson = getHtml(testURLString);
-            if (testJson != null) {
-                retrieveDataFromHtml(testJson);
-                ContentValues[] data = retrieveDataFromHtml(testJson);
-                inserted += bulkInsert(data);
-            }
+        TestsDownloadPipeline<HtmlResponse, ParsedTest> pipeline = new TestsDownloadPipeline<>(
+                fetchConcurrency, parseThreads, HttpTransport.getInstance()::execute,
+                this::getHtml, this::parseTest);
 
-        }
+        int inserted;
 
+        try {
+            if (streamInserts) {
+                pipeline.run(urls, this::onFailure, this::insertParsedTest);
+                inserted = streamedInserts.get();
+            } else {
+                List<ParsedTest> parsedTests = pipeline.run(urls, this::onFailure, test -> onParsed());
+                inserted = insertTests(parsedTests);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        }
 
         if (inserted > 0) {
             NotificationUtils.getInstance().notifyNewTestsAvailable(inserted, workerContext);
-            return Result.success();
-        } else {
+        }
+
+        if (failures.get() > 0) {
             return Result.retry();
         }
 
+        SyncSchedule.onDownloadFinished(workerContext, inserted > 0, System.currentTimeMillis());
+        return Result.success();
+    }
+
+    /**
+     * Waits until AWARE has stored the study that has just been joined, with the link of its
+     * tests. AWARE joins the study in the background, so it could take a few seconds.
+     *
+     * @return true if the study is ready, false if it was not stored in time or the worker has
+     * been stopped.
+     */
+    private boolean waitForStudy() {
+        long deadline = System.currentTimeMillis()
+                + workerContext.getResources().getInteger(R.integer.join_study_timeout_millis);
+        while (!isStudyStored()) {
+            if (isStopped() || System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(STUDY_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if AWARE has stored the study and the link of its tests.
+     *
+     * @return true if the study is stored.
+     */
+    private boolean isStudyStored() {
+        Cursor studies = Aware.getStudy(workerContext, "");
+        int count = 0;
+        if (studies != null) {
+            count = studies.getCount();
+            studies.close();
+        }
+        return count > 0 && !TextUtils.isEmpty(Aware.getSetting(workerContext, Provider.DB_TBL_TESTS));
+    }
+
+    /**
+     * Inserts a test as soon as it is parsed, in the thread that parsed it.
+     *
+     * @param parsedTest to be inserted.
+     */
+    private void insertParsedTest(ParsedTest parsedTest) {
+        streamedInserts.addAndGet(insertTests(Collections.singletonList(parsedTest)));
+        onParsed();
+    }
+
+    /**
+     * Counts a parsed test and publishes the progress of the download.
+     */
+    private void onParsed() {
+        parsed.incrementAndGet();
+        publishProgress();
+    }
+
+    /**
+     * Publishes the number of tests parsed, so the UI could follow the download.
+     */
+    private void publishProgress() {
+        setProgressAsync(new Data.Builder()
+                .putBoolean(KEY_STUDY_READY, true)
+                .putInt(KEY_PARSED_TESTS, parsed.get())
+                .putInt(KEY_TOTAL_TESTS, totalTests)
+                .build());
+    }
 
+    /**
+     * Reports a test or link index that could not be downloaded or parsed.
+     *
+     * @param error thrown.
+     */
+    private void onFailure(Throwable error) {
+        failures.incrementAndGet();
+        ErrorHandler.displayError(error.getMessage());
     }
 
     /**
-     * Retrieves the data from the link's html
+     * Parses a downloaded test.
      *
-     * @param link to retrieve the data.
-     * @return Tests to be inserted in the database.
+     * @param url      where the test was downloaded from.
+     * @param response of the server.
+     * @return the parsed test.
+     * @throws JSONException in case that the test is not valid.
      */
-    private ContentValues[] retrieveDataFromHtml(String link) {
+    private ParsedTest parseTest(String url, HtmlResponse response) throws JSONException {
+        ContentValues[] data = JsonParserTests.getInstance().parse(response.html, workerContext);
+        return new ParsedTest(url, response, data);
+    }
 
-        ContentValues[] testsValues = null;
-        try {
-            testsValues = JsonParserTests.getInstance().parse(link, workerContext);
-        } catch (JSONException e) {
-            ErrorHandler.displayError(e.getMessage());
+    /**
+     * Inserts or replaces every parsed test in a single transaction. Afterwards their validators
+     * are stored, so they are not downloaded again until they change in the server.
+     *
+     * @param parsedTests to be inserted.
+     * @return number of new tests.
+     */
+    private int insertTests(List<ParsedTest> parsedTests) {
+        List<ContentValues> values = new ArrayList<>();
+        for (ParsedTest parsedTest : parsedTests) {
+            if (parsedTest.values != null) {
+                values.addAll(Arrays.asList(parsedTest.values));
+            }
         }
 
-        return testsValues;
+        int inserted = values.isEmpty() ? 0 : bulkInsert(values.toArray(new ContentValues[0]));
 
+        for (ParsedTest parsedTest : parsedTests) {
+            //The names of the tests are kept to check that they are still stored, see getHtml
+            ValidatorCache.store(workerContext, parsedTest.url, parsedTest.response.eTag, parsedTest.response.lastModified,
+                    getTestNames(parsedTest.values));
+        }
+
+        return inserted;
     }
 
     /**
@@ -134,96 +291,135 @@ public class TestsWorker extends Worker {
     }
 
     /**
-     * Gets the html from the URL
+     * Gets the names of the tests parsed from a url.
      *
-     * @param urlString to retrieve the URL html.
-     * @return html as a string to be parsed.
+     * @param values of the parsed tests, could be null.
+     * @return the names joined, null if there are none.
      */
-    private String getHtml(@NonNull String urlString) {
-        String html = null;
-
-        URL htmlUrlSource;
-
-        Uri testQueryUri = Uri.parse(urlString).buildUpon()
-                .build();
-        try {
-            htmlUrlSource = new URL(testQueryUri.toString());
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-            htmlUrlSource = null;
-        }
-
-        if (urlString.contains("https")) {
-            html = getFromHTTPS(Objects.requireNonNull(htmlUrlSource));
-        } else if (urlString.contains("http")) {
-            html = getFromHTTP(Objects.requireNonNull(htmlUrlSource));
+    private static String getTestNames(ContentValues[] values) {
+        List<String> names = new ArrayList<>();
+        if (values != null) {
+            for (ContentValues value : values) {
+                String name = value.getAsString(Provider.Cognimobile_Data.NAME);
+                if (name != null) {
+                    names.add(name);
+                }
+            }
         }
-
-        return html;
+        return names.isEmpty() ? null : TextUtils.join(LINK_SEPARATOR, names);
     }
 
     /**
-     * Gets the html from a HTTPS URL
+     * Checks if the tests downloaded from a url are still stored. They are deleted once they
+     * are done or expire, and then they have to be downloaded again even if they have not
+     * changed in the server.
      *
-     * @param htmlUrlSource to retrieve the HTTPS URL html.
-     * @return html as a string to be parsed.
+     * @param urlString where the tests were downloaded from.
+     * @return true if every test of the url is stored, false if any is missing or the url was
+     * not downloaded before.
      */
-    private String getFromHTTPS(URL htmlUrlSource) {
-        String html = null;
-        try {
-            HttpsURLConnection connection = (HttpsURLConnection) htmlUrlSource.openConnection();
-
-            InputStream in = connection.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 8);
-            StringBuilder str = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                str.append(line.replaceAll("&quot;", "\""));
-            }
-            in.close();
-            html = str.toString();
-        } catch (IOException e) {
-            ErrorHandler.displayError(e.getMessage());
+    private boolean areTestsStored(@NonNull String urlString) {
+        String names = ValidatorCache.getBody(workerContext, urlString);
+        if (names == null || names.isEmpty()) {
+            return false;
         }
-        return html;
+
+        String[] selectionArgs = names.split(LINK_SEPARATOR);
+        String where = Provider.Cognimobile_Data.NAME + " IN ("
+                + TextUtils.join(",", Collections.nCopies(selectionArgs.length, "?")) + ")";
+        Cursor cursor = workerContext.getContentResolver().query(Provider.Cognimobile_Data.CONTENT_URI_TESTS,
+                new String[]{Provider.Cognimobile_Data._ID}, where, selectionArgs, null);
+        int count = 0;
+        if (cursor != null) {
+            count = cursor.getCount();
+            cursor.close();
+        }
+        return count == selectionArgs.length;
     }
 
     /**
-     * Gets the html from a HTTP URL
+     * Gets the html from the URL, if it has changed since the last time it was processed. The
+     * server is only asked whether it has changed when its tests are still stored.
      *
-     * @param htmlUrlSource to retrieve the HTTP URL html.
-     * @return html as a string to be parsed.
+     * @param urlString to retrieve the URL html.
+     * @return html as a string to be parsed and its validators, null if it has not changed.
+     * @throws IOException in case that it could not be retrieved.
      */
-    private String getFromHTTP(URL htmlUrlSource) {
-        String html = null;
-        try {
-            HttpURLConnection connection = (HttpURLConnection) htmlUrlSource.openConnection();
-
-            InputStream in = connection.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 8);
-            StringBuilder str = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                str.append(line.replaceAll("&quot;", "\""));
-            }
-            in.close();
-            html = str.toString();
-        } catch (IOException e) {
-            ErrorHandler.displayError(e.getMessage());
+    private HtmlResponse getHtml(@NonNull String urlString) throws IOException {
+        HtmlResponse html = null;
+
+        URL htmlUrlSource = buildUrl(urlString);
+
+        if (htmlUrlSource != null) {
+            Map<String, String> headers = areTestsStored(urlString)
+                    ? ValidatorCache.getConditionalHeaders(workerContext, urlString)
+                    : null;
+            html = HttpTransport.getInstance().get(htmlUrlSource, headers, connection -> {
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return null;
+                }
+                try (Reader reader = openReader(connection, false, true)) {
+                    return new HtmlResponse(HtmlTextReader.readFully(reader, connection.getContentLength()), connection);
+                }
+            });
         }
+
         return html;
     }
 
     /**
-     * Gets the tests urls.
+     * Gets the tests urls. When the list has not changed since the last time, the stored one is
+     * used.
      *
      * @param urlString to retrieve the tests links.
      * @return urls where the tests data are stored.
      */
     private String[] getTestsLinks(@NonNull String urlString) {
 
-        ArrayList<String> urls = null;
+        ArrayList<String> urls = new ArrayList<>();
+
+        URL htmlUrlSource = buildUrl(urlString);
+
+        if (htmlUrlSource != null) {
+            try {
+                HttpTransport.getInstance().get(htmlUrlSource, ValidatorCache.getConditionalHeaders(workerContext, urlString), connection -> {
+                    if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        String cachedLinks = ValidatorCache.getBody(workerContext, urlString);
+                        if (cachedLinks != null && !cachedLinks.isEmpty()) {
+                            urls.addAll(Arrays.asList(cachedLinks.split(LINK_SEPARATOR)));
+                        }
+                        return urls;
+                    }
+                    try (BufferedReader reader = new BufferedReader(openReader(connection, true, false))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            line = line.trim();
+                            if (!line.isEmpty()) {
+                                urls.add(line);
+                            }
+                        }
+                    }
+                    ValidatorCache.store(workerContext, urlString,
+                            connection.getHeaderField(HEADER_ETAG),
+                            connection.getHeaderField(HEADER_LAST_MODIFIED),
+                            TextUtils.join(LINK_SEPARATOR, urls));
+                    return urls;
+                });
+            } catch (IOException e) {
+                onFailure(e);
+            }
+        }
+
+        return urls.toArray(new String[0]);
+    }
 
+    /**
+     * Builds the URL to be requested.
+     *
+     * @param urlString to be parsed.
+     * @return the URL or null if it is not valid.
+     */
+    private URL buildUrl(@NonNull String urlString) {
         URL htmlUrlSource;
 
         Uri testQueryUri = Uri.parse(urlString).buildUpon()
@@ -235,62 +431,63 @@ public class TestsWorker extends Worker {
             htmlUrlSource = null;
         }
 
-
-        if (urlString.contains("https")) {
-            urls = getLinksFromHTTPS(Objects.requireNonNull(htmlUrlSource));
-        } else if (urlString.contains("http")) {
-            urls = getLinksFromHTTP(Objects.requireNonNull(htmlUrlSource));
-        }
-
-
-        return Objects.requireNonNull(urls).toArray(new String[0]);
+        return htmlUrlSource;
     }
 
     /**
-     * Gets the tests urls from a HTTP url.
+     * Opens a reader over the body of the response that decodes the html entities.
      *
-     * @param htmlUrlSource to retrieve the tests links.
-     * @return urls where the tests data are stored.
+     * @param connection already sent connection.
+     * @param stripTags  true to remove the html tags.
+     * @param joinLines  true to remove the line breaks.
+     * @return reader of the decoded body.
+     * @throws IOException in case that the body could not be read.
      */
-    private ArrayList<String> getLinksFromHTTP(URL htmlUrlSource) {
-        ArrayList<String> urls = new ArrayList<>();
-        try {
-            HttpURLConnection connection = (HttpURLConnection) htmlUrlSource.openConnection();
+    private Reader openReader(HttpURLConnection connection, boolean stripTags, boolean joinLines) throws IOException {
+        InputStream in = HttpTransport.getInputStream(connection);
+        return new HtmlTextReader(new InputStreamReader(in, StandardCharsets.UTF_8), stripTags, joinLines);
+    }
 
-            InputStream in = connection.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 8);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                urls.add(line.replaceAll("<[^>]*>", "").trim());
-            }
-            in.close();
-        } catch (IOException e) {
-            ErrorHandler.displayError(e.getMessage());
+    /**
+     * Body of a response with its validators.
+     */
+    private static class HtmlResponse {
+        private final String html;
+        private final String eTag;
+        private final String lastModified;
+
+        /**
+         * Constructor
+         *
+         * @param html       body of the response.
+         * @param connection to read the validators from.
+         */
+        HtmlResponse(String html, HttpURLConnection connection) {
+            this.html = html;
+            this.eTag = connection.getHeaderField(HEADER_ETAG);
+            this.lastModified = connection.getHeaderField(HEADER_LAST_MODIFIED);
         }
-        return urls;
     }
 
     /**
-     * Gets the tests urls from a HTTPS url.
-     *
-     * @param htmlUrlSource to retrieve the tests links.
-     * @return urls where the tests data are stored.
+     * Downloaded test with the values to be inserted.
      */
-    private ArrayList<String> getLinksFromHTTPS(URL htmlUrlSource) {
-        ArrayList<String> urls = new ArrayList<>();
-        try {
-            HttpsURLConnection connection = (HttpsURLConnection) htmlUrlSource.openConnection();
-
-            InputStream in = connection.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 8);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                urls.add(line.replaceAll("<[^>]*>", "").trim());
-            }
-            in.close();
-        } catch (IOException e) {
-            ErrorHandler.displayError(e.getMessage());
+    private static class ParsedTest {
+        private final String url;
+        private final HtmlResponse response;
+        private final ContentValues[] values;
+
+        /**
+         * Constructor
+         *
+         * @param url      where the test was downloaded from.
+         * @param response of the server.
+         * @param values   to be inserted, null if the test could not be parsed.
+         */
+        ParsedTest(String url, HtmlResponse response, ContentValues[] values) {
+            this.url = url;
+            this.response = response;
+            this.values = values;
         }
-        return urls;
     }
 }
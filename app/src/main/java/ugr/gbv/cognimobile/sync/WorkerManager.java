@@ -3,21 +3,44 @@ package ugr.gbv.cognimobile.sync;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
 import androidx.work.Constraints;
+import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import ugr.gbv.cognimobile.R;
+import ugr.gbv.cognimobile.utilities.UploadPriority;
 
 /**
  * Class to manage the workers.
  */
 public class WorkerManager {
 
+    private static final String SYNC_UID = "sync";
+    private static final String SYNC_DOWNLOAD_UID = "syncDownload";
+    private static final String SYNC_UPLOAD_UID = "syncUpload";
+    private static final String SYNC_UPLOAD_BULK_UID = "syncUploadBulk";
+    private static final String SYNC_DELETE_UID = "syncDelete";
+    private static final String JOIN_DOWNLOAD_UID = "joinDownload";
+    private static final String DOWNLOAD_UID = "download";
+    private static final String UPLOAD_UID = "upload";
+    private static final String DELETE_UID = "delete";
+
+    private static final String SYNC_TAG = "sync";
+    private static final String DOWNLOAD_TAG = "downloadResults";
+    private static final String UPLOAD_TAG = "uploadResults";
+    private static final String DELETE_TAG = "deleteAll";
+    private static final String JOIN_DOWNLOAD_TAG = "joinDownload";
+
     private static volatile WorkerManager instance;
 
 
@@ -47,63 +70,182 @@ public class WorkerManager {
     }
 
     /**
-     * Initiates the workers.
+     * Initiates the workers. A single periodic wake-up decides which tasks are due, see
+     * {@link SyncWorker}.
      *
      * @param context from the parent activity.
      */
     public void initiateWorkers(@NonNull Context context) {
-        Constraints.Builder builder = new Constraints.Builder();
-
-
-        builder.setRequiredNetworkType(NetworkType.CONNECTED)
-                .setRequiresStorageNotLow(true);
-
-
-        Constraints constraints = builder.build();
+        WorkManager workManager = WorkManager.getInstance(context);
 
+        //Periodic work of the previous versions, replaced by the sync wake-up
+        workManager.cancelUniqueWork(DOWNLOAD_UID);
+        workManager.cancelUniqueWork(UPLOAD_UID);
+        workManager.cancelUniqueWork(DELETE_UID);
 
-        String DOWNLOAD_TAG = "downloadResults";
-        PeriodicWorkRequest downloadRequest =
-                new PeriodicWorkRequest.Builder(TestsWorker.class,
+        PeriodicWorkRequest syncRequest =
+                new PeriodicWorkRequest.Builder(SyncWorker.class,
                         context.getResources().getInteger(R.integer.fifteen),
                         TimeUnit.MINUTES)
-                        .setConstraints(constraints)
-                        .addTag(DOWNLOAD_TAG)
+                        .setConstraints(buildConstraints(NetworkType.CONNECTED))
+                        .addTag(SYNC_TAG)
                         .build();
 
-        String UPLOAD_TAG = "uploadResults";
-        PeriodicWorkRequest uploadRequest =
-                new PeriodicWorkRequest.Builder(ResultWorker.class,
-                        context.getResources().getInteger(R.integer.fifteen),
-                        TimeUnit.MINUTES)
-                        .setConstraints(constraints)
-                        .addTag(UPLOAD_TAG)
-                        .build();
+        workManager.enqueueUniquePeriodicWork(SYNC_UID,
+                ExistingPeriodicWorkPolicy.KEEP, syncRequest);
+    }
 
-        String DELETE_TAG = "deleteAll";
-        PeriodicWorkRequest deleteRequest =
-                new PeriodicWorkRequest.Builder(DeleteWorker.class,
-                        context.getResources().getInteger(R.integer.thirty),
-                        TimeUnit.DAYS)
-                        .setConstraints(constraints)
-                        .addTag(DELETE_TAG)
-                        .build();
+    /**
+     * Uploads the pending results as soon as there is connection, without waiting for the
+     * next periodic wake-up. Used when a test has finished, the bulk data of the session is
+     * left to the next wake-up. An upload already running is not cancelled, this one goes
+     * after it to send the session it could have missed.
+     *
+     * @param context from the parent activity.
+     */
+    public void expediteUpload(@NonNull Context context) {
+        enqueueUpload(context, UploadPriority.CONTEXT_EVENTS, ExistingWorkPolicy.APPEND_OR_REPLACE);
+    }
 
-        String DOWNLOAD_UID = "download";
+    /**
+     * Downloads the tests of a study that has just been joined as soon as AWARE has stored it,
+     * without waiting for the periodic wake-up, and then starts the periodic tasks. The tests
+     * are inserted as they arrive and the progress could be followed through
+     * {@link #getJoinedStudyDownload(Context)}.
+     *
+     * @param context from the parent activity.
+     * @return the observable state of this download.
+     */
+    public LiveData<WorkInfo> downloadJoinedStudy(@NonNull Context context) {
+        Data input = new Data.Builder()
+                .putBoolean(TestsWorker.KEY_JOINED_STUDY, true)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(TestsWorker.class)
+                .setConstraints(buildConstraints(NetworkType.CONNECTED))
+                .setInputData(input)
+                .addTag(JOIN_DOWNLOAD_TAG)
+                .build();
+
+        WorkManager workManager = WorkManager.getInstance(context);
+        workManager.enqueueUniqueWork(JOIN_DOWNLOAD_UID, ExistingWorkPolicy.REPLACE, request);
+        return workManager.getWorkInfoByIdLiveData(request.getId());
+    }
+
+    /**
+     * Gets the state of the download started by {@link #downloadJoinedStudy(Context)}. Its
+     * progress has the keys {@link TestsWorker#KEY_STUDY_READY},
+     * {@link TestsWorker#KEY_PARSED_TESTS} and {@link TestsWorker#KEY_TOTAL_TESTS}.
+     *
+     * @param context from the parent activity.
+     * @return the observable state of the download, empty if it was never enqueued.
+     */
+    public LiveData<List<WorkInfo>> getJoinedStudyDownload(@NonNull Context context) {
+        return WorkManager.getInstance(context).getWorkInfosForUniqueWorkLiveData(JOIN_DOWNLOAD_UID);
+    }
+
+    /**
+     * Enqueues the download of the tests, unless it is already enqueued.
+     *
+     * @param context from the parent activity.
+     */
+    void enqueueDownload(@NonNull Context context) {
         WorkManager.getInstance(context)
-                .enqueueUniquePeriodicWork(DOWNLOAD_UID,
-                        ExistingPeriodicWorkPolicy.KEEP, downloadRequest);
+                .enqueueUniqueWork(SYNC_DOWNLOAD_UID, ExistingWorkPolicy.KEEP, buildDownloadRequest());
+    }
 
-        String UPLOAD_UID = "upload";
+    /**
+     * Enqueues the upload of the most important data, on any network.
+     *
+     * @param context     from the parent activity.
+     * @param maxPriority lowest {@link UploadPriority} class to be uploaded.
+     * @param policy      what to do if an upload is already enqueued.
+     */
+    void enqueueUpload(@NonNull Context context, int maxPriority, ExistingWorkPolicy policy) {
+        WorkManager.getInstance(context)
+                .enqueueUniqueWork(SYNC_UPLOAD_UID, policy,
+                        buildUploadRequest(UploadPriority.RESULTS, maxPriority, false));
+    }
+
+    /**
+     * Enqueues the upload of the data that could wait, separately from the most important
+     * one, so it does not hold it back.
+     *
+     * @param context     from the parent activity.
+     * @param minPriority highest {@link UploadPriority} class to be uploaded.
+     * @param unmetered   true to wait for an unmetered network.
+     * @param policy      what to do if an upload is already enqueued.
+     */
+    void enqueueDeferredUpload(@NonNull Context context, int minPriority, boolean unmetered, ExistingWorkPolicy policy) {
         WorkManager.getInstance(context)
-                .enqueueUniquePeriodicWork(UPLOAD_UID,
-                        ExistingPeriodicWorkPolicy.KEEP, uploadRequest);
+                .enqueueUniqueWork(SYNC_UPLOAD_BULK_UID, policy,
+                        buildUploadRequest(minPriority, UploadPriority.BULK, unmetered));
+    }
 
-        String DELETE_UID = "delete";
+    /**
+     * Enqueues the deletion of the old data, unless it is already enqueued.
+     *
+     * @param context from the parent activity.
+     */
+    void enqueueDelete(@NonNull Context context) {
         WorkManager.getInstance(context)
-                .enqueueUniquePeriodicWork(DELETE_UID,
-                        ExistingPeriodicWorkPolicy.KEEP, deleteRequest);
+                .enqueueUniqueWork(SYNC_DELETE_UID, ExistingWorkPolicy.KEEP, buildDeleteRequest());
+    }
+
+    /**
+     * Builds the request to download the tests.
+     *
+     * @return the request.
+     */
+    private OneTimeWorkRequest buildDownloadRequest() {
+        return new OneTimeWorkRequest.Builder(TestsWorker.class)
+                .setConstraints(buildConstraints(NetworkType.CONNECTED))
+                .addTag(DOWNLOAD_TAG)
+                .build();
+    }
+
+    /**
+     * Builds the request to upload the results.
+     *
+     * @param minPriority highest {@link UploadPriority} class to be uploaded.
+     * @param maxPriority lowest {@link UploadPriority} class to be uploaded.
+     * @param unmetered   true to wait for an unmetered network, for large uploads.
+     * @return the request.
+     */
+    private OneTimeWorkRequest buildUploadRequest(int minPriority, int maxPriority, boolean unmetered) {
+        Data priorities = new Data.Builder()
+                .putInt(ResultWorker.KEY_MIN_PRIORITY, minPriority)
+                .putInt(ResultWorker.KEY_MAX_PRIORITY, maxPriority)
+                .build();
+        return new OneTimeWorkRequest.Builder(ResultWorker.class)
+                .setConstraints(buildConstraints(unmetered ? NetworkType.UNMETERED : NetworkType.CONNECTED))
+                .setInputData(priorities)
+                .addTag(UPLOAD_TAG)
+                .build();
+    }
 
+    /**
+     * Builds the request to delete the old data.
+     *
+     * @return the request.
+     */
+    private OneTimeWorkRequest buildDeleteRequest() {
+        return new OneTimeWorkRequest.Builder(DeleteWorker.class)
+                .setConstraints(new Constraints.Builder().setRequiresStorageNotLow(true).build())
+                .addTag(DELETE_TAG)
+                .build();
+    }
+
+    /**
+     * Builds the constraints of the network tasks.
+     *
+     * @param networkType required by the task.
+     * @return the constraints.
+     */
+    private Constraints buildConstraints(NetworkType networkType) {
+        return new Constraints.Builder()
+                .setRequiredNetworkType(networkType)
+                .setRequiresStorageNotLow(true)
+                .build();
     }
 
 
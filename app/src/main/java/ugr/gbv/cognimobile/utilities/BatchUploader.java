@@ -0,0 +1,325 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Class to post batches of rows to a table of the study server, in the calling thread.
+ * It does not depend on the Android context, the caller resolves the endpoint and the device,
+ * so the same code runs in the app and against a local server in the tests.
+ * A request carries the Idempotency-Key of the whole batch and, when it has several rows, the
+ * key of every row in the Idempotency-Keys header, in the order of the rows. The key of the
+ * batch only matches the repetitions of the same batch, while the rows could be grouped in a
+ * different way by the next attempt, with new rows queued or by another priority pass, if
+ * the response to a committed batch is lost. A server that discards the rows whose key it
+ * already has stores every row once whatever the batch it comes in.
+ */
+public class BatchUploader {
+
+    private final static String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private final static String ROW_IDEMPOTENCY_KEYS_HEADER = "Idempotency-Keys";
+    private final static String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+    private final static int READ_BUFFER_SIZE = 8192;
+
+    private final HttpTransport transport;
+    private final RetryPolicy retryPolicy;
+    private final boolean gzip;
+
+    /**
+     * Constructor
+     *
+     * @param transport   to send the requests.
+     * @param retryPolicy to repeat the failed requests.
+     * @param gzip        true to compress the body, the server needs to accept the gzip
+     *                    Content-Encoding.
+     */
+    public BatchUploader(HttpTransport transport, RetryPolicy retryPolicy, boolean gzip) {
+        this.transport = transport;
+        this.retryPolicy = retryPolicy;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Post several rows of a table in a single request, with the timestamp of every row. When
+     * the request fails with a status that could succeed later, or without response, it is
+     * repeated following the {@link RetryPolicy}. The request carries an Idempotency-Key
+     * derived from the keys of its rows, the same for every attempt, and the key of every
+     * row, so the server could discard the repeated ones.
+     *
+     * @param url             of the insert command of the table
+     * @param deviceId        value of the device_id field
+     * @param rows            the data of every row to post, a json value each
+     * @param timestamps      in milliseconds of every row, null to use the current time
+     * @param idempotencyKeys of every row, null to send the request without key
+     * @return the status code of every row, if the server does not report them one by one all of
+     * them get the status code of the request.
+     * @throws IOException   in case that there is no connection established.
+     * @throws JSONException in case that the json is invalid.
+     */
+    public int[] post(URL url, String deviceId, List<?> rows, List<Long> timestamps,
+                      List<String> idempotencyKeys) throws IOException, JSONException {
+        JSONArray data = formatBatch(rows, timestamps);
+
+        return postBody(url, rows.size(), idempotencyKeys, FORM_CONTENT_TYPE, out -> writeForm(out, deviceId, data));
+    }
+
+    /**
+     * Writes several rows of a table as the form that {@link #post} sends, to be uploaded by
+     * other means, such as the {@link ResumableUploader}. The same rows always give the same
+     * bytes.
+     *
+     * @param deviceId   value of the device_id field
+     * @param rows       the data of every row, a json value each
+     * @param timestamps in milliseconds of every row
+     * @return the body of the form.
+     * @throws IOException   in case that the body could not be written.
+     * @throws JSONException in case that the json is invalid.
+     */
+    public static byte[] formatForm(String deviceId, List<?> rows, List<Long> timestamps) throws IOException, JSONException {
+        JSONArray data = formatBatch(rows, timestamps);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeForm(body, deviceId, data);
+        return body.toByteArray();
+    }
+
+    /**
+     * Writes the form with the device and the rows.
+     *
+     * @param out      where the form is written
+     * @param deviceId value of the device_id field
+     * @param data     rows formatted by {@link #formatBatch}
+     * @throws IOException in case that the body could not be written.
+     */
+    private static void writeForm(OutputStream out, String deviceId, JSONArray data) throws IOException {
+        FormUrlEncodingWriter form = new FormUrlEncodingWriter(out);
+        form.writeRaw("device_id=");
+        form.write(deviceId);
+        form.writeRaw("&data=");
+        try {
+            JsonStreamWriter.write(form, data);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        form.flush();
+    }
+
+    /**
+     * Post several rows of a table in a single request, written with the
+     * {@link BinaryEventsCodec} instead of as a json form. The timestamps are sent in
+     * milliseconds. It is repeated and carries an Idempotency-Key like
+     * {@link #post(URL, String, List, List, List)}. Servers that do not know the binary form
+     * answer 415.
+     *
+     * @param url             of the insert command of the table
+     * @param deviceId        of the device
+     * @param rows            the data of every row to post, a json value each
+     * @param timestamps      in milliseconds of every row, null to use the current time
+     * @param idempotencyKeys of every row, null to send the request without key
+     * @return the status code of every row, if the server does not report them one by one all of
+     * them get the status code of the request.
+     * @throws IOException in case that there is no connection established.
+     */
+    public int[] postBinary(URL url, String deviceId, List<?> rows, List<Long> timestamps,
+                            List<String> idempotencyKeys) throws IOException {
+        List<Long> millis = timestamps;
+        if (millis == null) {
+            long now = System.currentTimeMillis();
+            millis = new ArrayList<>();
+            for (int i = 0; i < rows.size(); ++i) {
+                millis.add(now + i);
+            }
+        }
+        List<Long> rowTimestamps = millis;
+
+        return postBody(url, rows.size(), idempotencyKeys, BinaryEventsCodec.CONTENT_TYPE, out -> {
+            try {
+                BinaryEventsCodec.writeBatch(out, deviceId, rows, rowTimestamps);
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        });
+    }
+
+    /**
+     * Post a body, repeating it while it fails with a status that could succeed later, or
+     * without response, following the {@link RetryPolicy}. It gives up when the calling thread
+     * is interrupted.
+     *
+     * @param url             where the body is posted
+     * @param rows            number of rows in the body
+     * @param idempotencyKeys of every row, null to send the request without key
+     * @param contentType     of the body
+     * @param body            to write the body, once per attempt
+     * @return the status code of every row.
+     * @throws IOException in case that there is no connection established.
+     */
+    private int[] postBody(URL url, int rows, List<String> idempotencyKeys, String contentType,
+                           HttpTransport.BodyWriter body) throws IOException {
+        Map<String, String> headers = idempotencyKeys != null ? buildKeyHeaders(idempotencyKeys) : null;
+
+        for (int attempt = 0; ; ++attempt) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Upload interrupted");
+            }
+            try {
+                int[] statuses = transport.postStreaming(url, contentType, headers, gzip, body,
+                        connection -> readRowStatuses(connection, rows));
+                if (!isRetryable(statuses) || !retryPolicy.canRetry(attempt)) {
+                    return statuses;
+                }
+            } catch (CircuitBreaker.OpenException e) {
+                throw e;
+            } catch (IOException e) {
+                if (!retryPolicy.canRetry(attempt)) {
+                    throw e;
+                }
+            }
+
+            NetworkMetrics.getInstance().forUrl(url).onRetry();
+            try {
+                Thread.sleep(retryPolicy.getDelayMillis(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted while waiting to retry");
+            }
+        }
+    }
+
+    /**
+     * Checks if a whole request should be repeated: every row failed with a status that could
+     * succeed later.
+     *
+     * @param statuses of every row.
+     * @return true if the request could be repeated.
+     */
+    private boolean isRetryable(int[] statuses) {
+        for (int status : statuses) {
+            if (!RetryPolicy.isRetryable(status)) {
+                return false;
+            }
+        }
+        return statuses.length > 0;
+    }
+
+    /**
+     * Builds the headers with the keys of a request: the key of the batch, derived from the
+     * keys of its rows so the same rows always get the same key, and the key of every row.
+     * A single row is only identified by its own key.
+     *
+     * @param idempotencyKeys of every row, without commas.
+     * @return the headers of the request.
+     */
+    private Map<String, String> buildKeyHeaders(List<String> idempotencyKeys) {
+        if (idempotencyKeys.size() == 1) {
+            return Collections.singletonMap(IDEMPOTENCY_KEY_HEADER, idempotencyKeys.get(0));
+        }
+        StringBuilder joined = new StringBuilder();
+        for (String key : idempotencyKeys) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(key);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put(IDEMPOTENCY_KEY_HEADER, UUID.nameUUIDFromBytes(joined.toString().getBytes(StandardCharsets.UTF_8)).toString());
+        headers.put(ROW_IDEMPOTENCY_KEYS_HEADER, joined.toString());
+        return headers;
+    }
+
+    /**
+     * Reads the status of every row of a batch. When the server answers with an array with one
+     * status per row, as a number or as an object with a "status" field, those are used.
+     *
+     * @param connection already sent connection
+     * @param rows       number of rows in the batch
+     * @return the status code of every row
+     * @throws IOException in case that the response could not be read.
+     */
+    private int[] readRowStatuses(HttpURLConnection connection, int rows) throws IOException {
+        int code = connection.getResponseCode();
+        int[] statuses = new int[rows];
+        Arrays.fill(statuses, code);
+
+        if (code == HttpURLConnection.HTTP_OK) {
+            String body = readBody(HttpTransport.getInputStream(connection));
+            try {
+                JSONArray perRow = new JSONArray(body);
+                if (perRow.length() == rows) {
+                    for (int i = 0; i < rows; ++i) {
+                        JSONObject status = perRow.optJSONObject(i);
+                        statuses[i] = status != null ? status.getInt("status") : perRow.getInt(i);
+                    }
+                }
+            } catch (JSONException e) {
+                //Legacy servers do not answer per row, the request code is valid for all of them
+                Arrays.fill(statuses, code);
+            }
+        }
+
+        return statuses;
+    }
+
+    /**
+     * Reads the body of a response.
+     *
+     * @param in body of the response
+     * @return the body as a string
+     * @throws IOException in case that the body could not be read.
+     */
+    private String readBody(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        StringBuilder body = new StringBuilder();
+        char[] buffer = new char[READ_BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            body.append(buffer, 0, read);
+        }
+        return body.toString();
+    }
+
+
+    /**
+     * Formats several rows as the json data field from AWARE database.
+     *
+     * @param rows       to put in the server database.
+     * @param timestamps in milliseconds of every row, null to use the current time.
+     * @return the rows as the server expects them.
+     * @throws JSONException in case that the json is invalid.
+     */
+    private static JSONArray formatBatch(List<?> rows, List<Long> timestamps) throws JSONException {
+
+        long millis = System.currentTimeMillis();
+
+        JSONArray realData = new JSONArray();
+
+        for (int i = 0; i < rows.size(); ++i) {
+            JSONObject jsonParam = new JSONObject();
+            //Each row needs its own timestamp, the server uses it with the device id as key
+            jsonParam.put("timestamp", (timestamps != null ? timestamps.get(i) : millis + i) / 1000.0);
+            jsonParam.put("data", rows.get(i));
+            realData.put(jsonParam);
+        }
+
+        return realData;
+    }
+}
@@ -0,0 +1,714 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of the context events, an alternative to the json form for the servers
+ * that accept it. A batch is written as:
+ * <pre>
+ * magic "CE" | version | device id | rows | (timestamp delta | value) per row
+ * </pre>
+ * Every integer is a zigzag varint, every string is its UTF-8 length followed by its bytes, and
+ * the keys of the objects are ids: the known keys of {@link ContextDataRetriever} have fixed
+ * ids and any other key is written once and then referred by the next free id. The lists of
+ * timestamps joined by commas are written as the varint deltas between them, and the arrays of
+ * points as floats.
+ * The decoder returns the same json values, so it is the reference for the server.
+ */
+public class BinaryEventsCodec {
+
+    public static final String CONTENT_TYPE = "application/vnd.cognimobile.events+binary";
+    public static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAGIC_0 = 'C';
+    private static final int MAGIC_1 = 'E';
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_JOINED_INTS = 6;
+    private static final int TAG_OBJECT = 7;
+    private static final int TAG_ARRAY = 8;
+    private static final int TAG_INT_ARRAY = 9;
+    private static final int TAG_FLOAT_ARRAY = 10;
+
+    /**
+     * Keys with a fixed id, its position plus one. New keys are only appended at the end, the
+     * server has the same list.
+     */
+    private static final String[] KNOWN_KEYS = {
+            "name", "language", "overall_score", "task_type",
+            ContextDataRetriever.GenericTimeHelp, ContextDataRetriever.GenericTimeBeforeTask,
+            ContextDataRetriever.GenericTimeStartTask, ContextDataRetriever.GenericTimeEndTask,
+            ContextDataRetriever.GenericTimeNextTask, ContextDataRetriever.GenericSkippedTask,
+            ContextDataRetriever.SpecificATMTimeBetweenClicks, ContextDataRetriever.SpecificATMAlreadyClickedButton,
+            ContextDataRetriever.SpecificATMPoints, ContextDataRetriever.SpecificATMDistanceBetweenCircles,
+            ContextDataRetriever.SpecificVSCubeStartDraw, ContextDataRetriever.SpecificVSCubeEndDraw,
+            ContextDataRetriever.SpecificVSCubePoints, ContextDataRetriever.SpecificVSClockStartDraw,
+            ContextDataRetriever.SpecificVSClockEndDraw, ContextDataRetriever.SpecificVSClockPoints,
+            ContextDataRetriever.SpecificNamingCharacterChange, ContextDataRetriever.SpecificNamingStartWriting,
+            ContextDataRetriever.SpecificNamingSubmitAnswer, ContextDataRetriever.SpecificMemoryCharacterChange,
+            ContextDataRetriever.SpecificMemoryScrollingList, ContextDataRetriever.SpecificMemorySettlingList,
+            ContextDataRetriever.SpecificMemoryStartWriting, ContextDataRetriever.SpecificMemorySubmitAnswer,
+            ContextDataRetriever.SpecificAttentionNumbersItemPosition, ContextDataRetriever.SpecificAttentionNumbersStartWriting,
+            ContextDataRetriever.SpecificAttentionNumbersItemPositionBackwards, ContextDataRetriever.SpecificAttentionNumbersSubmitAnswer,
+            ContextDataRetriever.SpecificAttentionLettersTimeToAnswer, ContextDataRetriever.SpecificAttentionLettersSoundTimes,
+            ContextDataRetriever.SpecificSubtractionCharacterChange, ContextDataRetriever.SpecificSubtractionStartWriting,
+            ContextDataRetriever.SpecificSubtractionSubmitAnswer, ContextDataRetriever.SpecificSRCharacterChange,
+            ContextDataRetriever.SpecificSRStartWriting, ContextDataRetriever.SpecificSRSubmitAnswer,
+            ContextDataRetriever.SpecificFluencyCharacterChange, ContextDataRetriever.SpecificFluencyScrollingList,
+            ContextDataRetriever.SpecificFluencySettlingList, ContextDataRetriever.SpecificFluencyStartWriting,
+            ContextDataRetriever.SpecificFluencySubmitAnswer, ContextDataRetriever.SpecificAbstractionCharacterChange,
+            ContextDataRetriever.SpecificAbstractionStartWriting, ContextDataRetriever.SpecificAbstractionSubmitAnswer,
+            ContextDataRetriever.SpecificRecallCharacterChange, ContextDataRetriever.SpecificRecallScrollingList,
+            ContextDataRetriever.SpecificRecallSettlingList, ContextDataRetriever.SpecificRecallStartWriting,
+            ContextDataRetriever.SpecificRecallNumbersOfWords, ContextDataRetriever.SpecificRecallNumbersOfCorrectWords,
+            ContextDataRetriever.SpecificRecallSubmitAnswer, ContextDataRetriever.SpecificOrientationCharacterChange,
+            ContextDataRetriever.SpecificOrientationStartWriting, ContextDataRetriever.SpecificOrientationSubmitAnswer,
+    };
+
+    /**
+     * Rows of a decoded batch.
+     */
+    public static class Batch {
+        public final String deviceId;
+        public final List<Long> timestamps = new ArrayList<>();
+        public final List<Object> rows = new ArrayList<>();
+
+        /**
+         * Constructor
+         *
+         * @param deviceId of the batch.
+         */
+        Batch(String deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    /**
+     * Writes a batch of rows.
+     *
+     * @param out        where the batch is written, it is not closed.
+     * @param deviceId   of the device.
+     * @param rows       json values to be written.
+     * @param timestamps in milliseconds of every row.
+     * @throws IOException   in case that the stream fails.
+     * @throws JSONException in case that a value is not a json value.
+     */
+    public static void writeBatch(OutputStream out, String deviceId, List<?> rows, List<Long> timestamps)
+            throws IOException, JSONException {
+        Encoder encoder = new Encoder(out);
+        encoder.write(MAGIC_0);
+        encoder.write(MAGIC_1);
+        encoder.write(VERSION);
+        encoder.writeString(deviceId);
+        encoder.writeVarint(rows.size());
+        long previous = 0;
+        for (int i = 0; i < rows.size(); ++i) {
+            encoder.writeSigned(timestamps.get(i) - previous);
+            previous = timestamps.get(i);
+            encoder.writeValue(rows.get(i));
+        }
+        encoder.flush();
+    }
+
+    /**
+     * Reads a batch of rows.
+     *
+     * @param in stream with the batch.
+     * @return the decoded batch.
+     * @throws IOException   in case that the batch is not valid.
+     * @throws JSONException in case that the json values could not be built.
+     */
+    public static Batch readBatch(InputStream in) throws IOException, JSONException {
+        Decoder decoder = new Decoder(in);
+        if (decoder.readByte() != MAGIC_0 || decoder.readByte() != MAGIC_1) {
+            throw new IOException("Not a binary events batch");
+        }
+        int version = decoder.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary events version " + version);
+        }
+        Batch batch = new Batch(decoder.readString());
+        long rows = decoder.readVarint();
+        long timestamp = 0;
+        for (long i = 0; i < rows; ++i) {
+            timestamp += decoder.readSigned();
+            batch.timestamps.add(timestamp);
+            batch.rows.add(decoder.readValue());
+        }
+        return batch;
+    }
+
+    /**
+     * Encodes a single json value.
+     *
+     * @param value to be encoded.
+     * @return the encoded value.
+     * @throws JSONException in case that it is not a json value.
+     */
+    public static byte[] encode(Object value) throws JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Encoder encoder = new Encoder(out);
+            encoder.writeValue(value);
+            encoder.flush();
+        } catch (IOException e) {
+            throw new JSONException(e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a single json value.
+     *
+     * @param bytes of the encoded value.
+     * @return the json value.
+     * @throws IOException   in case that the bytes are not valid.
+     * @throws JSONException in case that the json value could not be built.
+     */
+    public static Object decode(byte[] bytes) throws IOException, JSONException {
+        return new Decoder(new ByteArrayInputStream(bytes)).readValue();
+    }
+
+    /**
+     * Parses a list of integers joined by commas, as the context data retriever writes them.
+     *
+     * @param text to be parsed.
+     * @return the integers, null if the text is not exactly such a list.
+     */
+    static long[] parseJoinedInts(String text) {
+        if (text.isEmpty()) {
+            return null;
+        }
+        int count = 1;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == ',') {
+                ++count;
+            } else if ((c < '0' || c > '9') && c != '-') {
+                return null;
+            }
+        }
+
+        long[] values = new long[count];
+        int start = 0;
+        for (int i = 0; i < count; ++i) {
+            int end = text.indexOf(',', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            String part = text.substring(start, end);
+            try {
+                values[i] = Long.parseLong(part);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            //Leading zeros or "-0" would not be written back the same
+            if (!Long.toString(values[i]).equals(part)) {
+                return null;
+            }
+            start = end + 1;
+        }
+        return values;
+    }
+
+    /**
+     * Writes the json values.
+     */
+    private static class Encoder {
+        private final OutputStream out;
+        private final Map<String, Integer> keys = new HashMap<>();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+
+        /**
+         * Constructor
+         *
+         * @param out where the values are written.
+         */
+        Encoder(OutputStream out) {
+            this.out = out;
+            for (int i = 0; i < KNOWN_KEYS.length; ++i) {
+                keys.put(KNOWN_KEYS[i], i + 1);
+            }
+        }
+
+        /**
+         * Writes a byte into the buffer, emptying it into the stream when it is full.
+         *
+         * @param b byte to be written, only the lowest 8 bits are used.
+         * @throws IOException in case that the stream fails.
+         */
+        void write(int b) throws IOException {
+            if (position == buffer.length) {
+                flush();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        /**
+         * Writes several bytes.
+         *
+         * @param bytes to be written.
+         * @throws IOException in case that the stream fails.
+         */
+        void write(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.length - position) {
+                flush();
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        /**
+         * Empties the buffer into the stream.
+         *
+         * @throws IOException in case that the stream fails.
+         */
+        void flush() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        /**
+         * Writes a json value with its tag.
+         *
+         * @param value to be written.
+         * @throws IOException   in case that the stream fails.
+         * @throws JSONException in case that it is not a json value.
+         */
+        void writeValue(Object value) throws IOException, JSONException {
+            if (value == null || value == JSONObject.NULL) {
+                write(TAG_NULL);
+            } else if (value instanceof Boolean) {
+                write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                write(TAG_INT);
+                writeSigned(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                write(TAG_DOUBLE);
+                long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    write((int) (bits >>> shift));
+                }
+            } else if (value instanceof String) {
+                writeText((String) value);
+            } else if (value instanceof JSONObject) {
+                writeObject((JSONObject) value);
+            } else if (value instanceof JSONArray) {
+                writeArray((JSONArray) value);
+            } else {
+                throw new JSONException("Not a json value: " + value.getClass().getName());
+            }
+        }
+
+        /**
+         * Writes a string, as deltas when it is a list of integers joined by commas.
+         *
+         * @param text to be written.
+         * @throws IOException in case that the stream fails.
+         */
+        private void writeText(String text) throws IOException {
+            long[] ints = parseJoinedInts(text);
+            if (ints == null) {
+                write(TAG_STRING);
+                writeString(text);
+            } else {
+                write(TAG_JOINED_INTS);
+                writeDeltas(ints, ints.length);
+            }
+        }
+
+        /**
+         * Writes an object, with the ids of its keys.
+         *
+         * @param object to be written.
+         * @throws IOException   in case that the stream fails.
+         * @throws JSONException in case that a value is not a json value.
+         */
+        private void writeObject(JSONObject object) throws IOException, JSONException {
+            write(TAG_OBJECT);
+            writeVarint(object.length());
+            Iterator<String> iterator = object.keys();
+            while (iterator.hasNext()) {
+                String key = iterator.next();
+                Integer id = keys.get(key);
+                if (id == null) {
+                    writeVarint(0);
+                    writeString(key);
+                    keys.put(key, keys.size() + 1);
+                } else {
+                    writeVarint(id);
+                }
+                writeValue(object.get(key));
+            }
+        }
+
+        /**
+         * Writes an array, as deltas when it only has integers and as floats when it only has
+         * numbers that are floats.
+         *
+         * @param array to be written.
+         * @throws IOException   in case that the stream fails.
+         * @throws JSONException in case that a value is not a json value.
+         */
+        private void writeArray(JSONArray array) throws IOException, JSONException {
+            int length = array.length();
+            boolean ints = length > 0;
+            boolean floats = length > 0;
+            for (int i = 0; i < length && (ints || floats); ++i) {
+                Object value = array.get(i);
+                boolean integral = value instanceof Integer || value instanceof Long;
+                ints &= integral;
+                floats &= integral ? (float) ((Number) value).longValue() == ((Number) value).longValue()
+                        : value instanceof Number && isFloat(((Number) value).doubleValue());
+            }
+
+            if (ints) {
+                write(TAG_INT_ARRAY);
+                long[] values = new long[length];
+                for (int i = 0; i < length; ++i) {
+                    values[i] = array.getLong(i);
+                }
+                writeDeltas(values, length);
+            } else if (floats) {
+                write(TAG_FLOAT_ARRAY);
+                writeVarint(length);
+                for (int i = 0; i < length; ++i) {
+                    int bits = Float.floatToIntBits((float) array.getDouble(i));
+                    write(bits >>> 24);
+                    write(bits >>> 16);
+                    write(bits >>> 8);
+                    write(bits);
+                }
+            } else {
+                write(TAG_ARRAY);
+                writeVarint(length);
+                for (int i = 0; i < length; ++i) {
+                    writeValue(array.get(i));
+                }
+            }
+        }
+
+        /**
+         * Checks if a number written as a float is read back as the same json number.
+         *
+         * @param value of the number.
+         * @return true if it could be written as a float.
+         */
+        private static boolean isFloat(double value) {
+            float single = (float) value;
+            if (single == value) {
+                //Exact in both, no need to print it
+                return !Float.isInfinite(single);
+            }
+            return !Float.isInfinite(single) && !Float.isNaN(single)
+                    && Double.parseDouble(Float.toString(single)) == value;
+        }
+
+        /**
+         * Writes a list of integers as the first one and the differences with the previous.
+         *
+         * @param values to be written.
+         * @param length of the list.
+         * @throws IOException in case that the stream fails.
+         */
+        private void writeDeltas(long[] values, int length) throws IOException {
+            writeVarint(length);
+            long previous = 0;
+            for (int i = 0; i < length; ++i) {
+                writeSigned(values[i] - previous);
+                previous = values[i];
+            }
+        }
+
+        /**
+         * Writes a string as its UTF-8 length and bytes.
+         *
+         * @param text to be written.
+         * @throws IOException in case that the stream fails.
+         */
+        void writeString(String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes);
+        }
+
+        /**
+         * Writes a signed integer, zigzag encoded so small negatives are short.
+         *
+         * @param value to be written.
+         * @throws IOException in case that the stream fails.
+         */
+        void writeSigned(long value) throws IOException {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Writes an unsigned integer, seven bits per byte.
+         *
+         * @param value to be written.
+         * @throws IOException in case that the stream fails.
+         */
+        void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+    }
+
+    /**
+     * Reads the json values.
+     */
+    private static class Decoder {
+        private final InputStream in;
+        private final List<String> keys = new ArrayList<>();
+
+        /**
+         * Constructor
+         *
+         * @param in where the values are read from.
+         */
+        Decoder(InputStream in) {
+            this.in = in;
+            for (String key : KNOWN_KEYS) {
+                keys.add(key);
+            }
+        }
+
+        /**
+         * Reads a json value with its tag.
+         *
+         * @return the json value.
+         * @throws IOException   in case that the bytes are not valid.
+         * @throws JSONException in case that the json value could not be built.
+         */
+        Object readValue() throws IOException, JSONException {
+            int tag = readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return JSONObject.NULL;
+                case TAG_FALSE:
+                    return false;
+                case TAG_TRUE:
+                    return true;
+                case TAG_INT:
+                    long value = readSigned();
+                    return value == (int) value ? (Object) (int) value : (Object) value;
+                case TAG_DOUBLE:
+                    long bits = 0;
+                    for (int i = 0; i < 8; ++i) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    return Double.longBitsToDouble(bits);
+                case TAG_STRING:
+                    return readString();
+                case TAG_JOINED_INTS:
+                    return readJoinedInts();
+                case TAG_OBJECT:
+                    return readObject();
+                case TAG_ARRAY:
+                    return readArray();
+                case TAG_INT_ARRAY:
+                    return readIntArray();
+                case TAG_FLOAT_ARRAY:
+                    return readFloatArray();
+                default:
+                    throw new IOException("Unknown tag " + tag);
+            }
+        }
+
+        /**
+         * Reads a list of integers and joins them by commas.
+         *
+         * @return the joined list.
+         * @throws IOException in case that the bytes are not valid.
+         */
+        private String readJoinedInts() throws IOException {
+            long length = readVarint();
+            StringBuilder text = new StringBuilder();
+            long value = 0;
+            for (long i = 0; i < length; ++i) {
+                value += readSigned();
+                if (i > 0) {
+                    text.append(',');
+                }
+                text.append(value);
+            }
+            return text.toString();
+        }
+
+        /**
+         * Reads an object, resolving the ids of its keys.
+         *
+         * @return the object.
+         * @throws IOException   in case that the bytes are not valid.
+         * @throws JSONException in case that the json value could not be built.
+         */
+        private JSONObject readObject() throws IOException, JSONException {
+            JSONObject object = new JSONObject();
+            long length = readVarint();
+            for (long i = 0; i < length; ++i) {
+                int id = (int) readVarint();
+                String key;
+                if (id == 0) {
+                    key = readString();
+                    keys.add(key);
+                } else if (id <= keys.size()) {
+                    key = keys.get(id - 1);
+                } else {
+                    throw new IOException("Unknown key id " + id);
+                }
+                object.put(key, readValue());
+            }
+            return object;
+        }
+
+        /**
+         * Reads an array of json values.
+         *
+         * @return the array.
+         * @throws IOException   in case that the bytes are not valid.
+         * @throws JSONException in case that the json value could not be built.
+         */
+        private JSONArray readArray() throws IOException, JSONException {
+            JSONArray array = new JSONArray();
+            long length = readVarint();
+            for (long i = 0; i < length; ++i) {
+                array.put(readValue());
+            }
+            return array;
+        }
+
+        /**
+         * Reads an array of integers written as deltas.
+         *
+         * @return the array.
+         * @throws IOException in case that the bytes are not valid.
+         */
+        private JSONArray readIntArray() throws IOException {
+            JSONArray array = new JSONArray();
+            long length = readVarint();
+            long value = 0;
+            for (long i = 0; i < length; ++i) {
+                value += readSigned();
+                array.put(value == (int) value ? (Object) (int) value : (Object) value);
+            }
+            return array;
+        }
+
+        /**
+         * Reads an array of floats, as the numbers the json had.
+         *
+         * @return the array.
+         * @throws IOException   in case that the bytes are not valid.
+         * @throws JSONException in case that a float is not a valid json number.
+         */
+        private JSONArray readFloatArray() throws IOException, JSONException {
+            JSONArray array = new JSONArray();
+            long length = readVarint();
+            for (long i = 0; i < length; ++i) {
+                int bits = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+                float value = Float.intBitsToFloat(bits);
+                if (value == (long) value) {
+                    array.put((long) value == (int) value ? (Object) (int) value : (Object) (long) value);
+                } else {
+                    array.put(Double.parseDouble(Float.toString(value)));
+                }
+            }
+            return array;
+        }
+
+        /**
+         * Reads a string written as its UTF-8 length and bytes.
+         *
+         * @return the string.
+         * @throws IOException in case that the bytes are not valid.
+         */
+        String readString() throws IOException {
+            long length = readVarint();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("String too long");
+            }
+            byte[] bytes = new byte[(int) length];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads a zigzag encoded signed integer.
+         *
+         * @return the integer.
+         * @throws IOException in case that the bytes are not valid.
+         */
+        long readSigned() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * Reads an unsigned integer, seven bits per byte.
+         *
+         * @return the integer.
+         * @throws IOException in case that the bytes are not valid.
+         */
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint too long");
+        }
+
+        /**
+         * Reads a byte.
+         *
+         * @return the byte, between 0 and 255.
+         * @throws IOException in case that the stream has ended.
+         */
+        int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+    }
+}
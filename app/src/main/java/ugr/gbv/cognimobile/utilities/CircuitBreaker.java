@@ -0,0 +1,113 @@
+package ugr.gbv.cognimobile.utilities;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Class to stop sending requests to a host that keeps failing. After a number of consecutive
+ * failures the circuit opens and every request is rejected without touching the network. Once
+ * the open time has passed a single request is let through: if it succeeds the circuit closes,
+ * otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 60000;
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongSupplier clock;
+
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean probing;
+
+    /**
+     * Exception thrown when a request is rejected because the circuit is open.
+     */
+    public static class OpenException extends IOException {
+        /**
+         * Constructor
+         *
+         * @param host whose circuit is open.
+         */
+        public OpenException(String host) {
+            super("Requests to " + host + " are paused after repeated failures");
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param failureThreshold consecutive failures that open the circuit.
+     * @param openMillis       time the circuit stays open.
+     * @param clock            current time in milliseconds.
+     */
+    CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Gets the circuit of a host, creating it if it does not exist.
+     *
+     * @param host of the server.
+     * @return the circuit of the host.
+     */
+    public static CircuitBreaker forHost(String host) {
+        return BREAKERS.computeIfAbsent(host, key ->
+                new CircuitBreaker(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS,
+                        () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime())));
+    }
+
+    /**
+     * Checks if a request could be sent.
+     *
+     * @return true if the circuit is closed, or if it is the request that tests a host whose
+     * open time has passed.
+     */
+    public synchronized boolean allowRequest() {
+        if (consecutiveFailures < failureThreshold) {
+            return true;
+        }
+        if (!probing && clock.getAsLong() >= openUntil) {
+            probing = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a successful request, the circuit closes.
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probing = false;
+    }
+
+    /**
+     * Records a failed request, the circuit opens if there have been too many in a row.
+     */
+    public synchronized void onFailure() {
+        ++consecutiveFailures;
+        probing = false;
+        if (consecutiveFailures >= failureThreshold) {
+            openUntil = clock.getAsLong() + openMillis;
+        }
+    }
+
+    /**
+     * Checks if the requests are being rejected.
+     *
+     * @return true if the circuit is open.
+     */
+    public synchronized boolean isOpen() {
+        return consecutiveFailures >= failureThreshold && (probing || clock.getAsLong() < openUntil);
+    }
+}
@@ -1,33 +1,35 @@
 package ugr.gbv.cognimobile.utilities;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.icu.util.Calendar;
-import android.net.Uri;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
 
 import androidx.annotation.NonNull;
 
 import com.aware.Aware;
 import com.aware.Aware_Preferences;
-import com.aware.providers.Aware_Provider;
 
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import ugr.gbv.cognimobile.R;
+import ugr.gbv.cognimobile.database.CognimobilePreferences;
 import ugr.gbv.cognimobile.database.Provider;
+import ugr.gbv.cognimobile.sync.WorkerManager;
 
 /**
  * Class to send the data to the server
@@ -37,6 +39,12 @@ public class DataSender implements Serializable {
 
     private static volatile DataSender instantiated;
     public final static String INSERT = "insert";
+    public final static String RESULTS_TABLE = "results";
+    public final static String CONTEXT_EVENTS_TABLE = "contextEvents";
+    public final static String SESSIONS_TABLE = "sessions";
+    public final static int SYNCED_REJECTED = -1;
+    //Status of the outbox rows whose data could not be read, the rest hold an HTTP status code
+    public final static int STATUS_INVALID_DATA = -1;
 
     /**
      * Private constructor "singleton" pattern
@@ -64,275 +72,340 @@ public class DataSender implements Serializable {
     }
 
     /**
-     * Post a command in the server, using a RESTful API
+     * Stores the data of a finished session in the outbox, before any network request, and
+     * asks for an upload. Every row gets its {@link UploadPriority}, so the bulk data of the
+     * session could wait for an unmetered network. Both tables are written in a single
+     * transaction, so a session is either completely stored or not stored at all. They are
+     * uploaded in a single envelope, committed at once by the server, unless their priorities
+     * differ and only the first one could be uploaded, then each one goes in its own envelope.
      *
-     * @param command using any of the CRUD ones
-     * @param table   the name of the table to commit the command
-     * @param data    the data to post
-     * @param context parent activity context
+     * @param context       parent context
+     * @param name          of the test
+     * @param contextEvents rows of the contextEvents table
+     * @param results       rows of the results table
+     * @return true if the session was stored.
      */
-    public void postToServer(String command, String table, @NonNull JSONArray data, Context context) {
-
-
-        HashMap<String, Object> params = new HashMap<>();
-        params.put("device_id", Aware.getSetting(context, Aware_Preferences.DEVICE_ID));
-
-
-        Thread thread = new Thread(() -> {
-            try {
-                if (INSERT.equals(command)) {
-                    String formattedData = formatData(data);
-                    params.put("data", formattedData);
-                } else {
-                    throw new IllegalStateException("Unexpected value: " + command);
-                }
-
-                String urlString = buildURL(table, command, context);
-
-
-                URL url = new URL(urlString);
-                int code = 0;
-                if (urlString.contains("https")) {
-                    code = sendWithHttps(url, params);
-                } else if (urlString.contains("http")) {
-                    code = sendWithHttp(url, params);
-                }
-
-
-                if (!data.getJSONObject(0).getString("name").isEmpty()) {
-                    if (code == 200) {
-                        ContentValues contentValues = new ContentValues();
-                        long millis = getMillisThirtyDaysAhead();
-                        contentValues.put(Provider.Cognimobile_Data.ERASE_TIMESTAMP, millis);
-                        //TODO Erased DONE by the moment
-                        contentValues.put(Provider.Cognimobile_Data.DONE, 0);
-                        updateValues(contentValues, context, data);
-                        contentValues.remove(Provider.Cognimobile_Data.DONE);
-                        //TODO Erased SYNCED by the moment
-                        contentValues.put(Provider.Cognimobile_Data.SYNCED, 0);
-                        deleteResult(context, data);
-                    } else {
-                        if (!isItAlreadyOnTheDatabase(context, data.getJSONObject(0).getString("name"))) {
-                            ContentValues[] contentValues = new ContentValues[1];
-                            ContentValues value = new ContentValues();
-                            value.put(Provider.Cognimobile_Data.NAME, data.getJSONObject(0).getString("name"));
-                            value.put(Provider.Cognimobile_Data.DATA, data.toString());
-                            value.put(Provider.Cognimobile_Data.DEVICE_ID, Aware.getSetting(context, Aware_Preferences.DEVICE_ID));
-
-                            context.getContentResolver().bulkInsert(
-                                    Provider.Cognimobile_Data.CONTENT_URI_RESULTS,
-                                    contentValues
-                            );
-                        }
-
-                    }
-                }
-
-
-            } catch (IOException | JSONException e) {
-                ErrorHandler.displayError(e.getMessage());
-            }
-        });
-
-        thread.start();
-
+    public boolean enqueueSession(Context context, String name, @NonNull JSONArray contextEvents, @NonNull JSONArray results) {
+        String deviceId = Aware.getSetting(context, Aware_Preferences.DEVICE_ID);
+        String sessionKey = UUID.randomUUID().toString();
+        long timestamp = System.currentTimeMillis();
+        int bulkChars = context.getResources().getInteger(R.integer.resumable_upload_chars);
+
+        ContentValues[] values = new ContentValues[]{
+                buildOutboxRow(deviceId, name, CONTEXT_EVENTS_TABLE, contextEvents, sessionKey, timestamp, bulkChars),
+                buildOutboxRow(deviceId, name, RESULTS_TABLE, results, sessionKey, timestamp, bulkChars)
+        };
 
+        int stored = context.getContentResolver().bulkInsert(Provider.CONTENT_URI_OUTBOX, values);
+        WorkerManager.getInstance().expediteUpload(context);
+        return stored == values.length;
     }
 
     /**
-     * Send data with http url
+     * Builds a row of the outbox.
      *
-     * @param url    url where the data will be sent
-     * @param params parameters to send
-     * @return http connection
-     * @throws IOException in case that there is no connection established.
+     * @param deviceId   of the device
+     * @param name       of the test
+     * @param target     table of the server where the row is uploaded
+     * @param data       to be uploaded
+     * @param sessionKey unique key of the session
+     * @param timestamp  of the session, it is sent with the row so a repeated upload is the same
+     *                   row for the server
+     * @param bulkChars  length from which the row is bulk data, see {@link UploadPriority}
+     * @return the row.
      */
-    private int sendWithHttp(URL url, HashMap<String, Object> params) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setDoOutput(true);
-        conn.connect();
-
-
-        String postInformation = buildPostInformation(params);
-
-
-        DataOutputStream wr = new DataOutputStream(conn.getOutputStream());
-        wr.writeBytes(postInformation);
-        wr.flush();
-        wr.close();
-
-        int value = conn.getResponseCode();
-        conn.disconnect();
+    private ContentValues buildOutboxRow(String deviceId, String name, String target, JSONArray data, String sessionKey,
+                                         long timestamp, int bulkChars) {
+        String text = data.toString();
+        ContentValues value = new ContentValues();
+        value.put(Provider.Cognimobile_Data.TIMESTAMP, timestamp);
+        value.put(Provider.Cognimobile_Data.DEVICE_ID, deviceId);
+        value.put(Provider.Cognimobile_Data.NAME, name);
+        value.put(Provider.Cognimobile_Data.TARGET, target);
+        value.put(Provider.Cognimobile_Data.DATA, text);
+        value.put(Provider.Cognimobile_Data.IDEMPOTENCY_KEY, sessionKey + ":" + target);
+        value.put(Provider.Cognimobile_Data.PRIORITY, UploadPriority.forRow(target, text.length(), bulkChars));
         return value;
     }
 
     /**
-     * Send data with https url
+     * Builds the idempotency key of a session envelope from the key of the session and the
+     * tables it carries. The tables of a session could be uploaded in different envelopes, when
+     * one of them waits for an unmetered network, and each envelope needs its own key, or the
+     * server would discard the second one as a repetition of the first.
      *
-     * @param url    url where the data will be sent
-     * @param params parameters to send
-     * @return http connection
-     * @throws IOException in case that there is no connection established.
+     * @param sessionKey unique key of the session
+     * @param targets    tables of the server carried in the envelope
+     * @return the key of the envelope, the same for the same tables in any order.
      */
-    private int sendWithHttps(URL url, HashMap<String, Object> params) throws IOException {
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setDoOutput(true);
-        conn.connect();
-
-
-        String postInformation = buildPostInformation(params);
+    public static String buildEnvelopeKey(String sessionKey, Collection<String> targets) {
+        List<String> sorted = new ArrayList<>(targets);
+        Collections.sort(sorted);
+        StringBuilder key = new StringBuilder(sessionKey).append(':');
+        for (int i = 0; i < sorted.size(); ++i) {
+            if (i > 0) {
+                key.append('+');
+            }
+            key.append(sorted.get(i));
+        }
+        return key.toString();
+    }
 
+    /**
+     * Post several rows of a table in a single request, in the calling thread. The AWARE server
+     * accepts an array of rows in the data field, so every row is sent as one of its entries.
+     *
+     * @param table   the name of the table to commit the command
+     * @param rows    the data of every row to post
+     * @param context parent context
+     * @return the status code of every row, if the server does not report them one by one all of
+     * them get the status code of the request.
+     * @throws IOException   in case that there is no connection established.
+     * @throws JSONException in case that the json is invalid.
+     */
+    public int[] postBatchToServer(String table, @NonNull List<JSONArray> rows, Context context) throws IOException, JSONException {
+        return postBatchToServer(table, rows, null, null, context);
+    }
 
-        DataOutputStream wr = new DataOutputStream(conn.getOutputStream());
-        wr.writeBytes(postInformation);
-        wr.flush();
-        wr.close();
+    /**
+     * Post several rows of a table in a single request, in the calling thread, with the
+     * timestamp of every row. Failed requests are repeated following the {@link RetryPolicy}
+     * and carry an Idempotency-Key, see {@link BatchUploader}.
+     * When enabled, the context events and the sessions are sent with the
+     * {@link BinaryEventsCodec}. If the server answers that it does not accept them, that is
+     * remembered and the rows are sent again as json.
+     *
+     * @param table           the name of the table to commit the command
+     * @param rows            the data of every row to post, a json value each
+     * @param timestamps      in milliseconds of every row, null to use the current time
+     * @param idempotencyKeys of every row, null to send the request without key
+     * @param context         parent context
+     * @return the status code of every row, if the server does not report them one by one all of
+     * them get the status code of the request.
+     * @throws IOException   in case that there is no connection established.
+     * @throws JSONException in case that the json is invalid.
+     */
+    public int[] postBatchToServer(String table, @NonNull List<?> rows, List<Long> timestamps,
+                                   List<String> idempotencyKeys, Context context) throws IOException, JSONException {
+        String deviceId = Aware.getSetting(context, Aware_Preferences.DEVICE_ID);
+        URL url = StudyEndpointCache.getInstance().getEndpoint(context, table, INSERT);
+        boolean gzip = context.getResources().getBoolean(R.bool.gzip_uploads);
+
+        BatchUploader uploader = new BatchUploader(HttpTransport.getInstance(), RetryPolicy.getDefault(), gzip);
+
+        if (isBinaryEnabled(table, context)) {
+            int[] statuses = uploader.postBinary(url, deviceId, rows, timestamps, idempotencyKeys);
+            if (!isUnsupportedMediaType(statuses)) {
+                return statuses;
+            }
+            CognimobilePreferences.setBinaryEventsUnsupported(context, true);
+        }
 
-        return conn.getResponseCode();
+        return uploader.post(url, deviceId, rows, timestamps, idempotencyKeys);
     }
 
     /**
-     * Checks if the test is in the local database
+     * Post a large row of a table in chunks, in the calling thread, so an upload interrupted by
+     * the network continues from the last chunk that the server committed, see
+     * {@link ResumableUploader}. The row is sent as the form of
+     * {@link #postBatchToServer(String, List, List, List, Context)}, identified by its
+     * idempotency key. If the server does not know resumable uploads the row is posted at once.
      *
-     * @param context Parent context
-     * @param name    of the test to check
-     * @return true if it is, false if not.
+     * @param table          the name of the table to commit the command
+     * @param row            the data of the row to post, a json value
+     * @param timestamp      in milliseconds of the row
+     * @param idempotencyKey of the row
+     * @param context        parent context
+     * @return the status code of the row.
+     * @throws IOException   in case that there is no connection established.
+     * @throws JSONException in case that the json is invalid.
      */
-    private boolean isItAlreadyOnTheDatabase(Context context, String name) {
+    public int postResumableToServer(String table, @NonNull Object row, long timestamp, @NonNull String idempotencyKey,
+                                     Context context) throws IOException, JSONException {
+        String deviceId = Aware.getSetting(context, Aware_Preferences.DEVICE_ID);
+        URL url = StudyEndpointCache.getInstance().getEndpoint(context, table, ResumableUploader.UPLOAD);
+        int chunkSize = context.getResources().getInteger(R.integer.upload_chunk_bytes);
+
+        byte[] body = BatchUploader.formatForm(deviceId, Collections.singletonList(row), Collections.singletonList(timestamp));
+        int status = new ResumableUploader(HttpTransport.getInstance(), RetryPolicy.getDefault(), chunkSize)
+                .upload(url, idempotencyKey, body);
+        if (status != HttpURLConnection.HTTP_NOT_FOUND) {
+            return status;
+        }
 
-        boolean value = false;
+        return postBatchToServer(table, Collections.singletonList(row), Collections.singletonList(timestamp),
+                Collections.singletonList(idempotencyKey), context)[0];
+    }
 
-        String[] projection = new String[]{Provider.Cognimobile_Data.NAME};
-        String whereClause = Provider.Cognimobile_Data.NAME + " LIKE ? ";
+    /**
+     * Checks if the rows of a table should be sent with the {@link BinaryEventsCodec}.
+     *
+     * @param table   the name of the table
+     * @param context parent context
+     * @return true if they are context events, the binary form is enabled and the server has
+     * not rejected it.
+     */
+    private boolean isBinaryEnabled(String table, Context context) {
+        return (CONTEXT_EVENTS_TABLE.equals(table) || SESSIONS_TABLE.equals(table))
+                && context.getResources().getBoolean(R.bool.binary_context_events)
+                && !CognimobilePreferences.getBinaryEventsUnsupported(context);
+    }
 
-        String[] whereArgs = new String[]{
-                name,
-        };
-        Cursor cursor = context.getContentResolver().query(Provider.CONTENT_URI_TESTS, projection, whereClause, whereArgs, null);
-        if (cursor != null && cursor.getCount() > 0) {
-            cursor.close();
-            value = true;
+    /**
+     * Checks if the server answered that it does not accept the body.
+     *
+     * @param statuses of every row.
+     * @return true if every row got a 415.
+     */
+    private boolean isUnsupportedMediaType(int[] statuses) {
+        for (int status : statuses) {
+            if (status != HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+                return false;
+            }
         }
-        return value;
+        return statuses.length > 0;
     }
 
     /**
      * Get thirty days ahead of the current time in milliseconds
      *
+     * @param context to read the number of days
      * @return thirty days ahead of the current time in milliseconds
      */
-    private long getMillisThirtyDaysAhead() {
-        Calendar c = Calendar.getInstance();
-        c.setTimeInMillis(c.get(Calendar.MILLISECOND));
-
-        c.add(Calendar.DAY_OF_YEAR, R.integer.thirty);
-        return c.getTimeInMillis();
+    private long getMillisThirtyDaysAhead(Context context) {
+        int days = context.getResources().getInteger(R.integer.thirty);
+        return System.currentTimeMillis() + TimeUnit.DAYS.toMillis(days);
     }
 
 
     /**
-     * Update values to mark those tests that has been sent successfully to the server.
+     * Removes from the outbox the rows that the server has confirmed, in a single transaction,
+     * and marks their tests as sent.
      *
-     * @param values  to update
-     * @param context from the parent activity
-     * @param data    to get the name of the test
-     * @throws JSONException in case that the json is invalid.
+     * @param context   from the parent activity
+     * @param ids       of the outbox rows
+     * @param testNames of the tests whose results have been confirmed
+     * @return rows removed.
      */
-    private void updateValues(ContentValues values, Context context, JSONArray data) throws JSONException {
-        String where = Provider.Cognimobile_Data.NAME + " LIKE ?";
-        String[] selectionArgs = {data.getJSONObject(0).getString("name")};
-
-        context.getContentResolver().update(Provider.CONTENT_URI_TESTS, values, where, selectionArgs);
+    public int acknowledgeOutbox(Context context, List<Long> ids, List<String> testNames) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
 
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        if (!testNames.isEmpty()) {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(Provider.Cognimobile_Data.ERASE_TIMESTAMP, getMillisThirtyDaysAhead(context));
+            //TODO Erased DONE by the moment
+            contentValues.put(Provider.Cognimobile_Data.DONE, 0);
+            operations.add(ContentProviderOperation.newUpdate(Provider.CONTENT_URI_TESTS)
+                    .withValues(contentValues)
+                    .withSelection(buildInClause(Provider.Cognimobile_Data.NAME, testNames.size()), testNames.toArray(new String[0]))
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(Provider.CONTENT_URI_OUTBOX)
+                .withSelection(buildInClause(Provider.Cognimobile_Data._ID, ids.size()), toSelectionArgs(ids))
+                .build());
+
+        try {
+            ContentProviderResult[] results = context.getContentResolver().applyBatch(Provider.AUTHORITY, operations);
+            return results[results.length - 1].count;
+        } catch (RemoteException | OperationApplicationException e) {
+            e.printStackTrace();
+            return 0;
+        }
     }
 
     /**
-     * Delete results that has been sent successfully to the server.
+     * Marks the outbox rows that the server has rejected with a permanent failure, so they are
+     * not uploaded again.
      *
      * @param context from the parent activity
-     * @param data    to get the name of the test
-     * @throws JSONException in case that the json is invalid.
+     * @param ids     of the outbox rows
+     * @param status  HTTP status code returned by the server
+     * @return rows affected.
      */
-    private void deleteResult(Context context, JSONArray data) throws JSONException {
-        String where = Provider.Cognimobile_Data.NAME + " LIKE ?";
-        String[] selectionArgs = {data.getJSONObject(0).getString("name")};
-        context.getContentResolver().delete(Provider.CONTENT_URI_RESULTS, where, selectionArgs);
-    }
+    public int rejectOutbox(Context context, List<Long> ids, int status) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(Provider.Cognimobile_Data.STATUS, status);
 
+        return context.getContentResolver().update(Provider.CONTENT_URI_OUTBOX, values,
+                buildInClause(Provider.Cognimobile_Data._ID, ids.size()), toSelectionArgs(ids));
+    }
 
     /**
-     * Formats the json data field from AWARE database.
+     * Marks the results that the server has rejected with a permanent failure, so they are not
+     * uploaded again.
      *
-     * @param data to put in the server database.
-     * @throws JSONException in case that the json is invalid.
+     * @param context from the parent activity
+     * @param ids     of the results rows
+     * @return rows affected.
      */
-    private String formatData(JSONArray data) throws JSONException {
-
-        double timestamp = System.currentTimeMillis() / 1000.0;
-
-
-        JSONObject jsonParam = new JSONObject();
-        jsonParam.put("timestamp", timestamp);
-        jsonParam.put("data", data);
-
-        JSONArray realData = new JSONArray();
+    public int markResultsRejected(Context context, List<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
 
-        realData.put(jsonParam);
+        ContentValues values = new ContentValues();
+        values.put(Provider.Cognimobile_Data.SYNCED, SYNCED_REJECTED);
+        values.put(Provider.Cognimobile_Data.ERASE_TIMESTAMP, getMillisThirtyDaysAhead(context));
 
-        return realData.toString();
+        return context.getContentResolver().update(Provider.CONTENT_URI_RESULTS, values,
+                buildInClause(Provider.Cognimobile_Data._ID, ids.size()), toSelectionArgs(ids));
     }
 
     /**
-     * Append parameters to the url where the information will be sent
+     * Converts the ids of some rows to selection arguments.
      *
-     * @param params to put inside the url
-     * @return the complete url with parameters
+     * @param ids of the rows
+     * @return the arguments.
      */
-    private String buildPostInformation(HashMap<String, Object> params) {
-        StringBuilder postVariables = new StringBuilder();
-        int i = 0;
-
-        for (String key : params.keySet()) {
-
-            if (i != 0) {
-                postVariables.append("&");
-            }
-            postVariables.append(key).append("=")
-                    .append(params.get(key));
-            i++;
+    private String[] toSelectionArgs(List<Long> ids) {
+        String[] selectionArgs = new String[ids.size()];
+        for (int i = 0; i < selectionArgs.length; ++i) {
+            selectionArgs[i] = Long.toString(ids.get(i));
         }
-
-        return postVariables.toString();
+        return selectionArgs;
     }
 
-
     /**
-     * Build the url where the information will be sent
+     * Builds a "column IN (?,...)" clause.
      *
-     * @return the complete url with parameters
+     * @param column to be compared
+     * @param count  of values
+     * @return the clause.
      */
-    private String buildURL(String table, String command, Context context) {
-        Cursor studies = Aware.getStudy(context, "");
-        studies.moveToFirst();
-        String urlDb = studies.getString(studies.getColumnIndex(Aware_Provider.Aware_Studies.STUDY_URL));
-        Uri studyUri = Uri.parse(urlDb);
-        Uri.Builder urlBuilder = new Uri.Builder();
-        List<String> paths = studyUri.getPathSegments();
-
-        urlBuilder.scheme(studyUri.getScheme())
-                .authority(studyUri.getAuthority());
-
-        for (String path: paths) {
-            urlBuilder.appendPath(path);
+    private String buildInClause(String column, int count) {
+        StringBuilder where = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < count; ++i) {
+            where.append(i == 0 ? "?" : ",?");
         }
+        return where.append(")").toString();
+    }
 
-        urlBuilder.appendPath(table)
-                .appendPath(command);
+    /**
+     * Marks the results that has been sent successfully to the server, in a single transaction.
+     *
+     * @param context from the parent activity
+     * @param ids     of the results rows
+     * @return rows affected.
+     */
+    public int markResultsSynced(Context context, List<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
 
+        ContentValues values = new ContentValues();
+        values.put(Provider.Cognimobile_Data.SYNCED, 1);
+        values.put(Provider.Cognimobile_Data.ERASE_TIMESTAMP, getMillisThirtyDaysAhead(context));
 
-        return urlBuilder.build().toString().replaceAll("%3A",":");
+        return context.getContentResolver().update(Provider.CONTENT_URI_RESULTS, values,
+                buildInClause(Provider.Cognimobile_Data._ID, ids.size()), toSelectionArgs(ids));
     }
 
+
 }
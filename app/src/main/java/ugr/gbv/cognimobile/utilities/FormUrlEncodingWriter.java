@@ -0,0 +1,167 @@
+package ugr.gbv.cognimobile.utilities;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Writer that encodes everything written into it as an application/x-www-form-urlencoded value,
+ * using UTF-8, and sends the bytes to a stream as soon as its buffer is full.
+ * Printable ascii characters without meaning for a form decoder are kept as they are, so the
+ * punctuation of a json does not triple its size.
+ */
+public class FormUrlEncodingWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final String RESERVED = "&+%=#;";
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+    private char pendingHighSurrogate;
+
+    /**
+     * Constructor
+     *
+     * @param out stream where the encoded bytes are sent, it is not closed by this writer.
+     */
+    public FormUrlEncodingWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes ascii text without encoding it, for the '=' and '&amp;' between the fields.
+     *
+     * @param ascii text to be written as it is.
+     * @throws IOException in case that the stream fails.
+     */
+    public void writeRaw(String ascii) throws IOException {
+        for (int i = 0; i < ascii.length(); ++i) {
+            put((byte) ascii.charAt(i));
+        }
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; ++i) {
+            encode(chars[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; ++i) {
+            encode(str.charAt(i));
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        encode((char) c);
+    }
+
+    /**
+     * Sends the buffered bytes to the stream.
+     *
+     * @throws IOException in case that the stream fails.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.write(buffer, 0, count);
+        count = 0;
+        out.flush();
+    }
+
+    /**
+     * Sends the buffered bytes to the stream, without closing it.
+     *
+     * @throws IOException in case that the stream fails.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Encodes a character, joining the surrogate pairs before converting them to UTF-8.
+     *
+     * @param c character to be encoded.
+     * @throws IOException in case that the stream fails.
+     */
+    private void encode(char c) throws IOException {
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                encodeCodePoint(Character.toCodePoint(high, c));
+                return;
+            }
+            encodeCodePoint('?');
+        }
+
+        if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            encodeCodePoint('?');
+        } else {
+            encodeCodePoint(c);
+        }
+    }
+
+    /**
+     * Encodes a code point as UTF-8, escaping the bytes that a form decoder would interpret.
+     *
+     * @param codePoint to be encoded.
+     * @throws IOException in case that the stream fails.
+     */
+    private void encodeCodePoint(int codePoint) throws IOException {
+        if (codePoint < 0x80) {
+            if (codePoint > ' ' && codePoint < 0x7F && RESERVED.indexOf(codePoint) < 0) {
+                put((byte) codePoint);
+            } else if (codePoint == ' ') {
+                put((byte) '+');
+            } else {
+                escape(codePoint);
+            }
+        } else if (codePoint < 0x800) {
+            escape(0xC0 | (codePoint >> 6));
+            escape(0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            escape(0xE0 | (codePoint >> 12));
+            escape(0x80 | ((codePoint >> 6) & 0x3F));
+            escape(0x80 | (codePoint & 0x3F));
+        } else {
+            escape(0xF0 | (codePoint >> 18));
+            escape(0x80 | ((codePoint >> 12) & 0x3F));
+            escape(0x80 | ((codePoint >> 6) & 0x3F));
+            escape(0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    /**
+     * Writes a byte as %XX.
+     *
+     * @param value byte to be escaped.
+     * @throws IOException in case that the stream fails.
+     */
+    private void escape(int value) throws IOException {
+        put((byte) '%');
+        put((byte) HEX[(value >> 4) & 0xF]);
+        put((byte) HEX[value & 0xF]);
+    }
+
+    /**
+     * Buffers a byte, sending the buffer when it is full.
+     *
+     * @param value byte to be sent.
+     * @throws IOException in case that the stream fails.
+     */
+    private void put(byte value) throws IOException {
+        if (count == buffer.length) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = value;
+    }
+}
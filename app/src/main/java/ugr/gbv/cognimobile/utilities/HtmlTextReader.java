@@ -0,0 +1,213 @@
+package ugr.gbv.cognimobile.utilities;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reader that decodes the html served by the study server in a single pass: it un-escapes the
+ * character entities and, optionally, strips the tags and the line breaks.
+ * Everything is done over a fixed buffer, so documents of several MB are decoded without
+ * splitting them in lines or running a regular expression over them.
+ */
+public class HtmlTextReader extends Reader {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private final Reader in;
+    private final boolean stripTags;
+    private final boolean joinLines;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private int unread = -1;
+
+    private final char[] pending = new char[MAX_ENTITY_LENGTH + 1];
+    private int pendingPosition;
+    private int pendingLimit;
+
+    /**
+     * Constructor
+     *
+     * @param in        reader of the raw html, it is closed with this reader.
+     * @param stripTags true to remove everything between '&lt;' and '&gt;'.
+     * @param joinLines true to remove the line breaks.
+     */
+    public HtmlTextReader(Reader in, boolean stripTags, boolean joinLines) {
+        this.in = in;
+        this.stripTags = stripTags;
+        this.joinLines = joinLines;
+    }
+
+    /**
+     * Reads the whole decoded text.
+     *
+     * @param reader         to be read.
+     * @param expectedLength length of the raw text if it is known, to size the result, or -1.
+     * @return the decoded text.
+     * @throws IOException in case that the reader fails.
+     */
+    public static String readFully(Reader reader, int expectedLength) throws IOException {
+        StringBuilder text = new StringBuilder(expectedLength > 0 ? expectedLength : BUFFER_SIZE);
+        char[] chunk = new char[BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(chunk, 0, chunk.length)) != -1) {
+            text.append(chunk, 0, read);
+        }
+        return text.toString();
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+        int count = 0;
+        while (count < length) {
+            int c = next();
+            if (c == -1) {
+                break;
+            }
+            chars[offset + count++] = (char) c;
+        }
+        return count == 0 && length > 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Gets the next decoded character.
+     *
+     * @return the character, -1 at the end of the text.
+     * @throws IOException in case that the reader fails.
+     */
+    private int next() throws IOException {
+        if (pendingPosition < pendingLimit) {
+            return pending[pendingPosition++];
+        }
+
+        int c;
+        while ((c = raw()) != -1) {
+            if (stripTags && c == '<') {
+                skipTag();
+            } else if (joinLines && (c == '\n' || c == '\r')) {
+                //Line breaks are dropped
+            } else if (c == '&') {
+                return entity();
+            } else {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the entity after an '&amp;'. When it is not a known entity the text is returned
+     * as it is.
+     *
+     * @return the first character to be returned.
+     * @throws IOException in case that the reader fails.
+     */
+    private int entity() throws IOException {
+        pendingPosition = 0;
+        pendingLimit = 0;
+
+        int c;
+        while (pendingLimit < MAX_ENTITY_LENGTH && (c = raw()) != -1) {
+            if (c == ';') {
+                int codePoint = decode(pending, pendingLimit);
+                if (codePoint >= 0) {
+                    pendingLimit = 0;
+                    if (Character.isSupplementaryCodePoint(codePoint)) {
+                        pending[0] = Character.lowSurrogate(codePoint);
+                        pendingLimit = 1;
+                        return Character.highSurrogate(codePoint);
+                    }
+                    return codePoint;
+                }
+                unread = c;
+                break;
+            } else if (Character.isLetterOrDigit(c) || c == '#') {
+                pending[pendingLimit++] = (char) c;
+            } else {
+                unread = c;
+                break;
+            }
+        }
+        return '&';
+    }
+
+    /**
+     * Decodes the name of an entity.
+     *
+     * @param name   characters between '&amp;' and ';'.
+     * @param length of the name.
+     * @return the code point, -1 if it is not a known entity.
+     */
+    private static int decode(char[] name, int length) {
+        if (length > 1 && name[0] == '#') {
+            boolean hex = name[1] == 'x' || name[1] == 'X';
+            int value = 0;
+            for (int i = hex ? 2 : 1; i < length; ++i) {
+                int digit = Character.digit(name[i], hex ? 16 : 10);
+                if (digit < 0 || value > Character.MAX_CODE_POINT) {
+                    return -1;
+                }
+                value = value * (hex ? 16 : 10) + digit;
+            }
+            return (hex && length == 2) || value > Character.MAX_CODE_POINT ? -1 : value;
+        }
+
+        switch (new String(name, 0, length)) {
+            case "quot":
+                return '"';
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "apos":
+                return '\'';
+            case "nbsp":
+                return ' ';
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Skips the text until the end of the current tag.
+     *
+     * @throws IOException in case that the reader fails.
+     */
+    private void skipTag() throws IOException {
+        int c;
+        do {
+            c = raw();
+        } while (c != -1 && c != '>');
+    }
+
+    /**
+     * Gets the next raw character from the buffer, filling it when it is empty.
+     *
+     * @return the character, -1 at the end of the text.
+     * @throws IOException in case that the reader fails.
+     */
+    private int raw() throws IOException {
+        if (unread != -1) {
+            int c = unread;
+            unread = -1;
+            return c;
+        }
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+}
@@ -0,0 +1,492 @@
+package ugr.gbv.cognimobile.utilities;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class shared by every component that talks to the study server.
+ * It owns a bounded pool of network threads and opens the connections with the configured
+ * timeouts. Responses are always consumed and closed but the connections are never
+ * disconnected, so {@link HttpURLConnection} can keep them alive and reuse them for the next
+ * request to the same host instead of doing a new TCP/TLS handshake.
+ * Every host has a {@link CircuitBreaker}, so a server that is down is not requested again and
+ * again until it has had time to recover.
+ * Every request is recorded in {@link NetworkMetrics}. The readers should get the body with
+ * {@link #getInputStream(HttpURLConnection)} so the received bytes are counted.
+ */
+public class HttpTransport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = 64;
+
+    private static final int IDLE_THREAD_SECONDS = 30;
+    private static final int DRAIN_BUFFER_SIZE = 8192;
+    private static final int CHUNK_SIZE = 8192;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static volatile HttpTransport instantiated;
+
+    private final ThreadPoolExecutor executor;
+    private volatile int connectTimeout;
+    private volatile int readTimeout;
+
+    /**
+     * Writes the body of a request into the connection.
+     */
+    public interface BodyWriter {
+        /**
+         * Writes the body.
+         *
+         * @param out stream of the connection, it is closed by the transport.
+         * @throws IOException in case that the body could not be written.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads the response of a request.
+     *
+     * @param <T> type of the value extracted from the response.
+     */
+    public interface ResponseReader<T> {
+        /**
+         * Reads the response from the connection. Whatever is left unread of the body is
+         * drained by the transport afterwards.
+         *
+         * @param connection already sent connection.
+         * @return the value extracted from the response.
+         * @throws IOException in case that the response could not be read.
+         */
+        T read(HttpURLConnection connection) throws IOException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxConcurrentRequests number of requests that could be running at the same time.
+     * @param maxQueuedRequests     number of requests waiting for a thread, when the queue is full
+     *                              the caller runs the request itself.
+     */
+    HttpTransport(int maxConcurrentRequests, int maxQueuedRequests) {
+        if (instantiated != null) {
+            throw new RuntimeException("Use .getInstance() to instantiate HttpTransport");
+        }
+
+        executor = new ThreadPoolExecutor(
+                maxConcurrentRequests,
+                maxConcurrentRequests,
+                IDLE_THREAD_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(maxQueuedRequests),
+                new NetworkThreadFactory(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        connectTimeout = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        readTimeout = DEFAULT_READ_TIMEOUT_MILLIS;
+
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(maxConcurrentRequests));
+    }
+
+    /**
+     * Getter to return the unique instance in the app.
+     *
+     * @return the unique instance in the app.
+     */
+    public static HttpTransport getInstance() {
+        if (instantiated == null) {
+            synchronized (HttpTransport.class) {
+                if (instantiated == null) {
+                    instantiated = new HttpTransport(DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_QUEUED_REQUESTS);
+                }
+            }
+        }
+
+        return instantiated;
+    }
+
+    /**
+     * Sets the timeouts used by the next connections.
+     *
+     * @param connectTimeoutMillis time to establish the connection.
+     * @param readTimeoutMillis    time to wait for data once connected.
+     */
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        connectTimeout = connectTimeoutMillis;
+        readTimeout = readTimeoutMillis;
+    }
+
+    /**
+     * Runs a network task in the bounded pool.
+     *
+     * @param task to be run.
+     * @param <T>  type of the value returned by the task.
+     * @return future to retrieve the result of the task.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Runs a network task in the bounded pool without waiting for it.
+     *
+     * @param task to be run.
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Makes a GET request in the calling thread.
+     *
+     * @param url     to be requested.
+     * @param headers additional request headers, could be null.
+     * @param reader  to read the response.
+     * @param <T>     type of the value extracted from the response.
+     * @return the value extracted by the reader.
+     * @throws IOException in case that there is no connection established.
+     */
+    public <T> T get(URL url, Map<String, String> headers, ResponseReader<T> reader) throws IOException {
+        NetworkMetrics.Endpoint metrics = NetworkMetrics.getInstance().forUrl(url);
+        CircuitBreaker breaker = checkCircuit(url, metrics);
+        long start = System.nanoTime();
+        HttpURLConnection connection;
+        try {
+            connection = open(url, "GET", headers);
+        } catch (IOException | RuntimeException e) {
+            onFailure(breaker, metrics, start);
+            throw e;
+        }
+        return readAndRelease(connection, reader, breaker, metrics, start);
+    }
+
+    /**
+     * Makes a POST request in the calling thread.
+     *
+     * @param url         to be requested.
+     * @param contentType of the body.
+     * @param headers     additional request headers, could be null.
+     * @param body        to write the body of the request.
+     * @param reader      to read the response.
+     * @param <T>         type of the value extracted from the response.
+     * @return the value extracted by the reader.
+     * @throws IOException in case that there is no connection established.
+     */
+    public <T> T post(URL url, String contentType, Map<String, String> headers,
+                      BodyWriter body, ResponseReader<T> reader) throws IOException {
+        NetworkMetrics.Endpoint metrics = NetworkMetrics.getInstance().forUrl(url);
+        CircuitBreaker breaker = checkCircuit(url, metrics);
+        long start = System.nanoTime();
+        HttpURLConnection connection;
+        try {
+            connection = open(url, "POST", headers);
+            connection.setRequestProperty("Content-Type", contentType);
+            connection.setDoOutput(true);
+
+            try (OutputStream out = new CountingOutputStream(connection.getOutputStream(), metrics)) {
+                body.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            onFailure(breaker, metrics, start);
+            throw e;
+        }
+
+        return readAndRelease(connection, reader, breaker, metrics, start);
+    }
+
+    /**
+     * Makes a POST request in the calling thread, streaming the body with chunked transfer
+     * encoding, so the body is never held completely in memory.
+     *
+     * @param url         to be requested.
+     * @param contentType of the body.
+     * @param headers     additional request headers, could be null.
+     * @param gzip        true to compress the body, the server needs to accept the gzip
+     *                    Content-Encoding.
+     * @param body        to write the body of the request.
+     * @param reader      to read the response.
+     * @param <T>         type of the value extracted from the response.
+     * @return the value extracted by the reader.
+     * @throws IOException in case that there is no connection established.
+     */
+    public <T> T postStreaming(URL url, String contentType, Map<String, String> headers, boolean gzip,
+                               BodyWriter body, ResponseReader<T> reader) throws IOException {
+        NetworkMetrics.Endpoint metrics = NetworkMetrics.getInstance().forUrl(url);
+        CircuitBreaker breaker = checkCircuit(url, metrics);
+        long start = System.nanoTime();
+        HttpURLConnection connection;
+        try {
+            connection = open(url, "POST", headers);
+            connection.setRequestProperty("Content-Type", contentType);
+            if (gzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+
+            //Opening the stream connects, so it fails here when the host is not reachable
+            OutputStream wire = new CountingOutputStream(connection.getOutputStream(), metrics);
+            try (OutputStream out = gzip ? new GZIPOutputStream(wire, CHUNK_SIZE) : wire) {
+                body.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            onFailure(breaker, metrics, start);
+            throw e;
+        }
+
+        return readAndRelease(connection, reader, breaker, metrics, start);
+    }
+
+    /**
+     * Reader that only returns the status code of the response.
+     *
+     * @return the reader.
+     */
+    public static ResponseReader<Integer> statusCode() {
+        return HttpURLConnection::getResponseCode;
+    }
+
+    /**
+     * Gets the body of the response, counting the bytes read from it.
+     *
+     * @param connection already sent connection.
+     * @return the body of the response.
+     * @throws IOException in case that the response has no body.
+     */
+    public static InputStream getInputStream(HttpURLConnection connection) throws IOException {
+        return new CountingInputStream(connection.getInputStream(), NetworkMetrics.getInstance().forUrl(connection.getURL()));
+    }
+
+    /**
+     * Gets the circuit of the host of a url, checking that it is not open.
+     *
+     * @param url     to be requested.
+     * @param metrics of the endpoint.
+     * @return the circuit of the host.
+     * @throws CircuitBreaker.OpenException in case that the host is not being requested.
+     */
+    private CircuitBreaker checkCircuit(URL url, NetworkMetrics.Endpoint metrics) throws CircuitBreaker.OpenException {
+        CircuitBreaker breaker = CircuitBreaker.forHost(url.getHost());
+        if (!breaker.allowRequest()) {
+            metrics.onCircuitOpen();
+            throw new CircuitBreaker.OpenException(url.getHost());
+        }
+        return breaker;
+    }
+
+    /**
+     * Opens a connection with the configured timeouts.
+     *
+     * @param url     to be requested.
+     * @param method  of the request.
+     * @param headers additional request headers, could be null.
+     * @return the connection, not yet connected.
+     * @throws IOException in case that the connection could not be opened.
+     */
+    private HttpURLConnection open(URL url, String method, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Reads the response and leaves the connection ready to be reused. No response, server
+     * errors and throttling count as failures of the host.
+     *
+     * @param connection already sent connection.
+     * @param reader     to read the response.
+     * @param breaker    circuit of the host.
+     * @param metrics    of the endpoint.
+     * @param start      time when the request started, in nanoseconds.
+     * @param <T>        type of the value extracted from the response.
+     * @return the value extracted by the reader.
+     * @throws IOException in case that the response could not be read.
+     */
+    private <T> T readAndRelease(HttpURLConnection connection, ResponseReader<T> reader, CircuitBreaker breaker,
+                                 NetworkMetrics.Endpoint metrics, long start) throws IOException {
+        try {
+            int code;
+            try {
+                code = connection.getResponseCode();
+            } catch (IOException | RuntimeException e) {
+                onFailure(breaker, metrics, start);
+                throw e;
+            }
+            metrics.onResponse(code, System.nanoTime() - start);
+            if (code >= 500 || code == HTTP_TOO_MANY_REQUESTS) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+            return reader.read(connection);
+        } finally {
+            release(connection, metrics);
+        }
+    }
+
+    /**
+     * Records a request that failed without a response. It also releases the circuit when the
+     * request was the one testing the host, so it has to be called on every failure.
+     *
+     * @param breaker circuit of the host.
+     * @param metrics of the endpoint.
+     * @param start   time when the request started, in nanoseconds.
+     */
+    private void onFailure(CircuitBreaker breaker, NetworkMetrics.Endpoint metrics, long start) {
+        breaker.onFailure();
+        metrics.onError(System.nanoTime() - start);
+    }
+
+    /**
+     * Drains and closes the body of the response. Calling
+     * {@link HttpURLConnection#disconnect()} would close the socket, so it is not done.
+     *
+     * @param connection to be released.
+     * @param metrics    of the endpoint.
+     */
+    private void release(HttpURLConnection connection, NetworkMetrics.Endpoint metrics) {
+        InputStream in;
+        try {
+            in = connection.getInputStream();
+        } catch (IOException e) {
+            in = connection.getErrorStream();
+        }
+        if (in != null) {
+            in = new CountingInputStream(in, metrics);
+        }
+
+        if (in != null) {
+            try {
+                byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+                while (in.read(buffer) != -1) {
+                    //Drain the remaining body so the connection goes back to the pool
+                }
+                in.close();
+            } catch (IOException e) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Stream that counts the bytes read from a response. It stops between reads when its
+     * thread is interrupted, as a blocking read of a socket does not.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final NetworkMetrics.Endpoint metrics;
+
+        /**
+         * Constructor
+         *
+         * @param in      body of the response.
+         * @param metrics of the endpoint.
+         */
+        CountingInputStream(InputStream in, NetworkMetrics.Endpoint metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkInterrupted();
+            int b = super.read();
+            if (b != -1) {
+                metrics.onBytesDown(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkInterrupted();
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                metrics.onBytesDown(read);
+            }
+            return read;
+        }
+
+        /**
+         * Checks that the thread reading has not been interrupted.
+         *
+         * @throws InterruptedIOException in case that it has been interrupted.
+         */
+        private static void checkInterrupted() throws InterruptedIOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Download interrupted");
+            }
+        }
+    }
+
+    /**
+     * Stream that counts the bytes written into a request, after the compression.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final NetworkMetrics.Endpoint metrics;
+
+        /**
+         * Constructor
+         *
+         * @param out     body of the request.
+         * @param metrics of the endpoint.
+         */
+        CountingOutputStream(OutputStream out, NetworkMetrics.Endpoint metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.onBytesUp(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            metrics.onBytesUp(len);
+        }
+    }
+
+    /**
+     * Creates the named threads of the pool.
+     */
+    private static class NetworkThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "cognimobile-net-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
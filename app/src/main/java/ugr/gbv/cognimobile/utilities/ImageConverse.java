@@ -48,8 +48,18 @@ public class ImageConverse implements Serializable {
      * @return a bitmap image
      */
     public Bitmap decodeFromBase64(String image){
-        byte[] decodedString = Base64.decode(image, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(decodedString, 0, decodedString.length);
+        return decodeFromBytes(Base64.decode(image, Base64.DEFAULT));
+    }
+
+    /**
+     * Decodes a image from its bytes, as stored by
+     * {@link ugr.gbv.cognimobile.database.TestDefinitions}.
+     *
+     * @param image encoded image bytes.
+     * @return a bitmap image
+     */
+    public Bitmap decodeFromBytes(byte[] image){
+        return BitmapFactory.decodeByteArray(image, 0, image.length);
     }
 
 
@@ -68,14 +68,15 @@ public class JsonAnswerWrapper {
     }
 
     /**
-     * Adds a string array to the json
+     * Adds a string array to the json. The strings are no longer url encoded here, the whole
+     * form is encoded as UTF-8 when it is sent by {@link DataSender}.
      *
      * @param key   name to retrieve that arraylist after.
      * @param array to be included in the json.
      * @throws JSONException in case that something was not being handled.
      */
     public void addStringArray(String key, String[] array) throws JSONException {
-        JSONArray jsonArray = new JSONArray(encodeUtf8ForUrl(array));
+        JSONArray jsonArray = new JSONArray(array);
         subJsonObject.put(key, jsonArray);
     }
 
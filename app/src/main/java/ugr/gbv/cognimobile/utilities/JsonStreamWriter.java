@@ -0,0 +1,90 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * Class to write a json straight into a {@link Writer}, without building the whole document as a
+ * string first. Only the values that are being written are converted to text.
+ */
+public class JsonStreamWriter {
+
+    /**
+     * Private constructor, the class only has static methods.
+     */
+    private JsonStreamWriter() {
+    }
+
+    /**
+     * Writes a json value.
+     *
+     * @param out   where the json is written.
+     * @param value {@link JSONObject}, {@link JSONArray}, String, Number, Boolean or null.
+     * @throws IOException   in case that the writer fails.
+     * @throws JSONException in case that a number is not valid in json.
+     */
+    public static void write(Writer out, Object value) throws IOException, JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            out.write("null");
+        } else if (value instanceof JSONObject) {
+            writeObject(out, (JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            writeArray(out, (JSONArray) value);
+        } else if (value instanceof Number) {
+            out.write(JSONObject.numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            out.write(value.toString());
+        } else {
+            out.write(JSONObject.quote(value.toString()));
+        }
+    }
+
+    /**
+     * Writes a json object.
+     *
+     * @param out    where the json is written.
+     * @param object to be written.
+     * @throws IOException   in case that the writer fails.
+     * @throws JSONException in case that a number is not valid in json.
+     */
+    private static void writeObject(Writer out, JSONObject object) throws IOException, JSONException {
+        out.write('{');
+        Iterator<String> keys = object.keys();
+        boolean first = true;
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!first) {
+                out.write(',');
+            }
+            out.write(JSONObject.quote(key));
+            out.write(':');
+            write(out, object.opt(key));
+            first = false;
+        }
+        out.write('}');
+    }
+
+    /**
+     * Writes a json array.
+     *
+     * @param out   where the json is written.
+     * @param array to be written.
+     * @throws IOException   in case that the writer fails.
+     * @throws JSONException in case that a number is not valid in json.
+     */
+    private static void writeArray(Writer out, JSONArray array) throws IOException, JSONException {
+        out.write('[');
+        for (int i = 0; i < array.length(); ++i) {
+            if (i != 0) {
+                out.write(',');
+            }
+            write(out, array.opt(i));
+        }
+        out.write(']');
+    }
+}
@@ -0,0 +1,313 @@
+package ugr.gbv.cognimobile.utilities;
+
+import android.content.Context;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class to count what the app does with the network, per endpoint: requests, bytes sent and
+ * received, latency, status codes, errors and retries.
+ * It is fed by {@link HttpTransport}, so every request is counted without the callers doing
+ * anything. Every counter is a {@link LongAdder}, so recording never takes a lock and costs a
+ * few nanoseconds even when several network threads record at the same time.
+ * The counters could be read in the app as json, or dumped to a file to be attached to a
+ * support ticket.
+ */
+public class NetworkMetrics {
+
+    public static final String DUMP_FILE_NAME = "network_metrics.json";
+    public static final int MAX_ENDPOINTS = 64;
+    public static final String OTHER_ENDPOINT = "other";
+
+    private static final long[] LATENCY_BOUNDS_MILLIS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private static volatile NetworkMetrics instantiated;
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private volatile long since = System.currentTimeMillis();
+
+    /**
+     * Private constructor "singleton" pattern
+     */
+    private NetworkMetrics() {
+
+        if (instantiated != null) {
+            throw new RuntimeException("Use getInstance() method to get the single instance of this class.");
+        }
+    }
+
+    /**
+     * Static method to get the single instance
+     *
+     * @return the single instance of the class
+     */
+    public static NetworkMetrics getInstance() {
+        if (instantiated == null) {
+            synchronized (NetworkMetrics.class) {
+                if (instantiated == null) {
+                    instantiated = new NetworkMetrics();
+                }
+            }
+        }
+        return instantiated;
+    }
+
+    /**
+     * Gets the counters of the endpoint of a url, the host and the path without the query.
+     * When there are already too many endpoints the new ones share a single entry, so a study
+     * with lots of test urls does not make the registry grow without limit.
+     *
+     * @param url requested.
+     * @return the counters of the endpoint.
+     */
+    public Endpoint forUrl(URL url) {
+        String name = url.getHost() + url.getPath();
+        Endpoint endpoint = endpoints.get(name);
+        if (endpoint == null) {
+            if (endpoints.size() >= MAX_ENDPOINTS) {
+                name = OTHER_ENDPOINT;
+            }
+            endpoint = endpoints.computeIfAbsent(name, key -> new Endpoint());
+        }
+        return endpoint;
+    }
+
+    /**
+     * Removes every counter.
+     */
+    public void reset() {
+        endpoints.clear();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the counters of every endpoint as json.
+     *
+     * @return the counters, with the time they started to be counted.
+     * @throws JSONException in case that the json could not be built.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("since", since);
+        json.put("generated", System.currentTimeMillis());
+
+        JSONObject endpointsJson = new JSONObject();
+        for (Map.Entry<String, Endpoint> entry : new TreeMap<>(endpoints).entrySet()) {
+            endpointsJson.put(entry.getKey(), entry.getValue().toJson());
+        }
+        json.put("endpoints", endpointsJson);
+
+        return json;
+    }
+
+    /**
+     * Writes the counters of every endpoint into a file of the app.
+     *
+     * @param context Context required to get the files directory
+     * @return the written file.
+     * @throws IOException   in case that the file could not be written.
+     * @throws JSONException in case that the json could not be built.
+     */
+    public File dump(Context context) throws IOException, JSONException {
+        File file = new File(context.getFilesDir(), DUMP_FILE_NAME);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(toJson().toString(2));
+        }
+        return file;
+    }
+
+    /**
+     * Gets the bucket of the latency histogram of a duration.
+     *
+     * @param millis duration of the request.
+     * @return the index of the bucket.
+     */
+    static int latencyBucket(long millis) {
+        for (int i = 0; i < LATENCY_BOUNDS_MILLIS.length; ++i) {
+            if (millis <= LATENCY_BOUNDS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BOUNDS_MILLIS.length;
+    }
+
+    /**
+     * Gets the label of a bucket of the latency histogram.
+     *
+     * @param bucket index of the bucket.
+     * @return the label, the upper bound of the bucket.
+     */
+    static String latencyLabel(int bucket) {
+        return bucket < LATENCY_BOUNDS_MILLIS.length
+                ? "<=" + LATENCY_BOUNDS_MILLIS[bucket]
+                : ">" + LATENCY_BOUNDS_MILLIS[LATENCY_BOUNDS_MILLIS.length - 1];
+    }
+
+    /**
+     * Counters of a single endpoint.
+     */
+    public static class Endpoint {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder circuitOpen = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder bytesUp = new LongAdder();
+        private final LongAdder bytesDown = new LongAdder();
+        private final LongAdder latencySum = new LongAdder();
+        private final LongAdder[] latencyBuckets = new LongAdder[LATENCY_BOUNDS_MILLIS.length + 1];
+        private final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        /**
+         * Constructor
+         */
+        Endpoint() {
+            for (int i = 0; i < latencyBuckets.length; ++i) {
+                latencyBuckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a request that got a response.
+         *
+         * @param status      code of the response.
+         * @param elapsedNanos since the request was started.
+         */
+        public void onResponse(int status, long elapsedNanos) {
+            requests.increment();
+            onLatency(elapsedNanos);
+            LongAdder counter = statuses.get(status);
+            if (counter == null) {
+                counter = statuses.computeIfAbsent(status, key -> new LongAdder());
+            }
+            counter.increment();
+        }
+
+        /**
+         * Records a request that failed without a response.
+         *
+         * @param elapsedNanos since the request was started.
+         */
+        public void onError(long elapsedNanos) {
+            requests.increment();
+            errors.increment();
+            onLatency(elapsedNanos);
+        }
+
+        /**
+         * Records a request that was not sent because the circuit of the host is open.
+         */
+        public void onCircuitOpen() {
+            circuitOpen.increment();
+        }
+
+        /**
+         * Records a request that is going to be repeated.
+         */
+        public void onRetry() {
+            retries.increment();
+        }
+
+        /**
+         * Records bytes written into the connection.
+         *
+         * @param bytes written.
+         */
+        public void onBytesUp(long bytes) {
+            bytesUp.add(bytes);
+        }
+
+        /**
+         * Records bytes read from the connection.
+         *
+         * @param bytes read.
+         */
+        public void onBytesDown(long bytes) {
+            bytesDown.add(bytes);
+        }
+
+        /**
+         * Gets the number of requests that got a status code.
+         *
+         * @param status code of the response.
+         * @return the number of requests.
+         */
+        public long getStatusCount(int status) {
+            LongAdder counter = statuses.get(status);
+            return counter != null ? counter.sum() : 0;
+        }
+
+        /**
+         * Gets the number of requests.
+         *
+         * @return the number of requests, with or without response.
+         */
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        /**
+         * Adds a duration to the latency histogram.
+         *
+         * @param elapsedNanos duration of the request.
+         */
+        private void onLatency(long elapsedNanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            latencySum.add(millis);
+            latencyBuckets[latencyBucket(millis)].increment();
+        }
+
+        /**
+         * Gets the counters as json.
+         *
+         * @return the counters.
+         * @throws JSONException in case that the json could not be built.
+         */
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            long total = requests.sum();
+            long failed = errors.sum();
+            json.put("requests", total);
+            json.put("errors", failed);
+            json.put("error_rate", total > 0 ? (double) failed / total : 0);
+            json.put("circuit_open", circuitOpen.sum());
+            json.put("retries", retries.sum());
+            json.put("bytes_up", bytesUp.sum());
+            json.put("bytes_down", bytesDown.sum());
+
+            JSONObject latency = new JSONObject();
+            latency.put("sum_ms", latencySum.sum());
+            JSONObject buckets = new JSONObject();
+            for (int i = 0; i < latencyBuckets.length; ++i) {
+                long count = latencyBuckets[i].sum();
+                if (count > 0) {
+                    buckets.put(latencyLabel(i), count);
+                }
+            }
+            latency.put("buckets", buckets);
+            json.put("latency", latency);
+
+            JSONObject statusJson = new JSONObject();
+            for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(statuses).entrySet()) {
+                statusJson.put(Integer.toString(entry.getKey()), entry.getValue().sum());
+            }
+            json.put("status", statusJson);
+
+            return json;
+        }
+    }
+}
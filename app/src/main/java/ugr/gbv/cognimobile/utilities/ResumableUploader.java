@@ -0,0 +1,186 @@
+package ugr.gbv.cognimobile.utilities;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class to upload a large body in chunks, in the calling thread, so an interrupted upload
+ * continues from the last chunk that the server committed instead of from the beginning.
+ * Before sending, the client asks the server how much of the upload it already has, and every
+ * chunk is answered with the offset that the server has committed. When the last chunk is
+ * committed the server handles the whole body as if it had been posted at once.
+ * It does not depend on the Android context, like the {@link BatchUploader}.
+ */
+public class ResumableUploader {
+
+    public final static String UPLOAD = "upload";
+
+    private final static String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private final static String OFFSET_HEADER = "Upload-Offset";
+    private final static String LENGTH_HEADER = "Upload-Length";
+    private final static String CHUNK_CONTENT_TYPE = "application/offset+octet-stream";
+
+    private final HttpTransport transport;
+    private final RetryPolicy retryPolicy;
+    private final int chunkSize;
+
+    /**
+     * Constructor
+     *
+     * @param transport   to send the requests.
+     * @param retryPolicy to repeat the failed requests, the attempts are counted since the last
+     *                    chunk committed.
+     * @param chunkSize   maximum number of bytes sent by request.
+     */
+    public ResumableUploader(HttpTransport transport, RetryPolicy retryPolicy, int chunkSize) {
+        this.transport = transport;
+        this.retryPolicy = retryPolicy;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Uploads a body in chunks. The upload is identified by its id, so a later call with the
+     * same id and body continues where the server left it. A failed request is repeated
+     * following the {@link RetryPolicy}, asking the server for its offset again when there was
+     * no response, as the chunk could have been committed anyway. It gives up when the calling
+     * thread is interrupted, the next call continues from the last chunk committed.
+     *
+     * @param url      of the upload command of the table
+     * @param uploadId that identifies the upload, the same for every attempt
+     * @param body     to be uploaded, the same for every attempt
+     * @return the status code of the last chunk, or of the request that failed. It is 404 when
+     * the server does not know resumable uploads.
+     * @throws IOException in case that there is no connection established.
+     */
+    public int upload(URL url, String uploadId, byte[] body) throws IOException {
+        URL uploadUrl = new URL(url.toString() + "?id=" + encode(uploadId));
+        long offset = -1;
+
+        for (int attempt = 0; ; ++attempt) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Upload interrupted at offset " + offset);
+            }
+            try {
+                Progress progress = offset < 0
+                        ? transport.get(uploadUrl, null, this::readProgress)
+                        : postChunk(uploadUrl, uploadId, body, offset);
+
+                if (RetryPolicy.isSuccess(progress.status) && progress.offset < 0) {
+                    //The server does not know resumable uploads
+                    return HttpURLConnection.HTTP_NOT_FOUND;
+                }
+                if (RetryPolicy.isSuccess(progress.status) && progress.offset >= body.length) {
+                    //Every chunk is committed, the answer to the last one could have been lost
+                    return progress.status;
+                }
+                if (RetryPolicy.isSuccess(progress.status) || progress.status == HttpURLConnection.HTTP_CONFLICT) {
+                    if (progress.offset > offset) {
+                        //The server moved forward, the failures before do not count
+                        attempt = -1;
+                        offset = progress.offset;
+                        continue;
+                    }
+                    offset = progress.offset;
+                } else if (!RetryPolicy.isRetryable(progress.status)) {
+                    return progress.status;
+                }
+                if (!retryPolicy.canRetry(attempt)) {
+                    return progress.status;
+                }
+            } catch (CircuitBreaker.OpenException e) {
+                throw e;
+            } catch (IOException e) {
+                if (!retryPolicy.canRetry(attempt)) {
+                    throw e;
+                }
+                offset = -1;
+            }
+
+            NetworkMetrics.getInstance().forUrl(url).onRetry();
+            try {
+                Thread.sleep(retryPolicy.getDelayMillis(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted while waiting to retry");
+            }
+        }
+    }
+
+    /**
+     * Sends the chunk that starts at an offset.
+     *
+     * @param uploadUrl of the upload
+     * @param uploadId  that identifies the upload
+     * @param body      to be uploaded
+     * @param offset    of the first byte of the chunk
+     * @return the answer of the server.
+     * @throws IOException in case that there is no connection established.
+     */
+    private Progress postChunk(URL uploadUrl, String uploadId, byte[] body, long offset) throws IOException {
+        int length = (int) Math.min(chunkSize, body.length - offset);
+        Map<String, String> headers = new HashMap<>();
+        headers.put(IDEMPOTENCY_KEY_HEADER, uploadId);
+        headers.put(OFFSET_HEADER, Long.toString(offset));
+        headers.put(LENGTH_HEADER, Integer.toString(body.length));
+
+        return transport.post(uploadUrl, CHUNK_CONTENT_TYPE, headers,
+                out -> out.write(body, (int) offset, length), this::readProgress);
+    }
+
+    /**
+     * Reads the status and the offset committed by the server.
+     *
+     * @param connection already sent connection
+     * @return the answer of the server, with offset -1 if it does not report one.
+     * @throws IOException in case that the response could not be read.
+     */
+    private Progress readProgress(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        long offset = -1;
+        String header = connection.getHeaderField(OFFSET_HEADER);
+        if (header != null) {
+            try {
+                offset = Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+        }
+        return new Progress(status, offset);
+    }
+
+    /**
+     * Encodes the id of an upload to be used in the query of a url.
+     *
+     * @param uploadId that identifies the upload
+     * @return the encoded id.
+     * @throws UnsupportedEncodingException never, UTF-8 is always supported.
+     */
+    private static String encode(String uploadId) throws UnsupportedEncodingException {
+        return URLEncoder.encode(uploadId, "UTF-8");
+    }
+
+    /**
+     * Answer of the server to a request of the upload.
+     */
+    private static class Progress {
+        private final int status;
+        private final long offset;
+
+        /**
+         * Constructor
+         *
+         * @param status of the response.
+         * @param offset committed by the server, -1 if unknown.
+         */
+        Progress(int status, long offset) {
+            this.status = status;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ugr.gbv.cognimobile.utilities;
+
+import java.util.Random;
+
+/**
+ * Class to decide if a request to the study server should be repeated and how long to wait
+ * before doing it. The waits grow exponentially with a random jitter, so many devices failing at
+ * the same time do not retry at the same time.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 8000;
+
+    private static final int HTTP_TOO_EARLY = 425;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random;
+
+    /**
+     * Constructor
+     *
+     * @param maxAttempts     number of times a request is sent, the first one included.
+     * @param baseDelayMillis wait before the first retry, without jitter.
+     * @param maxDelayMillis  longest wait between two attempts.
+     * @param random          source of the jitter.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, Random random) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.random = random;
+    }
+
+    /**
+     * Gets the policy used for the uploads.
+     *
+     * @return a policy with the default values.
+     */
+    public static RetryPolicy getDefault() {
+        return new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, new Random());
+    }
+
+    /**
+     * Checks if a status code means that the server accepted the request.
+     *
+     * @param code HTTP status code.
+     * @return true for the 2xx codes.
+     */
+    public static boolean isSuccess(int code) {
+        return code >= 200 && code < 300;
+    }
+
+    /**
+     * Checks if a request that failed with a status code could succeed if it is repeated:
+     * timeouts, throttling and server errors.
+     *
+     * @param code HTTP status code.
+     * @return true if the request could be repeated.
+     */
+    public static boolean isRetryable(int code) {
+        return code == 408 || code == HTTP_TOO_EARLY || code == HTTP_TOO_MANY_REQUESTS
+                || (code >= 500 && code != 501 && code != 505);
+    }
+
+    /**
+     * Checks if a request that failed with a status code would fail again if it is repeated,
+     * the data sent is not valid for the server.
+     *
+     * @param code HTTP status code.
+     * @return true if the request should not be repeated.
+     */
+    public static boolean isPermanentFailure(int code) {
+        return !isSuccess(code) && !isRetryable(code);
+    }
+
+    /**
+     * Checks if there are attempts left after a failed one.
+     *
+     * @param attempt index of the failed attempt, starting at 0.
+     * @return true if the request could be sent again.
+     */
+    public boolean canRetry(int attempt) {
+        return attempt + 1 < maxAttempts;
+    }
+
+    /**
+     * Gets the wait before repeating a failed attempt: a random time between 0 and the
+     * exponential delay of the attempt.
+     *
+     * @param attempt index of the failed attempt, starting at 0.
+     * @return milliseconds to wait.
+     */
+    public long getDelayMillis(int attempt) {
+        long ceiling = baseDelayMillis << Math.min(attempt, 30);
+        if (ceiling <= 0 || ceiling > maxDelayMillis) {
+            ceiling = maxDelayMillis;
+        }
+        return (long) (random.nextDouble() * ceiling);
+    }
+}
@@ -0,0 +1,133 @@
+package ugr.gbv.cognimobile.utilities;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.aware.Aware;
+import com.aware.providers.Aware_Provider;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class to keep the endpoints of the joined study, so the study url is read from the database
+ * and parsed only once instead of on every upload. It has to be invalidated whenever the user
+ * joins or quits a study.
+ */
+public class StudyEndpointCache {
+
+    private static volatile StudyEndpointCache instantiated;
+
+    private final Map<String, URL> endpoints = new ConcurrentHashMap<>();
+    private volatile Uri studyUri;
+
+    /**
+     * Private constructor "singleton" pattern
+     */
+    private StudyEndpointCache() {
+
+        if (instantiated != null) {
+            throw new RuntimeException("Use getInstance() method to get the single instance of this class.");
+        }
+    }
+
+    /**
+     * Static method to get the single instance
+     *
+     * @return the single instance of the class
+     */
+    public static StudyEndpointCache getInstance() {
+        if (instantiated == null) {
+            synchronized (StudyEndpointCache.class) {
+                if (instantiated == null) {
+                    instantiated = new StudyEndpointCache();
+                }
+            }
+        }
+        return instantiated;
+    }
+
+    /**
+     * Gets the url of a command over a table of the study server.
+     *
+     * @param context Context required to read the study
+     * @param table   the name of the table
+     * @param command to be run over the table
+     * @return the complete url
+     * @throws MalformedURLException in case that there is no study joined or its url is invalid.
+     */
+    public URL getEndpoint(Context context, String table, String command) throws MalformedURLException {
+        String key = table + "/" + command;
+        URL endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            endpoint = buildEndpoint(getStudyUri(context), table, command);
+            endpoints.put(key, endpoint);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Forgets the study url and every endpoint, they are resolved again on the next request.
+     */
+    public void invalidate() {
+        studyUri = null;
+        endpoints.clear();
+    }
+
+    /**
+     * Gets the url of the joined study, reading it from the database the first time.
+     *
+     * @param context Context required to read the study
+     * @return the parsed url
+     * @throws MalformedURLException in case that there is no study joined.
+     */
+    private Uri getStudyUri(Context context) throws MalformedURLException {
+        Uri uri = studyUri;
+        if (uri == null) {
+            String urlDb = null;
+            Cursor studies = Aware.getStudy(context, "");
+            if (studies != null) {
+                if (studies.moveToFirst()) {
+                    urlDb = studies.getString(studies.getColumnIndex(Aware_Provider.Aware_Studies.STUDY_URL));
+                }
+                studies.close();
+            }
+            if (urlDb == null || urlDb.isEmpty()) {
+                throw new MalformedURLException("There is no study joined");
+            }
+            uri = Uri.parse(urlDb);
+            studyUri = uri;
+        }
+        return uri;
+    }
+
+    /**
+     * Build the url of a command over a table
+     *
+     * @param studyUri url of the study
+     * @param table    the name of the table
+     * @param command  to be run over the table
+     * @return the complete url
+     * @throws MalformedURLException in case that the study url is invalid.
+     */
+    private static URL buildEndpoint(Uri studyUri, String table, String command) throws MalformedURLException {
+        Uri.Builder urlBuilder = new Uri.Builder();
+        List<String> paths = studyUri.getPathSegments();
+
+        urlBuilder.scheme(studyUri.getScheme())
+                .authority(studyUri.getAuthority());
+
+        for (String path : paths) {
+            urlBuilder.appendPath(path);
+        }
+
+        urlBuilder.appendPath(table)
+                .appendPath(command);
+
+        return new URL(urlBuilder.build().toString().replaceAll("%3A", ":"));
+    }
+}
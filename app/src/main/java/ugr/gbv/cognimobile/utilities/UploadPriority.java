@@ -0,0 +1,41 @@
+package ugr.gbv.cognimobile.utilities;
+
+/**
+ * Priority classes of the data waiting to be uploaded, lower values go first. The scored
+ * results are what the study needs, the context events explain how the test was done and the
+ * bulk class holds the raw data of the drawing tasks, too large to be sent over a metered
+ * connection without a good reason.
+ */
+public class UploadPriority {
+
+    public final static int RESULTS = 0;
+    public final static int CONTEXT_EVENTS = 1;
+    public final static int BULK = 2;
+
+    /**
+     * Gets the priority class of a row of the outbox.
+     *
+     * @param target    table of the server where the row is uploaded
+     * @param chars     length of the data of the row
+     * @param bulkChars length from which a row is bulk data
+     * @return the priority class.
+     */
+    public static int forRow(String target, int chars, int bulkChars) {
+        if (DataSender.RESULTS_TABLE.equals(target)) {
+            return RESULTS;
+        }
+        return chars >= bulkChars ? BULK : CONTEXT_EVENTS;
+    }
+
+    /**
+     * Gets the lowest priority class that should be uploaded on any network. The rest wait for
+     * an unmetered one. Context events go with the results unless there are many of them.
+     *
+     * @param contextEventsChars length of the pending context events
+     * @param largeChars         length from which an upload waits for an unmetered network
+     * @return the priority class.
+     */
+    public static int getMeteredMaxPriority(long contextEventsChars, long largeChars) {
+        return contextEventsChars < largeChars ? CONTEXT_EVENTS : RESULTS;
+    }
+}
@@ -0,0 +1,234 @@
+package ugr.gbv.cognimobile.sync;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link TestsDownloadPipeline} downloads in parallel without going over its
+ * limit, so the time of a sync is close to the slowest tests instead of the sum of all of them.
+ */
+public class TestsDownloadPipelineTest {
+
+    private static final int TESTS = 20;
+    private static final int FETCH_CONCURRENCY = 4;
+    private static final int PARSE_THREADS = 2;
+
+    @Test
+    public void downloadsInParallelUpToTheLimit() throws Exception {
+        List<String> urls = new ArrayList<>();
+        long sequentialMillis = 0;
+        for (int i = 0; i < TESTS; ++i) {
+            urls.add("test/" + i);
+            sequentialMillis += latencyOf(i);
+        }
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        ExecutorService network = Executors.newFixedThreadPool(FETCH_CONCURRENCY * 2);
+
+        TestsDownloadPipeline<String, String> pipeline = new TestsDownloadPipeline<>(
+                FETCH_CONCURRENCY, PARSE_THREADS, network,
+                url -> {
+                    int now = running.incrementAndGet();
+                    maxRunning.accumulateAndGet(now, Math::max);
+                    try {
+                        Thread.sleep(latencyOf(Integer.parseInt(url.substring(5))));
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                    return url;
+                },
+                (url, downloaded) -> downloaded.toUpperCase());
+
+        long start = System.nanoTime();
+        List<String> parsed = pipeline.run(urls, null);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        network.shutdown();
+
+        System.out.printf("pipeline: %d tests in %d ms, sequential would take %d ms%n",
+                TESTS, elapsedMillis, sequentialMillis);
+
+        assertEquals(TESTS, parsed.size());
+        assertEquals("TEST/0", parsed.get(0));
+        assertTrue(maxRunning.get() <= FETCH_CONCURRENCY);
+    }
+
+    @Test
+    public void failuresDoNotStopTheOtherTests() throws Exception {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < TESTS; ++i) {
+            urls.add(Integer.toString(i));
+        }
+
+        List<Throwable> failures = new ArrayList<>();
+        TestsDownloadPipeline<String, String> pipeline = new TestsDownloadPipeline<>(
+                FETCH_CONCURRENCY, PARSE_THREADS, Runnable::run,
+                url -> {
+                    if (Integer.parseInt(url) % 5 == 0) {
+                        throw new IOException("unreachable " + url);
+                    }
+                    return Integer.parseInt(url) % 5 == 1 ? null : url;
+                },
+                (url, downloaded) -> downloaded);
+
+        List<String> parsed = pipeline.run(urls, error -> {
+            synchronized (failures) {
+                failures.add(error);
+            }
+        });
+
+        assertEquals(TESTS * 3 / 5, parsed.size());
+        assertEquals(TESTS / 5, failures.size());
+        assertTrue(failures.get(0) instanceof IOException);
+    }
+
+    @Test
+    public void interruptionSkipsTheQueuedDownloads() throws Exception {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < TESTS; ++i) {
+            urls.add(Integer.toString(i));
+        }
+
+        AtomicInteger started = new AtomicInteger();
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        ExecutorService network = Executors.newSingleThreadExecutor();
+        TestsDownloadPipeline<String, String> pipeline = new TestsDownloadPipeline<>(
+                FETCH_CONCURRENCY, PARSE_THREADS, network,
+                url -> {
+                    started.incrementAndGet();
+                    firstStarted.countDown();
+                    Thread.sleep(200);
+                    return url;
+                },
+                (url, downloaded) -> downloaded);
+
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread worker = new Thread(() -> {
+            try {
+                pipeline.run(urls, null);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        worker.start();
+        firstStarted.await();
+        worker.interrupt();
+        worker.join();
+        network.shutdown();
+        network.awaitTermination(1, TimeUnit.SECONDS);
+
+        //The running download is interrupted, the ones queued behind it never start
+        assertTrue(interrupted.get());
+        assertEquals(1, started.get());
+    }
+
+    @Test
+    public void interruptionStopsTheRunningDownloads() throws Exception {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < FETCH_CONCURRENCY; ++i) {
+            urls.add(Integer.toString(i));
+        }
+
+        CountDownLatch allStarted = new CountDownLatch(FETCH_CONCURRENCY);
+        CountDownLatch allStopped = new CountDownLatch(FETCH_CONCURRENCY);
+        ExecutorService network = Executors.newFixedThreadPool(FETCH_CONCURRENCY);
+        TestsDownloadPipeline<String, String> pipeline = new TestsDownloadPipeline<>(
+                FETCH_CONCURRENCY, PARSE_THREADS, network,
+                url -> {
+                    allStarted.countDown();
+                    try {
+                        //A download that would never finish by itself
+                        new CountDownLatch(1).await();
+                        return url;
+                    } finally {
+                        allStopped.countDown();
+                    }
+                },
+                (url, downloaded) -> downloaded);
+
+        Thread worker = new Thread(() -> {
+            try {
+                pipeline.run(urls, null);
+            } catch (InterruptedException e) {
+                //Expected
+            }
+        });
+        worker.start();
+        allStarted.await();
+        worker.interrupt();
+        worker.join();
+
+        //The downloads stop with the run, and their threads are not left interrupted
+        assertTrue(allStopped.await(1, TimeUnit.SECONDS));
+        assertFalse(network.submit(() -> Thread.currentThread().isInterrupted()).get());
+        network.shutdown();
+    }
+
+    @Test
+    public void passesTheTestsBeforeTheSlowestOneArrives() throws Exception {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < TESTS; ++i) {
+            urls.add(Integer.toString(i));
+        }
+
+        CountDownLatch othersReceived = new CountDownLatch(TESTS - 1);
+        AtomicBoolean slowWaitedForOthers = new AtomicBoolean();
+        AtomicLong firstParsedNanos = new AtomicLong();
+        List<String> received = new ArrayList<>();
+        ExecutorService network = Executors.newFixedThreadPool(FETCH_CONCURRENCY);
+        TestsDownloadPipeline<String, String> pipeline = new TestsDownloadPipeline<>(
+                FETCH_CONCURRENCY, PARSE_THREADS, network,
+                url -> {
+                    if (url.equals("0")) {
+                        //The slow test only arrives once every other one has been passed on
+                        slowWaitedForOthers.set(othersReceived.await(10, TimeUnit.SECONDS));
+                    }
+                    return url;
+                },
+                (url, downloaded) -> downloaded);
+
+        long start = System.nanoTime();
+        List<String> parsed = pipeline.run(urls, null, test -> {
+            firstParsedNanos.compareAndSet(0, System.nanoTime());
+            synchronized (received) {
+                received.add(test);
+            }
+            othersReceived.countDown();
+        });
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        long firstMillis = (firstParsedNanos.get() - start) / 1000000;
+        network.shutdown();
+
+        System.out.printf("pipeline: first test after %d ms, all of them after %d ms%n", firstMillis, elapsedMillis);
+
+        //The other tests are available without waiting for the slow one holding back the result
+        assertTrue(slowWaitedForOthers.get());
+        assertEquals(TESTS, parsed.size());
+        assertEquals(TESTS, received.size());
+        assertEquals("0", received.get(TESTS - 1));
+    }
+
+    /**
+     * Latency of a test, between 20 and 200 ms.
+     *
+     * @param test index of the test.
+     * @return milliseconds to download it.
+     */
+    private static long latencyOf(int test) {
+        return 20 + (test * 37) % 181;
+    }
+}
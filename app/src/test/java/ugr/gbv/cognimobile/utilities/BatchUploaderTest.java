@@ -0,0 +1,63 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Uploads of batches against a {@link StandInStudyServer} that discards the rows it already has:
+ * a batch committed whose response was lost is sent again grouped with other rows, and every
+ * row is stored once.
+ */
+public class BatchUploaderTest {
+
+    private static final int ROWS = 10;
+
+    @Test
+    public void storesRowsOnceWhenTheyAreGroupedAgain() throws Exception {
+        HttpTransport transport = new HttpTransport(1, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+        BatchUploader uploader = new BatchUploader(transport, new RetryPolicy(1, 1, 1, new Random(1)), true);
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            URL url = server.getTableUrl(DataSender.RESULTS_TABLE, DataSender.INSERT);
+
+            //The first batch is committed but the worker does not get the answer
+            uploader.post(url, "device", buildRows(0, ROWS), buildTimestamps(0, ROWS), buildKeys(0, ROWS));
+            //The next run sends its last rows together with the rows queued since then
+            uploader.post(url, "device", buildRows(ROWS / 2, ROWS), buildTimestamps(ROWS / 2, ROWS), buildKeys(ROWS / 2, ROWS));
+
+            assertEquals(ROWS * 3 / 2, server.getRowCount(DataSender.RESULTS_TABLE));
+        }
+    }
+
+    private static List<JSONArray> buildRows(int first, int count) throws Exception {
+        List<JSONArray> rows = new ArrayList<>();
+        for (int i = first; i < first + count; ++i) {
+            rows.add(new JSONArray().put(new JSONObject().put("name", "test").put("score", i)));
+        }
+        return rows;
+    }
+
+    private static List<Long> buildTimestamps(int first, int count) {
+        List<Long> timestamps = new ArrayList<>();
+        for (int i = first; i < first + count; ++i) {
+            timestamps.add(1600000000000L + i);
+        }
+        return timestamps;
+    }
+
+    private static List<String> buildKeys(int first, int count) {
+        List<String> keys = new ArrayList<>();
+        for (int i = first; i < first + count; ++i) {
+            keys.add("session-" + i + ":" + DataSender.RESULTS_TABLE);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,189 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bytes on the wire and encoding time of a batch of context events, comparing the json form
+ * with the {@link BinaryEventsCodec}, and checks that the reference decoder gives back the same
+ * json.
+ */
+public class BinaryEventsCodecBenchmark {
+
+    private static final int SESSIONS = 25;
+    private static final int ROUNDS = 30;
+
+    @Test
+    public void decoderGivesBackTheSameJson() throws Exception {
+        List<JSONArray> rows = buildSessions(3);
+        List<Long> timestamps = Arrays.asList(1600000000000L, 1600000000001L, 1599999999000L);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEventsCodec.writeBatch(out, "device", rows, timestamps);
+        BinaryEventsCodec.Batch batch = BinaryEventsCodec.readBatch(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals("device", batch.deviceId);
+        assertEquals(timestamps, batch.timestamps);
+        for (int i = 0; i < rows.size(); ++i) {
+            assertEquals(rows.get(i).toString(), batch.rows.get(i).toString());
+        }
+
+        JSONObject odd = new JSONObject();
+        odd.put("padded", "007,1");
+        odd.put("negative", "-5,3,-2");
+        odd.put("text", "árbol, casa");
+        odd.put("mixed", new JSONArray("[1, 2.5, \"a\", null, true]"));
+        odd.put("big", Long.MAX_VALUE);
+        odd.put("double", 0.1);
+        JSONObject parsed = new JSONObject(odd.toString());
+        assertEquals(parsed.toString(), BinaryEventsCodec.decode(BinaryEventsCodec.encode(parsed)).toString());
+
+        assertNull(BinaryEventsCodec.parseJoinedInts("007"));
+        assertNull(BinaryEventsCodec.parseJoinedInts("1,,2"));
+        assertArrayEquals(new long[]{-5, 3}, BinaryEventsCodec.parseJoinedInts("-5,3"));
+    }
+
+    @Test
+    public void contextEventsBytesAndEncodeTime() throws Exception {
+        List<JSONArray> rows = buildSessions(SESSIONS);
+        List<Long> timestamps = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; ++i) {
+            timestamps.add(1600000000000L + i * 60000L);
+        }
+
+        int jsonBytes = 0;
+        int binaryBytes = 0;
+        long jsonNanos = Long.MAX_VALUE;
+        long binaryNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            jsonBytes = writeJsonForm(rows, timestamps, false).length;
+            jsonNanos = Math.min(jsonNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            binaryBytes = writeBinary(rows, timestamps, false).length;
+            binaryNanos = Math.min(binaryNanos, System.nanoTime() - start);
+        }
+        int jsonGzipBytes = writeJsonForm(rows, timestamps, true).length;
+        int binaryGzipBytes = writeBinary(rows, timestamps, true).length;
+
+        System.out.printf("json form   %9d bytes %9d gzip %6.2f ms%n", jsonBytes, jsonGzipBytes, jsonNanos / 1e6);
+        System.out.printf("binary      %9d bytes %9d gzip %6.2f ms (%.1fx smaller)%n", binaryBytes, binaryGzipBytes,
+                binaryNanos / 1e6, jsonBytes / (double) binaryBytes);
+
+        assertTrue(binaryBytes * 2 < jsonBytes);
+        assertTrue(binaryGzipBytes < jsonGzipBytes);
+    }
+
+    @Test
+    public void serverNegotiatesTheBinaryForm() throws Exception {
+        HttpTransport transport = new HttpTransport(1, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+        BatchUploader uploader = new BatchUploader(transport, new RetryPolicy(1, 1, 1, new Random(1)), false);
+        List<JSONArray> rows = buildSessions(2);
+        List<String> keys = Arrays.asList("a:contextEvents", "b:contextEvents");
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            URL url = server.getTableUrl(DataSender.CONTEXT_EVENTS_TABLE, DataSender.INSERT);
+            int[] statuses = uploader.postBinary(url, "device", rows, null, keys);
+            assertArrayEquals(new int[]{200, 200}, statuses);
+            assertEquals(2, server.getRowCount(DataSender.CONTEXT_EVENTS_TABLE));
+
+            server.rejectBinary();
+            statuses = uploader.postBinary(url, "device", rows, null, Collections.singletonList("c"));
+            assertArrayEquals(new int[]{HttpURLConnection.HTTP_UNSUPPORTED_TYPE, HttpURLConnection.HTTP_UNSUPPORTED_TYPE}, statuses);
+        }
+    }
+
+    /**
+     * Writes the form like {@link BatchUploader#post} does into the connection.
+     */
+    private static byte[] writeJsonForm(List<JSONArray> rows, List<Long> timestamps, boolean gzip) throws Exception {
+        JSONArray data = new JSONArray();
+        for (int i = 0; i < rows.size(); ++i) {
+            data.put(new JSONObject().put("timestamp", timestamps.get(i) / 1000.0).put("data", rows.get(i)));
+        }
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (OutputStream out = gzip ? new GZIPOutputStream(wire) : wire) {
+            FormUrlEncodingWriter form = new FormUrlEncodingWriter(out);
+            form.writeRaw("device_id=");
+            form.write("device");
+            form.writeRaw("&data=");
+            JsonStreamWriter.write(form, data);
+            form.flush();
+        }
+        return wire.toByteArray();
+    }
+
+    /**
+     * Writes the batch like {@link BatchUploader#postBinary} does into the connection.
+     */
+    private static byte[] writeBinary(List<JSONArray> rows, List<Long> timestamps, boolean gzip) throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (OutputStream out = gzip ? new GZIPOutputStream(wire) : wire) {
+            BinaryEventsCodec.writeBatch(out, "device", rows, timestamps);
+        }
+        return wire.toByteArray();
+    }
+
+    /**
+     * Builds context events like the ones of a whole test, read back from the outbox text as
+     * the upload does: timestamps joined by commas, drawn points and typed characters.
+     */
+    private static List<JSONArray> buildSessions(int sessions) throws Exception {
+        Random random = new Random(5);
+        List<JSONArray> rows = new ArrayList<>();
+        for (int session = 0; session < sessions; ++session) {
+            JSONObject events = new JSONObject();
+            events.put("name", "MoCA");
+            events.put("language", "es");
+            long time = 1600000000000L + session * 600000L;
+            for (int task = 0; task < 8; ++task) {
+                JSONObject taskEvents = new JSONObject();
+                taskEvents.put(ContextDataRetriever.GenericTimeStartTask, time);
+                List<String> starts = new ArrayList<>();
+                List<String> characters = new ArrayList<>();
+                for (int i = 0; i < 30; ++i) {
+                    time += 150 + random.nextInt(900);
+                    starts.add(Long.toString(time));
+                    characters.add(Character.toString((char) ('a' + random.nextInt(26))));
+                }
+                taskEvents.put(ContextDataRetriever.SpecificMemoryStartWriting, String.join(",", starts));
+                taskEvents.put(ContextDataRetriever.SpecificMemoryCharacterChange, String.join(",", characters));
+                if (task < 2) {
+                    float[] path = new float[2000];
+                    float x = 500;
+                    float y = 500;
+                    for (int i = 0; i < path.length; i += 2) {
+                        x += (random.nextInt(61) - 30) / 10f;
+                        y += (random.nextInt(61) - 30) / 10f;
+                        path[i] = x;
+                        path[i + 1] = y;
+                    }
+                    taskEvents.put(ContextDataRetriever.SpecificVSCubePoints, new JSONArray(path));
+                }
+                taskEvents.put(ContextDataRetriever.GenericTimeEndTask, time);
+                events.put("task_" + task, taskEvents);
+            }
+            rows.add(new JSONArray(new JSONArray().put(events).toString()));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,75 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link CircuitBreaker} opens after repeated failures, lets a single request
+ * test the host once the open time has passed, and closes again when it succeeds.
+ */
+public class CircuitBreakerTest {
+
+    private static final int THRESHOLD = 3;
+    private static final long OPEN_MILLIS = 1000;
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        AtomicLong now = new AtomicLong();
+        CircuitBreaker breaker = new CircuitBreaker(THRESHOLD, OPEN_MILLIS, now::get);
+
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+
+        breaker.onFailure();
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void probesOnceAfterTheOpenTime() {
+        AtomicLong now = new AtomicLong();
+        CircuitBreaker breaker = new CircuitBreaker(THRESHOLD, OPEN_MILLIS, now::get);
+        for (int i = 0; i < THRESHOLD; ++i) {
+            breaker.onFailure();
+        }
+
+        now.addAndGet(OPEN_MILLIS);
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        breaker.onFailure();
+        assertFalse(breaker.allowRequest());
+
+        now.addAndGet(OPEN_MILLIS);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void retryPolicyClassifiesStatusesAndJittersDelays() {
+        assertTrue(RetryPolicy.isRetryable(503));
+        assertTrue(RetryPolicy.isRetryable(429));
+        assertTrue(RetryPolicy.isPermanentFailure(400));
+        assertTrue(RetryPolicy.isPermanentFailure(501));
+        assertFalse(RetryPolicy.isPermanentFailure(200));
+
+        RetryPolicy policy = new RetryPolicy(4, 100, 300, new Random(1));
+        for (int attempt = 0; attempt < 10; ++attempt) {
+            long delay = policy.getDelayMillis(attempt);
+            assertTrue(delay >= 0 && delay <= Math.min(300, 100L << attempt));
+        }
+        assertTrue(policy.canRetry(2));
+        assertFalse(policy.canRetry(3));
+    }
+}
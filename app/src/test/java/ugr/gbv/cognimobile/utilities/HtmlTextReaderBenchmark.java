@@ -0,0 +1,141 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decoding of the test documents served by the study server, comparing the old line by line
+ * replacement against the single pass {@link HtmlTextReader}.
+ */
+public class HtmlTextReaderBenchmark {
+
+    private static final int IMAGES = 4;
+    private static final int IMAGE_BYTES = 768 * 1024;
+    private static final int BASE64_LINE = 76;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void decodesEntities() throws IOException {
+        String html = "&quot;a&quot;:&#34;&amp;&lt;&gt;&#x41;&apos;&#128512;&unknown; & &amp&quot;";
+        assertEquals("\"a\":\"&<>A'😀&unknown; & &amp\"", decode(new StringReader(html), false, false));
+        assertEquals("\"a\":\"&<>A'😀&unknown; & &amp\"", decode(new OneCharReader(html), false, false));
+    }
+
+    @Test
+    public void stripsTagsAndLines() throws IOException {
+        String html = "<html><body>\n<a href=\"x\">http://a/1</a><br>\r\n<p>b&amp;c</p></body></html>";
+        assertEquals("\nhttp://a/1\r\nb&c", decode(new StringReader(html), true, false));
+        assertEquals("http://a/1b&c", decode(new OneCharReader(html), true, true));
+    }
+
+    @Test
+    public void multiMegabyteTestDocument() throws Exception {
+        byte[] html = buildDocument().getBytes(StandardCharsets.UTF_8);
+
+        String expected = oldDecoding(html);
+        String decoded = newDecoding(html);
+        assertEquals(expected, decoded);
+        assertEquals(IMAGES, new JSONObject(decoded).getJSONObject("task_0").getJSONArray("images").length());
+
+        long oldNanos = Long.MAX_VALUE;
+        long newNanos = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; ++i) {
+            long start = System.nanoTime();
+            oldDecoding(html);
+            oldNanos = Math.min(oldNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            newDecoding(html);
+            newNanos = Math.min(newNanos, System.nanoTime() - start);
+        }
+
+        double megabytes = html.length / (1024.0 * 1024.0);
+        System.out.printf("%.1f MB document: line by line %.1f MB/s, single pass %.1f MB/s%n",
+                megabytes, megabytes / (oldNanos / 1e9), megabytes / (newNanos / 1e9));
+    }
+
+    /**
+     * Decoding done by TestsWorker before the {@link HtmlTextReader}.
+     */
+    private static String oldDecoding(byte[] html) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(html), StandardCharsets.UTF_8), 8);
+        StringBuilder str = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            str.append(line.replaceAll("&quot;", "\""));
+        }
+        return str.toString();
+    }
+
+    private static String newDecoding(byte[] html) throws IOException {
+        Reader reader = new HtmlTextReader(new InputStreamReader(new ByteArrayInputStream(html), StandardCharsets.UTF_8), false, true);
+        return HtmlTextReader.readFully(reader, html.length);
+    }
+
+    private static String decode(Reader in, boolean stripTags, boolean joinLines) throws IOException {
+        return HtmlTextReader.readFully(new HtmlTextReader(in, stripTags, joinLines), -1);
+    }
+
+    /**
+     * Test with a few image tasks, escaped as the server does and with the base64 wrapped in
+     * lines.
+     */
+    private static String buildDocument() throws Exception {
+        Random random = new Random(7);
+        JSONArray images = new JSONArray();
+        JSONArray answer = new JSONArray();
+        for (int i = 0; i < IMAGES; ++i) {
+            byte[] image = new byte[IMAGE_BYTES];
+            random.nextBytes(image);
+            images.put("data:image/png;base64," + Base64.getEncoder().encodeToString(image));
+            answer.put("answer " + i);
+        }
+        JSONObject task = new JSONObject();
+        task.put("taskType", 4);
+        task.put("images", images);
+        task.put("answer", answer);
+
+        JSONObject test = new JSONObject();
+        test.put("name", "benchmark");
+        test.put("language", "en");
+        test.put("display_help", true);
+        test.put("task_0", task);
+
+        String json = test.toString(1).replace("\"", "&quot;");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < json.length(); i += BASE64_LINE) {
+            lines.add(json.substring(i, Math.min(json.length(), i + BASE64_LINE)));
+        }
+        return String.join("\n", lines);
+    }
+
+    /**
+     * Reader that returns a character per call, to split the entities between reads.
+     */
+    private static class OneCharReader extends FilterReader {
+        OneCharReader(String text) {
+            super(new StringReader(text));
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            return super.read(chars, offset, Math.min(1, length));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput of the uploads against a local stand-in server, comparing the old thread and
+ * connection per post against the shared {@link HttpTransport}.
+ */
+public class HttpTransportBenchmark {
+
+    private static final int POSTS = 300;
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+    private static final String BODY = buildBody();
+
+    @Test
+    public void threadPerPost() throws Exception {
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            URL url = server.getTableUrl("results", DataSender.INSERT);
+            AtomicInteger succeeded = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < POSTS; ++i) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                        conn.setRequestMethod("POST");
+                        conn.setDoOutput(true);
+                        conn.connect();
+                        DataOutputStream wr = new DataOutputStream(conn.getOutputStream());
+                        wr.writeBytes(BODY);
+                        wr.flush();
+                        wr.close();
+                        if (conn.getResponseCode() == 200) {
+                            succeeded.incrementAndGet();
+                        }
+                        conn.disconnect();
+                    } catch (IOException e) {
+                        //Counted as a failed post
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            report("thread per post", succeeded.get(), server.getConnectionCount(), elapsed);
+        }
+    }
+
+    @Test
+    public void sharedTransport() throws Exception {
+        HttpTransport transport = new HttpTransport(MAX_CONCURRENT_REQUESTS, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            URL url = server.getTableUrl("results", DataSender.INSERT);
+            List<Future<Integer>> results = new ArrayList<>();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < POSTS; ++i) {
+                results.add(transport.submit(() -> transport.post(url, "application/x-www-form-urlencoded", null, out -> {
+                    DataOutputStream wr = new DataOutputStream(out);
+                    wr.writeBytes(BODY);
+                    wr.flush();
+                }, HttpTransport.statusCode())));
+            }
+            int succeeded = 0;
+            for (Future<Integer> result : results) {
+                if (result.get() == 200) {
+                    ++succeeded;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            report("shared transport", succeeded, server.getConnectionCount(), elapsed);
+
+            assertEquals(POSTS, succeeded);
+            assertTrue("Connections were not reused: " + server.getConnectionCount(),
+                    server.getConnectionCount() < POSTS / 2);
+        }
+    }
+
+    @Test
+    public void getReadsTheWholeBody() throws Exception {
+        HttpTransport transport = new HttpTransport(MAX_CONCURRENT_REQUESTS, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            String body = transport.get(server.getTableUrl("tests", "index"), null, connection -> {
+                InputStream in = connection.getInputStream();
+                StringBuilder str = new StringBuilder();
+                int read;
+                while ((read = in.read()) != -1) {
+                    str.append((char) read);
+                }
+                return str.toString();
+            });
+            assertEquals("ok", body);
+        }
+    }
+
+    /**
+     * Prints the result of a run.
+     */
+    private static void report(String name, int succeeded, int connections, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-18s %4d/%d posts, %4d connections, %8.1f posts/s%n",
+                name, succeeded, POSTS, connections, succeeded / seconds);
+    }
+
+    /**
+     * Builds a form body similar to a small result.
+     */
+    private static String buildBody() {
+        StringBuilder str = new StringBuilder("device_id=bench&data=[{\"timestamp\":1,\"data\":[");
+        for (int i = 0; i < 200; ++i) {
+            if (i != 0) {
+                str.append(',');
+            }
+            str.append(i);
+        }
+        return str.append("]}]").toString();
+    }
+}
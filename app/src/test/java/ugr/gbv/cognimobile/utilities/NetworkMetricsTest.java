@@ -0,0 +1,104 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link NetworkMetrics} counts the requests made through {@link HttpTransport}
+ * and reports them as json.
+ */
+public class NetworkMetricsTest {
+
+    @Before
+    public void setUp() {
+        NetworkMetrics.getInstance().reset();
+    }
+
+    @Test
+    public void countsBytesAndStatusesOfTheTransport() throws Exception {
+        byte[] body = "device_id=1&data=%5B%5D".getBytes(StandardCharsets.UTF_8);
+
+        HttpTransport transport = new HttpTransport(1, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            URL url = server.getTableUrl("results", "insert");
+            for (int i = 0; i < 3; ++i) {
+                int code = transport.post(url, "application/x-www-form-urlencoded", null,
+                        out -> out.write(body), connection -> {
+                            HttpTransport.getInputStream(connection).read(new byte[16]);
+                            return connection.getResponseCode();
+                        });
+                assertEquals(200, code);
+            }
+
+            NetworkMetrics.Endpoint endpoint = NetworkMetrics.getInstance().forUrl(url);
+            assertEquals(3, endpoint.getRequests());
+            assertEquals(3, endpoint.getStatusCount(200));
+
+            JSONObject json = NetworkMetrics.getInstance().toJson()
+                    .getJSONObject("endpoints")
+                    .getJSONObject(url.getHost() + url.getPath());
+            assertEquals(3L * body.length, json.getLong("bytes_up"));
+            assertEquals(3L * "ok".length(), json.getLong("bytes_down"));
+            assertEquals(0, json.getLong("errors"));
+            assertEquals(3, json.getJSONObject("status").getLong("200"));
+        }
+    }
+
+    @Test
+    public void histogramsLatenciesAndLimitsTheEndpoints() throws Exception {
+        NetworkMetrics metrics = NetworkMetrics.getInstance();
+        NetworkMetrics.Endpoint endpoint = metrics.forUrl(new URL("http://127.0.0.1/latency"));
+        endpoint.onResponse(200, TimeUnit.MILLISECONDS.toNanos(5));
+        endpoint.onResponse(200, TimeUnit.MILLISECONDS.toNanos(80));
+        endpoint.onResponse(503, TimeUnit.MILLISECONDS.toNanos(90));
+        endpoint.onError(TimeUnit.SECONDS.toNanos(60));
+        endpoint.onRetry();
+
+        JSONObject json = metrics.toJson().getJSONObject("endpoints").getJSONObject("127.0.0.1/latency");
+        JSONObject buckets = json.getJSONObject("latency").getJSONObject("buckets");
+        assertEquals(1, buckets.getLong("<=10"));
+        assertEquals(2, buckets.getLong("<=100"));
+        assertEquals(1, buckets.getLong(">30000"));
+        assertEquals(4, json.getLong("requests"));
+        assertEquals(0.25, json.getDouble("error_rate"), 1e-9);
+        assertEquals(1, json.getLong("retries"));
+
+        for (int i = 0; i < NetworkMetrics.MAX_ENDPOINTS; ++i) {
+            metrics.forUrl(new URL("http://127.0.0.1/test/" + i));
+        }
+        assertSame(metrics.forUrl(new URL("http://127.0.0.1/test/a")), metrics.forUrl(new URL("http://127.0.0.1/test/b")));
+    }
+
+    @Test
+    public void countsAStreamedPostThatCouldNotConnect() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        URL url = new URL("http://localhost:" + port + "/closed");
+        HttpTransport transport = new HttpTransport(1, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+
+        try {
+            transport.postStreaming(url, "application/json", null, false,
+                    out -> out.write('x'), HttpTransport.statusCode());
+            fail("Nothing listens on the port");
+        } catch (IOException e) {
+            NetworkMetrics.Endpoint endpoint = NetworkMetrics.getInstance().forUrl(url);
+            assertEquals(1, endpoint.getRequests());
+            assertEquals(1, NetworkMetrics.getInstance().toJson().getJSONObject("endpoints")
+                    .getJSONObject(url.getHost() + url.getPath()).getLong("errors"));
+        }
+    }
+}
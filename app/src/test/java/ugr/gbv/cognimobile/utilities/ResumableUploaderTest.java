@@ -0,0 +1,104 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads of a large drawing in chunks against a {@link StandInStudyServer} that drops the
+ * connection after committing some of them, or that fails: the upload continues from the
+ * offset that the server acknowledged instead of from the beginning, and the row is stored once.
+ */
+public class ResumableUploaderTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Test
+    public void resumesAfterDroppedChunks() throws Exception {
+        HttpTransport transport = new HttpTransport(1, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+        ResumableUploader uploader = new ResumableUploader(transport, new RetryPolicy(3, 1, 5, new Random(1)), CHUNK_SIZE);
+        byte[] body = buildDrawingForm();
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            server.setDropChunkEvery(3);
+            URL url = server.getTableUrl(DataSender.CONTEXT_EVENTS_TABLE, ResumableUploader.UPLOAD);
+
+            assertEquals(HttpURLConnection.HTTP_OK, uploader.upload(url, "session:contextEvents", body));
+
+            System.out.printf("resumable upload %d bytes, %d bytes in chunks, %d dropped, %d requests%n",
+                    body.length, server.getChunkBytes(), server.getDroppedChunkCount(), server.getRequestCount());
+            assertTrue(server.getDroppedChunkCount() > 0);
+            //At most the dropped chunks are sent again, when the connection repeats them
+            assertTrue(server.getChunkBytes() <= body.length + (long) server.getDroppedChunkCount() * CHUNK_SIZE);
+            assertEquals(1, server.getRowCount(DataSender.CONTEXT_EVENTS_TABLE));
+        }
+    }
+
+    @Test
+    public void continuesAnInterruptedUploadLater() throws Exception {
+        HttpTransport transport = new HttpTransport(1, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+        byte[] body = buildDrawingForm();
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            server.setErrorRate(0.2);
+            URL url = server.getTableUrl(DataSender.CONTEXT_EVENTS_TABLE, ResumableUploader.UPLOAD);
+
+            //Every run gives up at the first failure, like a worker stopped by the system
+            int runs = 0;
+            int status;
+            do {
+                status = new ResumableUploader(transport, new RetryPolicy(1, 1, 1, new Random(1)), CHUNK_SIZE)
+                        .upload(url, "session:contextEvents", body);
+                ++runs;
+            } while (status != HttpURLConnection.HTTP_OK && runs < 50);
+
+            assertEquals(HttpURLConnection.HTTP_OK, status);
+            assertTrue(runs > 1);
+            assertEquals(body.length, server.getChunkBytes());
+            assertEquals(1, server.getRowCount(DataSender.CONTEXT_EVENTS_TABLE));
+        }
+    }
+
+    @Test
+    public void reportsServersWithoutResumableUploads() throws Exception {
+        HttpTransport transport = new HttpTransport(1, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+        ResumableUploader uploader = new ResumableUploader(transport, new RetryPolicy(1, 1, 1, new Random(1)), CHUNK_SIZE);
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            server.removeTable(DataSender.CONTEXT_EVENTS_TABLE);
+            URL url = server.getTableUrl(DataSender.CONTEXT_EVENTS_TABLE, ResumableUploader.UPLOAD);
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, uploader.upload(url, "key", new byte[10]));
+
+            //A server that answers anything with an "ok" does not report offsets
+            URL unknown = server.getTableUrl(DataSender.CONTEXT_EVENTS_TABLE, "unknown");
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, uploader.upload(unknown, "key", new byte[10]));
+        }
+    }
+
+    /**
+     * Builds the form of a context events row with the paths of a drawing task.
+     */
+    private static byte[] buildDrawingForm() throws Exception {
+        Random random = new Random(7);
+        JSONObject task = new JSONObject();
+        for (String field : new String[]{ContextDataRetriever.SpecificVSCubePoints, "erased", "traces"}) {
+            float[] path = new float[40000];
+            for (int i = 0; i < path.length; ++i) {
+                path[i] = random.nextInt(100000) / 100f;
+            }
+            task.put(field, new JSONArray(path));
+        }
+        JSONArray row = new JSONArray().put(task);
+        byte[] body = BatchUploader.formatForm("device", Collections.singletonList(row), Collections.singletonList(1600000000000L));
+        assertTrue(body.length > 10 * CHUNK_SIZE);
+        return body;
+    }
+}
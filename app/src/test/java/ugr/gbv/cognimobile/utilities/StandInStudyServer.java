@@ -0,0 +1,586 @@
+package ugr.gbv.cognimobile.utilities;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in of an AWARE study server, to exercise the sync code without a real one.
+ * It serves a link index and the tests it lists, accepts the insert command of any table and
+ * resumable uploads to it, and could be told to answer slowly, to fail, to throttle the clients
+ * and to drop the connection in the middle of an upload.
+ */
+public class StandInStudyServer implements AutoCloseable {
+
+    private static final String STUDY_PATH = "/index.php/webservice/index/1/key";
+    private static final String LINK_INDEX_PATH = "/links";
+    private static final String TESTS_PATH = "/test/";
+    private static final String INSERT_SUFFIX = "/" + DataSender.INSERT;
+    private static final String UPLOAD_SUFFIX = "/" + ResumableUploader.UPLOAD;
+    private static final String OFFSET_HEADER = "Upload-Offset";
+    private static final String DATA_FIELD = "&data=";
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> tests = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> rowsByTable = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> envelopesByTable = new ConcurrentHashMap<>();
+    private final Set<String> idempotencyKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger repeatedRequests = new AtomicInteger();
+    private final AtomicInteger injectedErrors = new AtomicInteger();
+    private final AtomicInteger throttledRequests = new AtomicInteger();
+    private final Set<String> missingTables = ConcurrentHashMap.newKeySet();
+    private final Map<String, ByteArrayOutputStream> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong chunkBytes = new AtomicLong();
+    private final AtomicInteger chunks = new AtomicInteger();
+    private final AtomicInteger droppedChunks = new AtomicInteger();
+    private final Random random = new Random(11);
+
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile int throttleEvery;
+    private volatile boolean binaryRejected;
+    private volatile int dropChunkEvery;
+
+    /**
+     * Starts the server in a random local port.
+     *
+     * @throws IOException in case that the port could not be bound.
+     */
+    public StandInStudyServer() throws IOException {
+        //Without it the delayed ACKs of the keep-alive connections dominate the timings
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newFixedThreadPool(8);
+        server.setExecutor(executor);
+        server.createContext(STUDY_PATH, this::handle);
+        server.start();
+    }
+
+    /**
+     * Gets the url of the study, as AWARE stores it.
+     *
+     * @return the study url.
+     */
+    public String getStudyUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + STUDY_PATH;
+    }
+
+    /**
+     * Gets the url where a table command is posted.
+     *
+     * @param table   name of the table.
+     * @param command to be run.
+     * @return the url.
+     * @throws IOException in case that the url is not valid.
+     */
+    public URL getTableUrl(String table, String command) throws IOException {
+        return new URL(getStudyUrl() + "/" + table + "/" + command);
+    }
+
+    /**
+     * Gets the url of the index with the links of every test.
+     *
+     * @return the url.
+     */
+    public String getLinkIndexUrl() {
+        return getStudyUrl() + LINK_INDEX_PATH;
+    }
+
+    /**
+     * Adds a test to be served and listed in the link index.
+     *
+     * @param name of the test.
+     * @param json of the test, it is served html-escaped as the real server does.
+     */
+    public void addTest(String name, String json) {
+        tests.put(name, json);
+    }
+
+    /**
+     * Delays every response.
+     *
+     * @param millis to wait before answering.
+     */
+    public void setLatencyMillis(long millis) {
+        latencyMillis = millis;
+    }
+
+    /**
+     * Answers a fraction of the requests with 503, before processing them.
+     *
+     * @param rate between 0 and 1.
+     */
+    public void setErrorRate(double rate) {
+        errorRate = rate;
+    }
+
+    /**
+     * Answers one of every n requests with 429, before processing them.
+     *
+     * @param every number of requests, 0 to never throttle.
+     */
+    public void setThrottleEvery(int every) {
+        throttleEvery = every;
+    }
+
+    /**
+     * Answers 404 to the insert command of a table, as a legacy server without it does.
+     *
+     * @param table name of the table.
+     */
+    public void removeTable(String table) {
+        missingTables.add(table);
+    }
+
+    /**
+     * Answers 415 to the bodies written with the {@link BinaryEventsCodec}, as a server that
+     * only accepts json does.
+     */
+    public void rejectBinary() {
+        binaryRejected = true;
+    }
+
+    /**
+     * Commits every n-th chunk of the resumable uploads but closes the connection without
+     * answering, as a flaky mobile link does.
+     *
+     * @param every number of chunks between drops, 0 to never drop them.
+     */
+    public void setDropChunkEvery(int every) {
+        dropChunkEvery = every;
+    }
+
+    /**
+     * Number of bytes received in chunks of resumable uploads, committed or not.
+     *
+     * @return the number of bytes.
+     */
+    public long getChunkBytes() {
+        return chunkBytes.get();
+    }
+
+    /**
+     * Number of chunks whose connection was dropped after being committed.
+     *
+     * @return the number of chunks.
+     */
+    public int getDroppedChunkCount() {
+        return droppedChunks.get();
+    }
+
+    /**
+     * Number of requests handled.
+     *
+     * @return requests handled.
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Number of different TCP connections used by the clients.
+     *
+     * @return connections opened against the server.
+     */
+    public int getConnectionCount() {
+        return clientPorts.size();
+    }
+
+    /**
+     * Number of rows stored in a table, the repeated requests are not stored again.
+     *
+     * @param table name of the table.
+     * @return rows stored.
+     */
+    public int getRowCount(String table) {
+        AtomicInteger rows = rowsByTable.get(table);
+        return rows != null ? rows.get() : 0;
+    }
+
+    /**
+     * Number of session envelopes stored with the rows of a table inside.
+     *
+     * @param table name of the table carried in the envelopes.
+     * @return envelopes stored.
+     */
+    public int getEnvelopeCount(String table) {
+        AtomicInteger envelopes = envelopesByTable.get(table);
+        return envelopes != null ? envelopes.get() : 0;
+    }
+
+    /**
+     * Number of requests with an Idempotency-Key, or the keys of all their rows, already stored.
+     *
+     * @return repeated requests.
+     */
+    public int getRepeatedRequestCount() {
+        return repeatedRequests.get();
+    }
+
+    /**
+     * Number of requests answered with an injected 503.
+     *
+     * @return failed requests.
+     */
+    public int getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    /**
+     * Number of requests answered with 429.
+     *
+     * @return throttled requests.
+     */
+    public int getThrottledCount() {
+        return throttledRequests.get();
+    }
+
+    /**
+     * Routes a request: link index, tests, table insertions and resumable uploads. Anything else
+     * gets an "ok".
+     *
+     * @param exchange request and response.
+     * @throws IOException in case that the client went away.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        int count = requests.incrementAndGet();
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        byte[] body = readBody(exchange);
+
+        sleep(latencyMillis);
+
+        int every = throttleEvery;
+        if (every > 0 && count % every == 0) {
+            throttledRequests.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, HTTP_TOO_MANY_REQUESTS, "slow down");
+            return;
+        }
+        if (errorRate > 0 && nextDouble() < errorRate) {
+            injectedErrors.incrementAndGet();
+            respond(exchange, 503, "unavailable");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath().substring(STUDY_PATH.length());
+        if (path.equals(LINK_INDEX_PATH)) {
+            handleLinkIndex(exchange);
+        } else if (path.startsWith(TESTS_PATH)) {
+            handleTest(exchange, path.substring(TESTS_PATH.length()));
+        } else if (path.endsWith(INSERT_SUFFIX)) {
+            handleInsert(exchange, path.substring(1, path.length() - INSERT_SUFFIX.length()), body);
+        } else if (path.endsWith(UPLOAD_SUFFIX)) {
+            handleUpload(exchange, path.substring(1, path.length() - UPLOAD_SUFFIX.length()), body);
+        } else {
+            respond(exchange, 200, "ok");
+        }
+    }
+
+    /**
+     * Serves the link index, an html page with the url of a test in every line.
+     *
+     * @param exchange request and response.
+     * @throws IOException in case that the client went away.
+     */
+    private void handleLinkIndex(HttpExchange exchange) throws IOException {
+        StringBuilder index = new StringBuilder("<html><body>\n");
+        for (String test : tests.keySet()) {
+            index.append("<p>").append(getStudyUrl()).append(TESTS_PATH).append(test).append("</p>\n");
+        }
+        index.append("</body></html>\n");
+        respond(exchange, 200, index.toString());
+    }
+
+    /**
+     * Serves a test.
+     *
+     * @param exchange request and response.
+     * @param name     of the test.
+     * @throws IOException in case that the client went away.
+     */
+    private void handleTest(HttpExchange exchange, String name) throws IOException {
+        String json = tests.get(name);
+        if (json == null) {
+            respond(exchange, 404, "not found");
+        } else {
+            respond(exchange, 200, json.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;"));
+        }
+    }
+
+    /**
+     * Stores the rows of a table insertion, once per Idempotency-Key. When the request lists
+     * the key of every row, each row is stored once whatever the batch it comes in.
+     *
+     * @param exchange request and response.
+     * @param table    name of the table.
+     * @param body     of the request, already decompressed.
+     * @throws IOException in case that the client went away.
+     */
+    private void handleInsert(HttpExchange exchange, String table, byte[] body) throws IOException {
+        if (missingTables.contains(table)) {
+            respond(exchange, 404, "not found");
+            return;
+        }
+
+        boolean binary = isBinary(exchange);
+        if (binary && binaryRejected) {
+            respond(exchange, 415, "unsupported");
+            return;
+        }
+
+        String key = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+        String rowKeys = exchange.getRequestHeaders().getFirst("Idempotency-Keys");
+        List<Object> rows = readRows(exchange, body);
+        if (rowKeys != null) {
+            String[] keys = rowKeys.split(",");
+            List<Object> newRows = new ArrayList<>();
+            for (int i = 0; i < rows.size() && i < keys.length; ++i) {
+                if (idempotencyKeys.add(table + "/" + keys[i])) {
+                    newRows.add(rows.get(i));
+                }
+            }
+            if (newRows.isEmpty()) {
+                repeatedRequests.incrementAndGet();
+            }
+            store(table, newRows);
+        } else if (key != null && !idempotencyKeys.add(table + "/" + key)) {
+            repeatedRequests.incrementAndGet();
+        } else {
+            store(table, rows);
+        }
+        respond(exchange, 200, "ok");
+    }
+
+    /**
+     * Answers the offset of a resumable upload, or appends a chunk to it. Once the last chunk
+     * is committed the whole body is stored as an insertion of the table.
+     *
+     * @param exchange request and response.
+     * @param table    name of the table.
+     * @param body     of the request, a chunk when it is a POST.
+     * @throws IOException in case that the client went away.
+     */
+    private void handleUpload(HttpExchange exchange, String table, byte[] body) throws IOException {
+        if (missingTables.contains(table)) {
+            respond(exchange, 404, "not found");
+            return;
+        }
+
+        String query = exchange.getRequestURI().getRawQuery();
+        String id = table + "/" + URLDecoder.decode(query.substring(query.indexOf("id=") + 3), "UTF-8");
+        String key = table + "/" + exchange.getRequestHeaders().getFirst("Idempotency-Key");
+        ByteArrayOutputStream upload = uploads.computeIfAbsent(id, name -> new ByteArrayOutputStream());
+
+        synchronized (upload) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respondOffset(exchange, 200, upload.size());
+                return;
+            }
+
+            chunkBytes.addAndGet(body.length);
+            long offset = Long.parseLong(exchange.getRequestHeaders().getFirst(OFFSET_HEADER));
+            long length = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Length"));
+            if (offset != upload.size() || upload.size() >= length) {
+                respondOffset(exchange, 409, upload.size());
+                return;
+            }
+
+            upload.write(body, 0, body.length);
+            if (upload.size() >= length && idempotencyKeys.add(key)) {
+                store(table, readRows(exchange, upload.toByteArray()));
+            }
+
+            int every = dropChunkEvery;
+            if (every > 0 && chunks.incrementAndGet() % every == 0) {
+                droppedChunks.incrementAndGet();
+                exchange.close();
+                return;
+            }
+            respondOffset(exchange, 200, upload.size());
+        }
+    }
+
+    /**
+     * Sends the offset committed of a resumable upload.
+     *
+     * @param exchange request and response.
+     * @param code     status of the response.
+     * @param offset   committed.
+     * @throws IOException in case that the client went away.
+     */
+    private void respondOffset(HttpExchange exchange, int code, long offset) throws IOException {
+        exchange.getResponseHeaders().set(OFFSET_HEADER, Long.toString(offset));
+        respond(exchange, code, Long.toString(offset));
+    }
+
+    /**
+     * Checks if a body is written with the {@link BinaryEventsCodec}.
+     *
+     * @param exchange request and response.
+     * @return true if it is binary.
+     */
+    private boolean isBinary(HttpExchange exchange) {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        return contentType != null && contentType.startsWith(BinaryEventsCodec.CONTENT_TYPE);
+    }
+
+    /**
+     * Stores the rows of an insertion, and the tables carried by the session envelopes.
+     *
+     * @param table name of the table.
+     * @param rows  to be stored.
+     */
+    private void store(String table, List<Object> rows) {
+        rowsByTable.computeIfAbsent(table, name -> new AtomicInteger()).addAndGet(rows.size());
+        if (!DataSender.SESSIONS_TABLE.equals(table)) {
+            return;
+        }
+        for (Object row : rows) {
+            JSONObject envelope = row instanceof JSONObject ? (JSONObject) row : null;
+            if (envelope != null && envelope.has("data")) {
+                envelope = envelope.optJSONObject("data");
+            }
+            if (envelope == null) {
+                continue;
+            }
+            for (Iterator<String> keys = envelope.keys(); keys.hasNext(); ) {
+                String carried = keys.next();
+                if (envelope.opt(carried) instanceof JSONArray) {
+                    envelopesByTable.computeIfAbsent(carried, name -> new AtomicInteger()).incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the rows of the data field of a form, or of a binary batch.
+     *
+     * @param exchange request and response.
+     * @param body     of the request.
+     * @return the rows, empty if the body is not valid.
+     */
+    private List<Object> readRows(HttpExchange exchange, byte[] body) {
+        if (isBinary(exchange)) {
+            try {
+                return BinaryEventsCodec.readBatch(new ByteArrayInputStream(body)).rows;
+            } catch (IOException | JSONException e) {
+                return Collections.emptyList();
+            }
+        }
+
+        String form = new String(body, StandardCharsets.US_ASCII);
+        int data = form.indexOf(DATA_FIELD);
+        if (data < 0) {
+            return Collections.emptyList();
+        }
+        try {
+            JSONArray array = new JSONArray(URLDecoder.decode(form.substring(data + DATA_FIELD.length()), "UTF-8"));
+            List<Object> rows = new ArrayList<>();
+            for (int i = 0; i < array.length(); ++i) {
+                rows.add(array.get(i));
+            }
+            return rows;
+        } catch (JSONException | IOException | IllegalArgumentException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Reads the whole body, like the real server does, decompressing it when needed.
+     *
+     * @param exchange request and response.
+     * @return the body.
+     * @throws IOException in case that the client went away.
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream raw = exchange.getRequestBody();
+        boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = gzip ? new GZIPInputStream(raw) : raw) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Sends a response with a text body.
+     *
+     * @param exchange request and response.
+     * @param code     status of the response.
+     * @param text     body of the response.
+     * @throws IOException in case that the client went away.
+     */
+    private void respond(HttpExchange exchange, int code, String text) throws IOException {
+        byte[] response = text.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    /**
+     * Gets the next random number, shared by the handler threads.
+     *
+     * @return a number between 0 and 1.
+     */
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    /**
+     * Waits the injected latency.
+     *
+     * @param millis to wait.
+     */
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
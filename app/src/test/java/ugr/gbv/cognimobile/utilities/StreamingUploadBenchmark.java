@@ -0,0 +1,113 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bytes on the wire of a drawing-heavy session, comparing the old string form with the streamed
+ * one, plain and compressed.
+ */
+public class StreamingUploadBenchmark {
+
+    @Test
+    public void streamedFormDecodesToTheSameJson() throws Exception {
+        JSONObject session = new JSONObject();
+        session.put("name", "Evaluación & seguimiento 100% + 1 = ok; #1");
+        session.put("words", new JSONArray(new String[]{"árbol", "cañón", "😀", "a b"}));
+        session.put("score", 12);
+        JSONArray data = new JSONArray().put(session);
+
+        String form = new String(streamForm(data, false), StandardCharsets.US_ASCII);
+
+        String encodedData = form.substring(form.indexOf("&data=") + "&data=".length());
+        JSONArray decoded = new JSONArray(URLDecoder.decode(encodedData, "UTF-8"));
+        assertEquals(session.toString(), decoded.getJSONObject(0).toString());
+        assertTrue(form.startsWith("device_id=device"));
+    }
+
+    @Test
+    public void drawingSessionBytesOnTheWire() throws Exception {
+        JSONArray data = buildDrawingSession();
+
+        long start = System.nanoTime();
+        String oldForm = "device_id=device&data=" + data.toString();
+        int oldBytes = oldForm.length();
+        long oldNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int streamedBytes = streamForm(data, false).length;
+        long streamedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int gzipBytes = streamForm(data, true).length;
+        long gzipNanos = System.nanoTime() - start;
+
+        System.out.printf("string form   %9d bytes %6.1f ms%n", oldBytes, oldNanos / 1e6);
+        System.out.printf("streamed form %9d bytes %6.1f ms%n", streamedBytes, streamedNanos / 1e6);
+        System.out.printf("gzip form     %9d bytes %6.1f ms (%.1fx smaller)%n", gzipBytes, gzipNanos / 1e6,
+                oldBytes / (double) gzipBytes);
+
+        assertTrue(gzipBytes * 3 < oldBytes);
+    }
+
+    /**
+     * Writes the form like {@link DataSender} does into the connection.
+     */
+    private static byte[] streamForm(JSONArray data, boolean gzip) throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (OutputStream out = gzip ? new GZIPOutputStream(wire) : wire) {
+            FormUrlEncodingWriter form = new FormUrlEncodingWriter(out);
+            form.writeRaw("device_id=");
+            form.write("device");
+            form.writeRaw("&data=");
+            JsonStreamWriter.write(form, data);
+            form.flush();
+        }
+        return wire.toByteArray();
+    }
+
+    /**
+     * Builds context events like the ones of the cube and clock drawings, as the touch events
+     * of continuous strokes.
+     */
+    private static JSONArray buildDrawingSession() throws Exception {
+        Random random = new Random(7);
+        JSONObject session = new JSONObject();
+        session.put("name", "bench");
+        session.put("language", "es");
+        for (int task = 0; task < 2; ++task) {
+            JSONObject events = new JSONObject();
+            StringBuilder points = new StringBuilder();
+            JSONArray path = new JSONArray();
+            float x = 500;
+            float y = 500;
+            for (int i = 0; i < 20000; ++i) {
+                //A stroke moves a few pixels between touch events
+                x += random.nextInt(7) - 3;
+                y += random.nextInt(7) - 3;
+                if (i != 0) {
+                    points.append(',');
+                }
+                points.append(x).append(',').append(y);
+                path.put((double) x);
+                path.put((double) y);
+            }
+            events.put(task == 0 ? ContextDataRetriever.SpecificVSCubePoints : ContextDataRetriever.SpecificVSClockPoints,
+                    points.toString());
+            events.put("drawn_path", path);
+            session.put("task_" + task, events);
+        }
+        return new JSONArray().put(session);
+    }
+}
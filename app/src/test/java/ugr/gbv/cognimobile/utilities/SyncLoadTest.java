@@ -0,0 +1,306 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ugr.gbv.cognimobile.sync.TestsDownloadPipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of the sync against a {@link StandInStudyServer} that answers slowly, fails and
+ * throttles: several devices replay their queued sessions in batches, like the upload worker
+ * does, and a study with many tests is downloaded through the download pipeline. It reports
+ * the throughput and the tail latency of the requests.
+ */
+public class SyncLoadTest {
+
+    private static final int DEVICES = 4;
+    private static final int SESSIONS_PER_DEVICE = 1000;
+    private static final int BATCH_SESSIONS = 25;
+    private static final int TESTS = 200;
+    private static final long LATENCY_MILLIS = 2;
+    private static final double ERROR_RATE = 0.03;
+    private static final int THROTTLE_EVERY = 25;
+
+    @Test
+    public void replaysQueuedSessionsByTable() throws Exception {
+        replaySessions(false);
+    }
+
+    @Test
+    public void replaysQueuedSessionsAsEnvelopes() throws Exception {
+        replaySessions(true);
+    }
+
+    @Test
+    public void storesASessionSplitInTwoPasses() throws Exception {
+        HttpTransport transport = new HttpTransport(1, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+        BatchUploader uploader = new BatchUploader(transport, new RetryPolicy(5, 5, 50, new Random(3)), true);
+        Random random = new Random(5);
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            server.setErrorRate(ERROR_RATE);
+            URL sessionsUrl = server.getTableUrl(DataSender.SESSIONS_TABLE, DataSender.INSERT);
+
+            //The results go in a first pass and the context events wait for an unmetered network
+            for (String target : Arrays.asList(DataSender.RESULTS_TABLE, DataSender.CONTEXT_EVENTS_TABLE)) {
+                List<JSONObject> envelopes = new ArrayList<>();
+                List<Long> timestamps = new ArrayList<>();
+                List<String> keys = new ArrayList<>();
+                for (int i = 0; i < BATCH_SESSIONS; ++i) {
+                    JSONArray rows = target.equals(DataSender.RESULTS_TABLE) ? buildResults(random) : buildContextEvents(random);
+                    envelopes.add(new JSONObject().put("name", "test").put(target, rows));
+                    timestamps.add(1600000000000L + i);
+                    keys.add(DataSender.buildEnvelopeKey("session-" + i, Collections.singletonList(target)));
+                }
+                assertEquals(BATCH_SESSIONS, countSucceeded(uploader.post(sessionsUrl, "device", envelopes, timestamps, keys)));
+            }
+
+            assertEquals(BATCH_SESSIONS, server.getEnvelopeCount(DataSender.RESULTS_TABLE));
+            assertEquals(BATCH_SESSIONS, server.getEnvelopeCount(DataSender.CONTEXT_EVENTS_TABLE));
+        }
+    }
+
+    @Test
+    public void downloadsStudyWithManyTests() throws Exception {
+        HttpTransport transport = new HttpTransport(HttpTransport.DEFAULT_MAX_CONCURRENT_REQUESTS, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            for (int i = 0; i < TESTS; ++i) {
+                server.addTest("test" + i, buildTest("test" + i));
+            }
+            server.setLatencyMillis(LATENCY_MILLIS);
+
+            long start = System.nanoTime();
+            List<String> links = transport.get(new URL(server.getLinkIndexUrl()), null, connection -> {
+                List<String> urls = new ArrayList<>();
+                try (BufferedReader reader = new BufferedReader(openReader(HttpTransport.getInputStream(connection), true, false))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (!line.isEmpty()) {
+                            urls.add(line);
+                        }
+                    }
+                }
+                return urls;
+            });
+
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            TestsDownloadPipeline<String, String> pipeline = new TestsDownloadPipeline<>(4, 2, transport::execute,
+                    url -> {
+                        long requestStart = System.nanoTime();
+                        try {
+                            return transport.get(new URL(url), null, connection -> {
+                                try (Reader reader = openReader(HttpTransport.getInputStream(connection), false, true)) {
+                                    return HtmlTextReader.readFully(reader, connection.getContentLength());
+                                }
+                            });
+                        } finally {
+                            latencies.add(System.nanoTime() - requestStart);
+                        }
+                    },
+                    (url, html) -> new JSONObject(html).getString("name"));
+            AtomicInteger failures = new AtomicInteger();
+            List<String> names = pipeline.run(links, error -> failures.incrementAndGet());
+            long elapsed = System.nanoTime() - start;
+
+            report("download", names.size(), "tests", latencies, elapsed, server);
+            assertEquals(TESTS, links.size());
+            assertEquals(TESTS, names.size());
+            assertEquals(0, failures.get());
+        }
+    }
+
+    /**
+     * Uploads the sessions of every device at the same time, in batches.
+     *
+     * @param envelope true to send both tables of a session in a single request.
+     */
+    private void replaySessions(boolean envelope) throws Exception {
+        HttpTransport transport = new HttpTransport(HttpTransport.DEFAULT_MAX_CONCURRENT_REQUESTS, HttpTransport.DEFAULT_MAX_QUEUED_REQUESTS);
+        RetryPolicy retryPolicy = new RetryPolicy(5, 5, 50, new Random(3));
+        BatchUploader uploader = new BatchUploader(transport, retryPolicy, true);
+        ExecutorService devices = Executors.newFixedThreadPool(DEVICES);
+
+        try (StandInStudyServer server = new StandInStudyServer()) {
+            server.setLatencyMillis(LATENCY_MILLIS);
+            server.setErrorRate(ERROR_RATE);
+            server.setThrottleEvery(THROTTLE_EVERY);
+
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            List<Future<Integer>> uploads = new ArrayList<>();
+
+            long start = System.nanoTime();
+            for (int device = 0; device < DEVICES; ++device) {
+                String deviceId = "device" + device;
+                uploads.add(devices.submit(() -> uploadDevice(server, uploader, deviceId, envelope, latencies)));
+            }
+            int sessions = 0;
+            for (Future<Integer> upload : uploads) {
+                sessions += upload.get();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            report(envelope ? "sessions envelope" : "sessions by table", sessions, "sessions", latencies, elapsed, server);
+            int expected = DEVICES * SESSIONS_PER_DEVICE;
+            assertEquals(expected, sessions);
+            if (envelope) {
+                assertEquals(expected, server.getRowCount(DataSender.SESSIONS_TABLE));
+            } else {
+                assertEquals(expected, server.getRowCount(DataSender.RESULTS_TABLE));
+                assertEquals(expected, server.getRowCount(DataSender.CONTEXT_EVENTS_TABLE));
+            }
+            assertTrue(server.getInjectedErrorCount() + server.getThrottledCount() > 0);
+        } finally {
+            devices.shutdownNow();
+        }
+    }
+
+    /**
+     * Uploads the queued sessions of a device like the upload worker does.
+     *
+     * @return the number of sessions confirmed by the server.
+     */
+    private static int uploadDevice(StandInStudyServer server, BatchUploader uploader, String deviceId,
+                                    boolean envelope, List<Long> latencies) throws Exception {
+        URL results = server.getTableUrl(DataSender.RESULTS_TABLE, DataSender.INSERT);
+        URL contextEvents = server.getTableUrl(DataSender.CONTEXT_EVENTS_TABLE, DataSender.INSERT);
+        URL sessionsUrl = server.getTableUrl(DataSender.SESSIONS_TABLE, DataSender.INSERT);
+        Random random = new Random(deviceId.hashCode());
+        int confirmed = 0;
+
+        for (int first = 0; first < SESSIONS_PER_DEVICE; first += BATCH_SESSIONS) {
+            List<JSONArray> resultRows = new ArrayList<>();
+            List<JSONArray> contextRows = new ArrayList<>();
+            List<JSONObject> envelopes = new ArrayList<>();
+            List<Long> timestamps = new ArrayList<>();
+            List<String> keys = new ArrayList<>();
+            for (int i = first; i < Math.min(SESSIONS_PER_DEVICE, first + BATCH_SESSIONS); ++i) {
+                JSONArray result = buildResults(random);
+                JSONArray context = buildContextEvents(random);
+                resultRows.add(result);
+                contextRows.add(context);
+                envelopes.add(new JSONObject().put("name", "test").put(DataSender.RESULTS_TABLE, result)
+                        .put(DataSender.CONTEXT_EVENTS_TABLE, context));
+                timestamps.add(1600000000000L + i);
+                keys.add(deviceId + "-" + i);
+            }
+
+            if (envelope) {
+                confirmed += countSucceeded(timed(latencies, () -> uploader.post(sessionsUrl, deviceId, envelopes, timestamps, keys)));
+            } else {
+                int[] resultStatuses = timed(latencies, () -> uploader.post(results, deviceId, resultRows, timestamps, keys));
+                int[] contextStatuses = timed(latencies, () -> uploader.post(contextEvents, deviceId, contextRows, timestamps, keys));
+                confirmed += Math.min(countSucceeded(resultStatuses), countSucceeded(contextStatuses));
+            }
+        }
+
+        return confirmed;
+    }
+
+    /**
+     * Runs an upload and records how long it took, retries included.
+     */
+    private static int[] timed(List<Long> latencies, Upload upload) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return upload.run();
+        } finally {
+            latencies.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Upload to be timed.
+     */
+    private interface Upload {
+        int[] run() throws Exception;
+    }
+
+    private static int countSucceeded(int[] statuses) {
+        int succeeded = 0;
+        for (int status : statuses) {
+            if (RetryPolicy.isSuccess(status)) {
+                ++succeeded;
+            }
+        }
+        return succeeded;
+    }
+
+    private static Reader openReader(InputStream in, boolean stripTags, boolean joinLines) {
+        return new HtmlTextReader(new InputStreamReader(in, StandardCharsets.UTF_8), stripTags, joinLines);
+    }
+
+    private static void report(String name, int items, String unit, List<Long> latencies, long elapsedNanos,
+                               StandInStudyServer server) {
+        long[] sorted = new long[latencies.size()];
+        synchronized (latencies) {
+            for (int i = 0; i < sorted.length; ++i) {
+                sorted[i] = latencies.get(i);
+            }
+        }
+        Arrays.sort(sorted);
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-18s %6d %s %8.1f %s/s | %5d requests %3d connections %3d errors %3d throttled | " +
+                        "p50 %6.1f ms p95 %6.1f ms p99 %6.1f ms max %6.1f ms%n",
+                name, items, unit, items / seconds, unit, server.getRequestCount(), server.getConnectionCount(),
+                server.getInjectedErrorCount(), server.getThrottledCount(),
+                percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99), percentile(sorted, 1.0));
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private static JSONArray buildResults(Random random) throws Exception {
+        JSONObject result = new JSONObject();
+        result.put("name", "test");
+        result.put("score", random.nextInt(30));
+        result.put("answers", new JSONArray(Arrays.asList("árbol", "casa", "gato", "mesa", "sol")));
+        return new JSONArray().put(result);
+    }
+
+    private static JSONArray buildContextEvents(Random random) throws Exception {
+        JSONArray events = new JSONArray();
+        for (int i = 0; i < 40; ++i) {
+            events.put(new JSONObject().put("event", "touch").put("x", random.nextInt(1080)).put("y", random.nextInt(1920)));
+        }
+        return events;
+    }
+
+    private static String buildTest(String name) throws Exception {
+        JSONObject test = new JSONObject();
+        test.put("name", name);
+        test.put("language", "es");
+        JSONArray tasks = new JSONArray();
+        for (int i = 0; i < 10; ++i) {
+            tasks.put(new JSONObject().put("type", i).put("text", "Repita las palabras \"casa\" & <gato>"));
+        }
+        test.put("tasks", tasks);
+        return test.toString();
+    }
+}
@@ -0,0 +1,30 @@
+package ugr.gbv.cognimobile.utilities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Classes given to the rows of a session and to the pending uploads.
+ */
+public class UploadPriorityTest {
+
+    private static final int BULK_CHARS = 1000;
+    private static final long LARGE_CHARS = 5000;
+
+    @Test
+    public void resultsGoFirstAndDrawingsLast() {
+        assertEquals(UploadPriority.RESULTS, UploadPriority.forRow(DataSender.RESULTS_TABLE, 10, BULK_CHARS));
+        //Results never wait, whatever their size
+        assertEquals(UploadPriority.RESULTS, UploadPriority.forRow(DataSender.RESULTS_TABLE, 10 * BULK_CHARS, BULK_CHARS));
+        assertEquals(UploadPriority.CONTEXT_EVENTS, UploadPriority.forRow(DataSender.CONTEXT_EVENTS_TABLE, BULK_CHARS - 1, BULK_CHARS));
+        assertEquals(UploadPriority.BULK, UploadPriority.forRow(DataSender.CONTEXT_EVENTS_TABLE, BULK_CHARS, BULK_CHARS));
+    }
+
+    @Test
+    public void manyContextEventsWaitForUnmeteredNetwork() {
+        assertEquals(UploadPriority.CONTEXT_EVENTS, UploadPriority.getMeteredMaxPriority(0, LARGE_CHARS));
+        assertEquals(UploadPriority.CONTEXT_EVENTS, UploadPriority.getMeteredMaxPriority(LARGE_CHARS - 1, LARGE_CHARS));
+        assertEquals(UploadPriority.RESULTS, UploadPriority.getMeteredMaxPriority(LARGE_CHARS, LARGE_CHARS));
+    }
+}